@@ -0,0 +1,85 @@
+package traffic.monitor.jmh;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import traffic.monitor.data.Location;
+import traffic.monitor.data.WayPoint;
+import traffic.monitor.util.DateUtil;
+import traffic.monitor.util.FileUtil;
+import traffic.monitor.util.FileUtil.LineParser;
+
+/**
+ * Data shared by the benchmarks, loaded from the tube stations and the routes
+ * bundled with the application. The application logs every file it opens,
+ * which is turned off here so that it does not end up in the measurements.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+final class Fixtures {
+
+    static final String   TUBE_STATIONS_FILE = "tube.csv";
+
+    static final String[] ROUTE_FILES        = { "5937.csv", "6043.csv" };
+
+    static final LineParser<Location> STATION_PARSER = new LineParser<Location>() {
+        @Override
+        public Location deserialize(String[] tokens) {
+            return new Location(Double.valueOf(tokens[1]), Double.valueOf(tokens[2]));
+        }
+    };
+
+    static final LineParser<WayPoint> WAYPOINT_PARSER = new LineParser<WayPoint>() {
+        @Override
+        public WayPoint deserialize(String[] tokens) {
+            return new WayPoint(Double.valueOf(unquote(tokens[1])), Double.valueOf(unquote(tokens[2])),
+                    DateUtil.parseEpochMillis(unquote(tokens[3])));
+        }
+    };
+
+    static {
+        Logger.getRootLogger().setLevel(Level.WARN);
+    }
+
+    private Fixtures() {
+    }
+
+    static List<Location> tubeStations() {
+        return FileUtil.parseFileLineByLine(TUBE_STATIONS_FILE, ",", STATION_PARSER);
+    }
+
+    /**
+     * @return the waypoints of every bundled route
+     */
+    static List<WayPoint> wayPoints() {
+        List<WayPoint> wayPoints = new ArrayList<>();
+        for (String routeFile : ROUTE_FILES) {
+            wayPoints.addAll(FileUtil.parseFileLineByLine(routeFile, ",", WAYPOINT_PARSER));
+        }
+        return wayPoints;
+    }
+
+    /**
+     * @return the timestamps of every waypoint, as written in the route files
+     */
+    static List<String> timestamps() {
+        List<String> timestamps = new ArrayList<>();
+        for (String routeFile : ROUTE_FILES) {
+            timestamps.addAll(FileUtil.parseFileLineByLine(routeFile, ",", new LineParser<String>() {
+                @Override
+                public String deserialize(String[] tokens) {
+                    return unquote(tokens[3]);
+                }
+            }));
+        }
+        return timestamps;
+    }
+
+    private static String unquote(String token) {
+        return token.replaceAll("\"", "");
+    }
+}
@@ -0,0 +1,118 @@
+package traffic.monitor.jmh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import traffic.monitor.communication.Envelope;
+import traffic.monitor.communication.Envelope.MessageType;
+import traffic.monitor.communication.InMemoryChannel;
+
+/**
+ * Messaging through the {@link InMemoryChannel}: a single thread sending to
+ * itself, and several drones reporting to one dispatcher which drains its
+ * inbox in batches, as the dispatcher loop does.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InMemoryChannelBenchmark {
+
+    private static final Long DISPATCHER_ID = 1L;
+
+    private static final int  BATCH_SIZE    = 256;
+
+    @State(Scope.Thread)
+    public static class Loopback {
+
+        private InMemoryChannel channel;
+
+        private Envelope        envelope;
+
+        @Setup
+        public void setUp() {
+            channel = new InMemoryChannel();
+            envelope = new Envelope(DISPATCHER_ID, DISPATCHER_ID, MessageType.TRAFFIC_REPORT);
+        }
+    }
+
+    @State(Scope.Group)
+    public static class FanIn {
+
+        private InMemoryChannel channel;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            channel = new InMemoryChannel();
+        }
+
+        /**
+         * Drops the messages the dispatcher did not keep up with.
+         */
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            List<Envelope> left = new ArrayList<>();
+            while (channel.drainTo(DISPATCHER_ID, left, Integer.MAX_VALUE, 0, TimeUnit.NANOSECONDS) > 0) {
+                left.clear();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Drone {
+
+        private Envelope envelope;
+
+        @Setup
+        public void setUp() {
+            envelope = new Envelope(Thread.currentThread().getId(), DISPATCHER_ID, MessageType.TRAFFIC_REPORT);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Inbox {
+
+        private final List<Envelope> batch = new ArrayList<>(BATCH_SIZE);
+    }
+
+    @Benchmark
+    public Envelope sendAndRetrieve(Loopback loopback) {
+        loopback.channel.sendMessage(loopback.envelope);
+        return loopback.channel.retreiveMessage(DISPATCHER_ID);
+    }
+
+    @Benchmark
+    @Group("fanIn")
+    @GroupThreads(3)
+    public void send(FanIn fanIn, Drone drone) {
+        fanIn.channel.sendMessage(drone.envelope);
+    }
+
+    @Benchmark
+    @Group("fanIn")
+    @GroupThreads(1)
+    public int drain(FanIn fanIn, Inbox inbox) {
+        inbox.batch.clear();
+        return fanIn.channel.drainTo(DISPATCHER_ID, inbox.batch, BATCH_SIZE, 0, TimeUnit.NANOSECONDS);
+    }
+}
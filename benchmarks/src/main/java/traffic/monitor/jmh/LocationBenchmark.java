@@ -0,0 +1,54 @@
+package traffic.monitor.jmh;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import traffic.monitor.data.Location;
+import traffic.monitor.data.WayPoint;
+
+/**
+ * Distance between consecutive waypoints of the bundled routes, the leg a
+ * drone computes before every flight.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocationBenchmark {
+
+    private Location[] locations;
+
+    private int        next;
+
+    @Setup
+    public void setUp() {
+        List<WayPoint> wayPoints = Fixtures.wayPoints();
+        locations = new Location[wayPoints.size()];
+        for (int i = 0; i < locations.length; i++) {
+            locations[i] = wayPoints.get(i).getLocation();
+        }
+    }
+
+    @Benchmark
+    public double distanceTo() {
+        int from = next;
+        next = from + 1 == locations.length ? 0 : from + 1;
+        return locations[from].distanceTo(locations[next]);
+    }
+}
@@ -0,0 +1,76 @@
+package traffic.monitor.jmh;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import traffic.monitor.data.WayPoint;
+import traffic.monitor.util.DateUtil;
+import traffic.monitor.util.FileUtil;
+import traffic.monitor.util.MappedCsvReader.Record;
+import traffic.monitor.util.MappedCsvReader.RecordParser;
+
+/**
+ * Loading of the bundled route files, line by line and memory mapped, and
+ * decoding of their timestamps.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParsingBenchmark {
+
+    private static final RecordParser<WayPoint> WAYPOINT_RECORD_PARSER = new RecordParser<WayPoint>() {
+        @Override
+        public WayPoint deserialize(Record record) {
+            return new WayPoint(record.getDouble(1), record.getDouble(2), record.getEpochMillis(3));
+        }
+    };
+
+    @Param({ "5937.csv", "6043.csv" })
+    private String                              routeFile;
+
+    private String[]                            timestamps;
+
+    private int                                 next;
+
+    @Setup
+    public void setUp() {
+        List<String> routeTimestamps = Fixtures.timestamps();
+        timestamps = routeTimestamps.toArray(new String[routeTimestamps.size()]);
+    }
+
+    @Benchmark
+    public List<WayPoint> parseFileLineByLine() {
+        return FileUtil.parseFileLineByLine(routeFile, ",", Fixtures.WAYPOINT_PARSER);
+    }
+
+    @Benchmark
+    public List<WayPoint> parseMappedFile() {
+        return FileUtil.parseMappedFile(routeFile, ',', WAYPOINT_RECORD_PARSER);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long parseEpochMillis() {
+        String timestamp = timestamps[next];
+        next = next + 1 == timestamps.length ? 0 : next + 1;
+        return DateUtil.parseEpochMillis(timestamp);
+    }
+}
@@ -0,0 +1,94 @@
+package traffic.monitor.jmh;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import traffic.monitor.data.InMemoryTrafficReportRepository;
+import traffic.monitor.data.TrafficReport;
+import traffic.monitor.data.WayPoint;
+
+/**
+ * Saving reports made at the waypoints of the bundled routes in the
+ * {@link InMemoryTrafficReportRepository}, from one thread and from several
+ * dispatcher shards at once, and counting them. The repository is emptied
+ * before every iteration.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReportRepositoryBenchmark {
+
+    private static final int DRONES = 1000;
+
+    @State(Scope.Benchmark)
+    public static class Repository {
+
+        private InMemoryTrafficReportRepository repository;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            repository = new InMemoryTrafficReportRepository();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Reports {
+
+        private TrafficReport[] reports;
+
+        private int             next;
+
+        @Setup
+        public void setUp() {
+            List<WayPoint> wayPoints = Fixtures.wayPoints();
+            Random random = new Random(Thread.currentThread().getId());
+            reports = new TrafficReport[wayPoints.size()];
+            for (int i = 0; i < reports.length; i++) {
+                WayPoint wayPoint = wayPoints.get(i);
+                reports[i] = TrafficReport.randomInstance(Long.valueOf(random.nextInt(DRONES)), wayPoint.getTime(), wayPoint.getLocation(), random);
+            }
+        }
+
+        private TrafficReport next() {
+            TrafficReport report = reports[next];
+            next = next + 1 == reports.length ? 0 : next + 1;
+            return report;
+        }
+    }
+
+    @Benchmark
+    public void save(Repository repository, Reports reports) {
+        repository.repository.save(reports.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void saveContended(Repository repository, Reports reports) {
+        repository.repository.save(reports.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Long count(Repository repository) {
+        return repository.repository.count();
+    }
+}
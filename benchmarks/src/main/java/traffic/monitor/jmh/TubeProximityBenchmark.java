@@ -0,0 +1,78 @@
+package traffic.monitor.jmh;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import traffic.monitor.data.GridTubeStationIndex;
+import traffic.monitor.data.LinearScanTubeStationIndex;
+import traffic.monitor.data.Location;
+import traffic.monitor.data.TubeStationIndex;
+import traffic.monitor.data.WayPoint;
+
+/**
+ * Proximity checks the dispatcher runs when asserting whether the waypoints of
+ * a batch are near a tube station, cycling through the waypoints of the
+ * bundled routes.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TubeProximityBenchmark {
+
+    @Param({ "grid", "linear" })
+    private String           index;
+
+    @Param({ "350", "5000" })
+    private double           radius;
+
+    private TubeStationIndex tubeStations;
+
+    private Location[]       wayPoints;
+
+    private int              next;
+
+    @Setup
+    public void setUp() {
+        List<Location> stations = Fixtures.tubeStations();
+        tubeStations = "grid".equals(index) ? new GridTubeStationIndex(stations) : new LinearScanTubeStationIndex(stations);
+        List<WayPoint> route = Fixtures.wayPoints();
+        wayPoints = new Location[route.size()];
+        for (int i = 0; i < wayPoints.length; i++) {
+            wayPoints[i] = route.get(i).getLocation();
+        }
+    }
+
+    @Benchmark
+    public boolean anyWithin() {
+        return tubeStations.anyWithin(nextWayPoint(), radius);
+    }
+
+    @Benchmark
+    public Location nearest() {
+        return tubeStations.nearest(nextWayPoint());
+    }
+
+    private Location nextWayPoint() {
+        Location wayPoint = wayPoints[next];
+        next = next + 1 == wayPoints.length ? 0 : next + 1;
+        return wayPoint;
+    }
+}
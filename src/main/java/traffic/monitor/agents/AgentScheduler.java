@@ -0,0 +1,110 @@
+package traffic.monitor.agents;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import traffic.monitor.simulation.SimulationClock;
+
+/**
+ * Runs agents as lightweight tasks on a small pool of worker threads instead
+ * of dedicating a thread to each of them. An agent registers a step, which is
+ * executed whenever the agent is signalled, for instance when a message
+ * arrives for it or when a delay it scheduled expires. Steps of the same agent
+ * never run concurrently, and a signal received while a step is running
+ * triggers another step, so no wake up is lost.
+ * 
+ * Delays are measured by the {@link SimulationClock}, which is also told
+ * whenever an agent has a step pending or running.
+ * 
+ * Worker threads are daemons: the simulation lifetime is bound to the
+ * dispatcher thread.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public class AgentScheduler {
+
+    private static final Logger            LOG = Logger.getLogger(AgentScheduler.class);
+
+    private final ExecutorService workers;
+
+    private final SimulationClock clock;
+
+    public AgentScheduler(int workerThreads, SimulationClock clock) {
+        this.clock = clock;
+        final AtomicInteger workerCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(Math.max(workerThreads, 1), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable);
+                thread.setName("Agent Worker :: " + workerCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Handle used by an agent to request executions of its step.
+     */
+    public final class Activation implements Runnable {
+
+        private final String        name;
+
+        private final Runnable      step;
+
+        private final AtomicInteger signals;
+
+        private Activation(String name, Runnable step) {
+            this.name = name;
+            this.step = step;
+            this.signals = new AtomicInteger();
+        }
+
+        /**
+         * Requests an execution of the step as soon as a worker is available.
+         */
+        public void signal() {
+            if (signals.getAndIncrement() == 0) {
+                clock.workStarted();
+                workers.execute(this);
+            }
+        }
+
+        /**
+         * Requests an execution of the step once the simulation time has
+         * advanced by the given delay.
+         */
+        public void signalAfter(long delayMillis) {
+            clock.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    signal();
+                }
+            }, delayMillis);
+        }
+
+        @Override
+        public void run() {
+            int handled;
+            do {
+                handled = signals.get();
+                try {
+                    step.run();
+                } catch (RuntimeException e) {
+                    LOG.error("step of agent :: " + name + " failed", e);
+                }
+            } while (signals.addAndGet(-handled) != 0);
+            clock.workCompleted();
+        }
+    }
+
+    public Activation register(String name, Runnable step) {
+        return new Activation(name, step);
+    }
+
+}
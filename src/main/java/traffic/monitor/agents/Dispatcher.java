@@ -1,218 +1,606 @@
 package traffic.monitor.agents;
 
-import java.util.Date;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.Queue;
 import java.util.Set;
-
-import javax.annotation.PostConstruct;
-import javax.annotation.Resource;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
-import org.springframework.beans.factory.annotation.Value;
 
 import traffic.monitor.communication.Channel;
 import traffic.monitor.communication.Envelope;
 import traffic.monitor.communication.Envelope.MessageType;
+import traffic.monitor.data.CongestionAggregator;
 import traffic.monitor.data.Location;
+import traffic.monitor.data.ProximityCache;
 import traffic.monitor.data.Repository;
+import traffic.monitor.data.RouteSource;
 import traffic.monitor.data.TrafficReport;
 import traffic.monitor.data.WayPoint;
-import traffic.monitor.util.DateUtil;
-import traffic.monitor.util.FileUtil;
-import traffic.monitor.util.FileUtil.LineParser;
+import traffic.monitor.data.WayPointBatch;
+import traffic.monitor.metrics.Metrics;
+import traffic.monitor.trace.EventTracer;
+import traffic.monitor.trace.TraceEvent;
 
+/**
+ * Dispatcher shard of the {@link DispatcherCluster}. A shard owns the drones
+ * whose next waypoint falls in its band of the map: it uploads their routes,
+ * stores and aggregates their traffic reports and answers the proximity
+ * queries for its band against its own slice of the tube stations, through a
+ * cache of the answers per cell of the map. Each shard runs on its own thread
+ * and reads its own inbox of the channel.
+ * 
+ * A drone leaving the band is handed over to the shard of the band it enters.
+ * The drone is told about its new dispatcher first and acknowledges to the
+ * previous one, which then passes the route and the free memory of the drone
+ * on. Messages reaching the new shard before the route are kept until the
+ * route arrives.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
 public class Dispatcher {
 
-    private static final int                 INITIAL_DRONE_MEMORY_LOAD = 0;
+    /**
+     * Maximum number of messages handled per wake up of the dispatcher thread.
+     */
+    private static final int                 MAX_MESSAGES_PER_WAKEUP   = 256;
+
+    /**
+     * How long an idle shard waits for messages before looking at the state
+     * of the cluster again.
+     */
+    private static final long                IDLE_WAIT_MILLIS          = 10;
 
     private static final Logger              LOG                       = Logger.getLogger(Dispatcher.class);
 
-    @Value("#{environment['dispatcher.id']}")
-    private Long                             id;
+    private final int                        shard;
+
+    private final Long                       id;
+
+    private final DispatcherCluster          cluster;
 
-    @Value("#{environment['tube.stations.file.path']}")
-    private String                           tubeStationsFilePath;
+    private final ProximityCache             tubeProximity;
 
-    @Value("#{environment['routes.file.path']}")
-    private String                           routesFilePath;
+    private final Channel                    channel;
 
-    @Value("#{environment['max.drone.mem.capacity']}")
-    private Integer                          maxDroneMemCapacity;
+    private final Repository<TrafficReport>  reportsRepo;
 
-    @Value("#{environment['simulation.end.date']}")
-    private String                           simulationEndDate;
+    private final CongestionAggregator       congestion;
 
-    @Value("#{environment['max.distance.to.tube.station']}")
-    private Long                             maxDistanceToTubeStation;
+    private final Metrics                    metrics;
 
-    @Resource
-    private Channel                          channel;
+    private final EventTracer                tracer;
 
-    @Resource
-    private Repository<TrafficReport>        reportsRepo;
+    private boolean                          shuttingDown;
 
-    private final Map<Long, Queue<WayPoint>> routes;
+    /**
+     * Drones coordinated by this shard, from their activation or handover up
+     * to their inactivation or handover to another shard.
+     */
+    private final Set<Long>                  drones;
 
-    private final Set<Location>              tubeStationsCoordinates;
+    private final Map<Long, RouteSource>     routes;
 
     /**
-     * Mapping from active drone identifiers to the number of uploaded and still
-     * not visited waypoints.
+     * Mapping from active drone identifiers to their free memory, as last
+     * reported by the drones, less the waypoints sent since.
      */
     private final Map<Long, Integer>         activeDrones;
 
-    public Dispatcher() {
+    /**
+     * Drones with a batch of waypoints not acknowledged yet. A drone gets a
+     * single batch at a time, so that the free memory it reports is never
+     * outdated by a batch in transit.
+     */
+    private final Set<Long>                  awaitingAck;
+
+    /**
+     * Waypoints sent back by the drones, uploaded again before the rest of
+     * their routes.
+     */
+    private final Map<Long, WayPointBatch>   rejectedWayPoints;
+
+    /**
+     * Drones that reported free memory since their last upload, in the order
+     * they have to be refilled. Only those are visited when uploading, so the
+     * cost of an incoming message does not depend on the fleet size.
+     */
+    private final Set<Long>                  readyDrones;
+
+    /**
+     * Drones already asked to shut down.
+     */
+    private final Set<Long>                  shutDownDrones;
+
+    /**
+     * Drones told about their new dispatcher, mapped to its shard, for which
+     * the acknowledgement is still pending.
+     */
+    private final Map<Long, Integer>         handovers;
+
+    /**
+     * Messages of the drones handed over to this shard whose route has not
+     * arrived yet.
+     */
+    private final Map<Long, List<Envelope>>  awaitingHandover;
+
+    private final List<Envelope>             inbox;
+
+    /**
+     * Messages waiting to be sent as a single batch.
+     */
+    private final List<Envelope>             outbox;
+
+    public Dispatcher(int shard, Long id, DispatcherCluster cluster, ProximityCache tubeProximity, Channel channel,
+            Repository<TrafficReport> reportsRepo, CongestionAggregator congestion, Metrics metrics, EventTracer tracer) {
+        this.shard = shard;
+        this.id = id;
+        this.cluster = cluster;
+        this.tubeProximity = tubeProximity;
+        this.channel = channel;
+        this.reportsRepo = reportsRepo;
+        this.congestion = congestion;
+        this.metrics = metrics;
+        this.tracer = tracer;
+        drones = new HashSet<>();
         routes = new HashMap<>();
-        tubeStationsCoordinates = new HashSet<>();
         activeDrones = new HashMap<>();
+        awaitingAck = new HashSet<>();
+        rejectedWayPoints = new HashMap<>();
+        readyDrones = new LinkedHashSet<>();
+        shutDownDrones = new HashSet<>();
+        handovers = new HashMap<>();
+        awaitingHandover = new HashMap<>();
+        inbox = new ArrayList<>();
+        outbox = new ArrayList<>();
     }
 
-    @PostConstruct
-    private void init() {
+    /**
+     * Gives the shard a drone to coordinate, before the shard is started.
+     */
+    void assign(Long droneId, RouteSource route) {
+        drones.add(droneId);
+        routes.put(droneId, route);
+    }
+
+    Thread start() {
         Thread thread = new Thread(new Runnable() {
             public void run() {
-                loadTubeStationsCoordinates();
-                loadRoutes();
                 activateDrones();
                 coordinateDrones();
-                shutDownSystem();
+                shutDownDrones();
+                LOG.info("dispatcher :: " + id + " proximity cache hits :: " + tubeProximity.getHits() + ", misses :: " + tubeProximity.getMisses()
+                        + ", boundary lookups :: " + tubeProximity.getBoundaryLookups());
             }
         });
-        thread.setName("Dispatcher Thread");
+        thread.setName("Dispatcher Thread :: " + shard);
         thread.start();
-    }
-
-    private void loadTubeStationsCoordinates() {
-        LOG.info("loading tube stations locations...");
-        LineParser<Location> lp = new LineParser<Location>() {
-            @Override
-            public Location deserialize(String[] tokens) {
-                return new Location(Double.valueOf(tokens[1]), Double.valueOf(tokens[2]));
-            }
-        };
-        tubeStationsCoordinates.addAll(FileUtil.parseFileLineByLine(tubeStationsFilePath, ",", lp));
-        LOG.info("tube stations locations loading done.");
-    }
-
-    private void loadRoutes() {
-        LOG.info("loading routes...");
-        final Date shutDownDate = DateUtil.parseDate(simulationEndDate);
-        LineParser<WayPoint> lp = new LineParser<WayPoint>() {
-            @Override
-            public WayPoint deserialize(String[] tokens) {
-                Date time = DateUtil.parseDate(tokens[3].replaceAll("\"", ""));
-                if (time.compareTo(shutDownDate) > 0) {
-                    return null;
-                }
-                Double longitude = Double.valueOf(tokens[1].replaceAll("\"", ""));
-                Double latitude = Double.valueOf(tokens[2].replaceAll("\"", ""));
-                return new WayPoint(longitude, latitude, time);
-
-            }
-        };
-        for (String droneRoutesFilePath : routesFilePath.split(",")) {
-            Long droneId = Long.valueOf(droneRoutesFilePath.replace(".csv", ""));
-            Queue<WayPoint> wayPoints = new PriorityQueue<>(FileUtil.parseFileLineByLine(droneRoutesFilePath, ",", lp));
-            routes.put(droneId, wayPoints);
-            LOG.info("total number of waypoints for drone :: " + droneId + " is " + wayPoints.size());
-        }
-        LOG.info("Routes loading done.");
+        return thread;
     }
 
     private void activateDrones() {
-        LOG.info("Activating drones...");
+        LOG.info("dispatcher :: " + id + " activating " + routes.size() + " drones, " + tubeProximity.stationCount() + " stations indexed.");
         for (Long droneId : routes.keySet()) {
             LOG.info("Sending activation message to drone :: " + droneId);
-            channel.sendMessage(new Envelope(id, droneId, MessageType.ACTIVATE));
-        }
-        while (activeDrones.size() < routes.keySet().size()) {
-            handleIncomingMessage();
+            outbox.add(new Envelope(id, droneId, MessageType.ACTIVATE));
         }
     }
 
     private void coordinateDrones() {
-        while (!routes.isEmpty()) {
-            Set<Long> exhaustedRoutes = new HashSet<>();
-            for (Long droneId : routes.keySet()) {
-                int remainingCapacity = maxDroneMemCapacity - activeDrones.get(droneId);
-                LOG.info("drone :: " + droneId + " can store up to " + remainingCapacity + " new way points");
-                if (remainingCapacity > 0) {
-                    Queue<Location> wayPoints = new PriorityQueue<>();
-                    while (remainingCapacity-- > 0) {
-                        if (routes.get(droneId).isEmpty()) {
-                            exhaustedRoutes.add(droneId);
-                            break;
-                        } else {
-                            WayPoint wayPoint = routes.get(droneId).poll();
-                            wayPoints.add(wayPoint);
-                        }
-                    }
-                    LOG.info("sending " + wayPoints.size() + " new waypoints to drone :: " + droneId);
-                    channel.sendMessage(new Envelope(id, droneId, MessageType.WAYPOINT, wayPoints));
-                    activeDrones.put(droneId, activeDrones.get(droneId) + wayPoints.size());
-                }
+        while (cluster.hasOpenRoutes()) {
+            uploadWayPoints();
+            handleIncomingMessages();
+        }
+    }
+
+    private void uploadWayPoints() {
+        for (Long droneId : readyDrones) {
+            uploadWayPoints(droneId);
+        }
+        readyDrones.clear();
+    }
+
+    private void uploadWayPoints(Long droneId) {
+        RouteSource route = routes.get(droneId);
+        Integer freeCapacity = activeDrones.get(droneId);
+        if (route == null || freeCapacity == null || awaitingAck.contains(droneId)) {
+            // route exhausted or retired, drone handed over meanwhile, or
+            // last batch not acknowledged yet
+            return;
+        }
+        WayPointBatch rejected = rejectedWayPoints.get(droneId);
+        if (rejected == null && route.isExhausted()) {
+            // closed only once the last batch is acknowledged, in case some
+            // of its waypoints are sent back
+            routes.remove(droneId);
+            closeRoute(route);
+            return;
+        }
+        if (freeCapacity <= 0) {
+            return;
+        }
+        tracer.trace(TraceEvent.DISPATCHER_CAPACITY, id, droneId, freeCapacity);
+        WayPointBatch wayPoints;
+        if (rejected != null) {
+            wayPoints = rejected.take(freeCapacity);
+            if (rejected.isEmpty()) {
+                rejectedWayPoints.remove(droneId);
             }
+        } else {
+            handOverIfLeaving(droneId, route);
+            wayPoints = route.nextBatch(freeCapacity);
+        }
+        if (wayPoints.isEmpty()) {
+            return;
+        }
+        tracer.trace(TraceEvent.DISPATCHER_WAYPOINTS_SENT, id, droneId, wayPoints.size());
+        outbox.add(new Envelope(id, droneId, MessageType.WAYPOINT, wayPoints));
+        awaitingAck.add(droneId);
+        setFreeCapacity(droneId, freeCapacity - wayPoints.size());
+    }
+
+    /**
+     * Updates the free memory known for the drone, also published to the
+     * metrics.
+     */
+    private void setFreeCapacity(Long droneId, Integer freeCapacity) {
+        activeDrones.put(droneId, freeCapacity);
+        metrics.droneFreeMemory(droneId, freeCapacity);
+    }
+
+    private void traceReport(TrafficReport trafficReport) {
+        if (!tracer.isEnabled()) {
+            return;
+        }
+        Location location = trafficReport.getLocation();
+        tracer.trace(TraceEvent.DISPATCHER_REPORT_RECEIVED, id, trafficReport.getDroneId(), trafficReport.getTime(),
+                location == null ? Double.NaN : location.getLatitude(), location == null ? Double.NaN : location.getLongitude(),
+                trafficReport.getSpeed() == null ? Double.NaN : trafficReport.getSpeed());
+    }
+
+    /**
+     * Starts the handover of the drone when the next waypoint of its route is
+     * out of the band of this shard. The route keeps being uploaded from here
+     * until the drone acknowledges.
+     */
+    private void handOverIfLeaving(Long droneId, RouteSource route) {
+        if (handovers.containsKey(droneId)) {
+            return;
+        }
+        WayPoint next = route.peek();
+        if (next == null) {
+            return;
+        }
+        int target = cluster.shardOf(next);
+        if (target == shard) {
+            return;
+        }
+        LOG.info("handing drone :: " + droneId + " over to dispatcher :: " + cluster.shardId(target));
+        handovers.put(droneId, target);
+        cluster.setOwner(droneId, target);
+        outbox.add(new Envelope(id, droneId, MessageType.DISPATCHER_CHANGED, cluster.shardId(target)));
+    }
 
-            routes.keySet().removeAll(exhaustedRoutes);
-            handleIncomingMessage();
+    private void closeRoute(RouteSource route) {
+        try {
+            route.close();
+        } catch (IOException e) {
+            LOG.error("Unable to close route of drone :: " + route.getDroneId(), e);
         }
+        cluster.routeClosed();
     }
 
-    private void shutDownSystem() {
-        LOG.info("shutting down drones...");
+    private void shutDownDrones() {
+        LOG.info("dispatcher :: " + id + " shutting down drones...");
+        shuttingDown = true;
         for (Long droneId : activeDrones.keySet()) {
+            shutDownDrone(droneId);
+        }
+        while (cluster.hasActiveDrones()) {
+            handleIncomingMessages();
+        }
+        flushOutbox();
+    }
+
+    private void shutDownDrone(Long droneId) {
+        if (shutDownDrones.add(droneId)) {
             LOG.info("sending shutdown signal to drone :: " + droneId);
-            Envelope shutDownMsg = new Envelope(id, droneId, MessageType.SHUTDOWN);
-            channel.sendMessage(shutDownMsg);
+            outbox.add(new Envelope(id, droneId, MessageType.SHUTDOWN));
+        }
+    }
+
+    /**
+     * Sends the pending messages, then waits for incoming messages and handles
+     * all of those that arrived meanwhile.
+     */
+    private void handleIncomingMessages() {
+        flushOutbox();
+        channel.drainTo(id, inbox, MAX_MESSAGES_PER_WAKEUP, IDLE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        for (Envelope envelope : inbox) {
+            handleIncomingMessage(envelope);
         }
-        while (!activeDrones.isEmpty()) {
-            handleIncomingMessage();
+        inbox.clear();
+        flushOutbox();
+    }
+
+    private void flushOutbox() {
+        if (!outbox.isEmpty()) {
+            channel.sendAll(outbox);
+            outbox.clear();
         }
-        LOG.info("all drones inactive.");
-        LOG.info("total number of reports submited is " + reportsRepo.count());
-        LOG.info("simulation complete.");
     }
 
-    private void handleIncomingMessage() {
-        Envelope envelope = channel.retreiveMessage(id);
+    private void handleIncomingMessage(Envelope envelope) {
+        Long droneId = envelope.getSenderId();
+        switch (envelope.getType()) {
+        case DRONE_REGISTERED:
+            registerDrone(droneId, envelope.<String> getMessage());
+            return;
+        case DRONE_HANDOVER:
+            acceptHandover(envelope.<Handover> getMessage());
+            return;
+        case ASSERT_TUBE_NEARBY_REQUEST:
+            assertTubeNearBy(droneId, envelope.<ProximityQuery> getMessage());
+            return;
+        default:
+            break;
+        }
+        if (!drones.contains(droneId)) {
+            redirect(envelope);
+            return;
+        }
         switch (envelope.getType()) {
         case DRONE_ACTIVE:
-            LOG.info("received confirmation, drone :: " + envelope.getSenderId() + " is active.");
-            activeDrones.put(envelope.getSenderId(), INITIAL_DRONE_MEMORY_LOAD);
+            LOG.info("received confirmation, drone :: " + droneId + " is active.");
+            setFreeCapacity(droneId, envelope.<Integer> getMessage());
+            readyDrones.add(droneId);
+            if (shuttingDown) {
+                shutDownDrone(droneId);
+            }
             break;
         case DRONE_INACTIVE:
-            Long droneId = envelope.getSenderId();
             LOG.info("received confirmation, drone :: " + droneId + " is inactive.");
-            activeDrones.remove(droneId);
+            droneInactive(droneId);
+            break;
+        case DRONE_RETIRED:
+            retireDrone(droneId);
+            break;
+        case HANDOVER_ACK:
+            completeHandover(droneId);
             break;
         case TRAFFIC_REPORT:
             TrafficReport trafficReport = envelope.getMessage();
-            LOG.info("received :: " + trafficReport);
+            traceReport(trafficReport);
             reportsRepo.save(trafficReport);
-            activeDrones.put(envelope.getSenderId(), activeDrones.get(envelope.getSenderId()) - 1);
+            congestion.add(trafficReport);
+            metrics.reportSaved();
             break;
-        case ASSERT_TUBE_NEARBY_REQUEST:
-            Location location = envelope.getMessage();
-            LOG.info("drone :: " + envelope.getSenderId() + " requires confirmation of tube station proximity for location :: " + location);
-            channel.sendMessage(new Envelope(id, envelope.getSenderId(), MessageType.ASSERT_TUBE_NEARBY_RESPONSE, assertTubeNearBy(location)));
+        case WAYPOINT_ACK:
+            WayPointAck ack = envelope.getMessage();
+            awaitingAck.remove(droneId);
+            setFreeCapacity(droneId, ack.getFreeCapacity());
+            if (ack.isNack()) {
+                tracer.trace(TraceEvent.DISPATCHER_WAYPOINTS_REJECTED, id, droneId, ack.getRejected().size());
+                rejectedWayPoints.put(droneId, ack.getRejected());
+            }
+            readyDrones.add(droneId);
+            break;
+        case CAPACITY_AVAILABLE:
+            // outdated by the acknowledgement of the batch in transit, if any
+            if (!awaitingAck.contains(droneId)) {
+                setFreeCapacity(droneId, envelope.<Integer> getMessage());
+                readyDrones.add(droneId);
+            }
             break;
         default:
             break;
         }
     }
 
-    private Boolean assertTubeNearBy(Location location) {
-        LOG.info("searching for tube stations near :: " + location);
-        for (Location tubeLocation : tubeStationsCoordinates) {
-            if (tubeLocation.distanceTo(location) < maxDistanceToTubeStation) {
-                LOG.info("found tube stations at :: " + tubeLocation);
-                return true;
+    /**
+     * Handles a message about a drone this shard does not coordinate: it is
+     * kept if the route of the drone is on its way to this shard, passed on to
+     * the shard coordinating the drone otherwise.
+     */
+    private void redirect(Envelope envelope) {
+        Long droneId = envelope.getSenderId();
+        Integer owner = cluster.ownerOf(droneId);
+        if (owner == null) {
+            LOG.warn("dispatcher :: " + id + " ignoring " + envelope.getType() + " of unknown drone :: " + droneId);
+        } else if (owner == shard) {
+            List<Envelope> pending = awaitingHandover.get(droneId);
+            if (pending == null) {
+                pending = new ArrayList<>();
+                awaitingHandover.put(droneId, pending);
+            }
+            pending.add(envelope);
+        } else {
+            outbox.add(new Envelope(droneId, cluster.shardId(owner), envelope.getType(), envelope.getMessage()));
+        }
+    }
+
+    private void registerDrone(Long droneId, String droneRoutesFilePath) {
+        RouteSource route = cluster.openRoute(droneId, droneRoutesFilePath);
+        if (route == null) {
+            LOG.warn("simulation is shutting down, drone :: " + droneId + " will not be activated");
+            return;
+        }
+        int owner = cluster.shardOf(route);
+        cluster.setOwner(droneId, owner);
+        if (owner == shard) {
+            drones.add(droneId);
+            routes.put(droneId, route);
+            LOG.info("Sending activation message to drone :: " + droneId);
+            outbox.add(new Envelope(id, droneId, MessageType.ACTIVATE));
+        } else {
+            outbox.add(new Envelope(id, cluster.shardId(owner), MessageType.DRONE_HANDOVER, new Handover(droneId, route, null, false, null, false)));
+        }
+    }
+
+    private void retireDrone(Long droneId) {
+        RouteSource route = routes.remove(droneId);
+        if (route != null) {
+            closeRoute(route);
+        }
+        rejectedWayPoints.remove(droneId);
+        LOG.info("retiring drone :: " + droneId);
+        shutDownDrone(droneId);
+    }
+
+    private void droneInactive(Long droneId) {
+        drones.remove(droneId);
+        activeDrones.remove(droneId);
+        metrics.droneInactive(droneId);
+        awaitingAck.remove(droneId);
+        rejectedWayPoints.remove(droneId);
+        shutDownDrones.remove(droneId);
+        handovers.remove(droneId);
+        RouteSource route = routes.remove(droneId);
+        if (route != null) {
+            LOG.warn("drone :: " + droneId + " went inactive before the end of its route");
+            closeRoute(route);
+        }
+        cluster.droneInactive(droneId);
+    }
+
+    /**
+     * The drone now talks to its new dispatcher only, so its route and
+     * memory load can be passed on.
+     */
+    private void completeHandover(Long droneId) {
+        Integer target = handovers.remove(droneId);
+        if (target == null) {
+            LOG.warn("unexpected handover acknowledgement from drone :: " + droneId);
+            return;
+        }
+        drones.remove(droneId);
+        Handover handover = new Handover(droneId, routes.remove(droneId), activeDrones.remove(droneId), awaitingAck.remove(droneId),
+                rejectedWayPoints.remove(droneId), shutDownDrones.remove(droneId));
+        outbox.add(new Envelope(id, cluster.shardId(target), MessageType.DRONE_HANDOVER, handover));
+    }
+
+    private void acceptHandover(Handover handover) {
+        Long droneId = handover.droneId;
+        drones.add(droneId);
+        if (handover.route != null) {
+            routes.put(droneId, handover.route);
+        }
+        if (handover.freeCapacity == null) {
+            // registered on another shard, not active yet
+            LOG.info("Sending activation message to drone :: " + droneId);
+            outbox.add(new Envelope(id, droneId, MessageType.ACTIVATE));
+        } else {
+            LOG.info("drone :: " + droneId + " handed over to dispatcher :: " + id);
+            setFreeCapacity(droneId, handover.freeCapacity);
+            if (handover.awaitingAck) {
+                awaitingAck.add(droneId);
+            }
+            if (handover.rejected != null) {
+                rejectedWayPoints.put(droneId, handover.rejected);
+            }
+            readyDrones.add(droneId);
+            if (handover.shutDown) {
+                shutDownDrones.add(droneId);
+            } else if (shuttingDown) {
+                shutDownDrone(droneId);
+            }
+        }
+        List<Envelope> pending = awaitingHandover.remove(droneId);
+        if (pending != null) {
+            for (Envelope envelope : pending) {
+                handleIncomingMessage(envelope);
+            }
+        }
+    }
+
+    /**
+     * Answers the waypoints of the query in the band of this shard and passes
+     * the others on to the shards of their bands; either way the answers go
+     * straight to the drone.
+     */
+    private void assertTubeNearBy(Long droneId, ProximityQuery query) {
+        WayPointBatch wayPoints = query.getWayPoints();
+        int[] indexes = new int[query.size()];
+        boolean[] nearby = new boolean[query.size()];
+        int answered = 0;
+        Map<Integer, List<Integer>> otherBands = null;
+        for (int i = 0; i < query.size(); i++) {
+            int index = query.indexAt(i);
+            int locationShard = cluster.shardOf(wayPoints.getLongitude(index));
+            if (locationShard == shard) {
+                indexes[answered] = index;
+                nearby[answered] = tubeProximity.isNearby(wayPoints.getLatitude(index), wayPoints.getLongitude(index));
+                answered++;
+                continue;
+            }
+            if (otherBands == null) {
+                otherBands = new HashMap<>();
             }
+            List<Integer> bandIndexes = otherBands.get(locationShard);
+            if (bandIndexes == null) {
+                bandIndexes = new ArrayList<>();
+                otherBands.put(locationShard, bandIndexes);
+            }
+            bandIndexes.add(index);
+        }
+        if (otherBands != null) {
+            for (Map.Entry<Integer, List<Integer>> band : otherBands.entrySet()) {
+                int[] bandIndexes = new int[band.getValue().size()];
+                for (int i = 0; i < bandIndexes.length; i++) {
+                    bandIndexes[i] = band.getValue().get(i);
+                }
+                outbox.add(new Envelope(droneId, cluster.shardId(band.getKey()), MessageType.ASSERT_TUBE_NEARBY_REQUEST, new ProximityQuery(
+                        query.getRequestId(), wayPoints, bandIndexes)));
+            }
+        }
+        if (answered > 0) {
+            tracer.trace(TraceEvent.DISPATCHER_PROXIMITY_ANSWERED, id, droneId, answered);
+            if (answered < indexes.length) {
+                indexes = Arrays.copyOf(indexes, answered);
+                nearby = Arrays.copyOf(nearby, answered);
+            }
+            outbox.add(new Envelope(id, droneId, MessageType.ASSERT_TUBE_NEARBY_RESPONSE, new ProximityResponse(query.getRequestId(), indexes,
+                    nearby)));
+        }
+    }
+
+    /**
+     * Coordination state of a drone passed from one shard to another.
+     */
+    static final class Handover {
+
+        private final Long          droneId;
+
+        /**
+         * Rest of the route, null if it was exhausted or closed.
+         */
+        private final RouteSource   route;
+
+        /**
+         * Free memory of the drone, null if it is not active yet.
+         */
+        private final Integer       freeCapacity;
+
+        private final boolean       awaitingAck;
+
+        private final WayPointBatch rejected;
+
+        private final boolean       shutDown;
+
+        Handover(Long droneId, RouteSource route, Integer freeCapacity, boolean awaitingAck, WayPointBatch rejected, boolean shutDown) {
+            this.droneId = droneId;
+            this.route = route;
+            this.freeCapacity = freeCapacity;
+            this.awaitingAck = awaitingAck;
+            this.rejected = rejected;
+            this.shutDown = shutDown;
         }
-        return false;
     }
 }
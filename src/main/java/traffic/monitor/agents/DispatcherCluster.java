@@ -0,0 +1,312 @@
+package traffic.monitor.agents;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+
+import traffic.monitor.communication.Channel;
+import traffic.monitor.data.ColumnarRoute;
+import traffic.monitor.data.CongestionAggregator;
+import traffic.monitor.data.GeoDistance;
+import traffic.monitor.data.GeoPartition;
+import traffic.monitor.data.GridTubeStationIndex;
+import traffic.monitor.data.Location;
+import traffic.monitor.data.ProximityCache;
+import traffic.monitor.data.Repository;
+import traffic.monitor.data.RouteSource;
+import traffic.monitor.data.StreamingRouteSource;
+import traffic.monitor.data.TrafficReport;
+import traffic.monitor.data.WayPoint;
+import traffic.monitor.metrics.Metrics;
+import traffic.monitor.trace.EventTracer;
+import traffic.monitor.util.DateUtil;
+import traffic.monitor.util.FileUtil;
+import traffic.monitor.util.MappedCsvReader.Record;
+import traffic.monitor.util.MappedCsvReader.RecordParser;
+
+/**
+ * Splits the coordination of the fleet between several {@link Dispatcher}
+ * shards, one per band of a {@link GeoPartition} of the map. Shard i reads the
+ * inbox dispatcher.id + i; the first shard also gets the fleet changes from
+ * the {@link FleetRegistry}.
+ * 
+ * The cluster loads the tube stations and the initial routes, gives every
+ * drone to the shard of its first waypoint and keeps the state shared by the
+ * shards: the shard coordinating each drone and the number of routes still
+ * being uploaded and of drones still active, which tell the shards when to
+ * shut the drones down and when to stop.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public class DispatcherCluster {
+
+    private static final Logger              LOG = Logger.getLogger(DispatcherCluster.class);
+
+    @Value("#{environment['dispatcher.id']}")
+    private Long                             firstShardId;
+
+    @Value("#{environment['dispatcher.shards']}")
+    private Integer                          configuredShards;
+
+    @Value("#{environment['tube.stations.file.path']}")
+    private String                           tubeStationsFilePath;
+
+    @Value("#{environment['routes.streaming']}")
+    private Boolean                          streamRoutes;
+
+    @Value("#{environment['route.reorder.buffer.size']}")
+    private Integer                          routeReorderBufferSize;
+
+    @Value("#{environment['simulation.end.date']}")
+    private String                           simulationEndDate;
+
+    @Value("#{environment['max.distance.to.tube.station']}")
+    private Long                             maxDistanceToTubeStation;
+
+    @Value("#{environment['proximity.cache.cell.metres']}")
+    private Double                           proximityCacheCellMetres;
+
+    @Value("#{environment['proximity.cache.capacity']}")
+    private Integer                          proximityCacheCapacity;
+
+    @Resource
+    private Channel                          channel;
+
+    @Resource
+    private Repository<TrafficReport>        reportsRepo;
+
+    @Resource
+    private CongestionAggregator             congestion;
+
+    @Resource
+    private Metrics                          metrics;
+
+    @Resource
+    private EventTracer                      tracer;
+
+    @Resource
+    private FleetRegistry                    fleetRegistry;
+
+    private long                             shutDownTime;
+
+    private GeoPartition                     partition;
+
+    private final List<Dispatcher>           shards;
+
+    /**
+     * Shard coordinating each drone. During a handover the drone already
+     * belongs to the shard it is handed over to.
+     */
+    private final ConcurrentMap<Long, Integer> owners;
+
+    private final AtomicInteger              openRoutes;
+
+    private final AtomicInteger              activeDrones;
+
+    private volatile boolean                 started;
+
+    /**
+     * Released once the simulation is over, whether it completed or failed.
+     */
+    private final CountDownLatch             finished;
+
+    public DispatcherCluster() {
+        shards = new ArrayList<>();
+        owners = new ConcurrentHashMap<>();
+        openRoutes = new AtomicInteger();
+        activeDrones = new AtomicInteger();
+        finished = new CountDownLatch(1);
+    }
+
+    /**
+     * @return the number of shards to run, the number of available cores
+     *         unless configured otherwise
+     */
+    public static int shardCount(Integer configuredShards) {
+        if (configuredShards == null || configuredShards <= 0) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        return configuredShards;
+    }
+
+    @PostConstruct
+    private void init() {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    createShards(loadTubeStationsCoordinates());
+                    loadRoutes();
+                    runShards();
+                } finally {
+                    finished.countDown();
+                }
+            }
+        });
+        thread.setName("Dispatcher Cluster Thread");
+        thread.start();
+    }
+
+    /**
+     * Waits for the end of the simulation.
+     */
+    public void awaitCompletion() throws InterruptedException {
+        finished.await();
+    }
+
+    private List<Location> loadTubeStationsCoordinates() {
+        LOG.info("loading tube stations locations...");
+        RecordParser<Location> rp = new RecordParser<Location>() {
+            @Override
+            public Location deserialize(Record record) {
+                return new Location(record.getDouble(1), record.getDouble(2));
+            }
+        };
+        List<Location> tubeStationsCoordinates = FileUtil.parseMappedFile(tubeStationsFilePath, ',', rp);
+        LOG.info("tube stations locations loading done, " + tubeStationsCoordinates.size() + " stations loaded.");
+        return tubeStationsCoordinates;
+    }
+
+    private void createShards(List<Location> tubeStationsCoordinates) {
+        partition = new GeoPartition(tubeStationsCoordinates, shardCount(configuredShards));
+        double margin = sliceMargin(tubeStationsCoordinates);
+        for (int shard = 0; shard < partition.size(); shard++) {
+            // stations of the neighbouring bands within reach of the
+            // locations of the band are part of the slice as well
+            List<Location> slice = partition.slice(tubeStationsCoordinates, shard, margin);
+            ProximityCache tubeProximity = new ProximityCache(new GridTubeStationIndex(slice), maxDistanceToTubeStation, proximityCacheCellMetres,
+                    proximityCacheCapacity);
+            shards.add(new Dispatcher(shard, shardId(shard), this, tubeProximity, channel, reportsRepo, congestion, metrics, tracer));
+        }
+        LOG.info(shards.size() + " dispatcher shards created.");
+    }
+
+    /**
+     * @return the degrees of longitude covering the maximum distance to a
+     *         tube station at the latitudes of the stations, measured along
+     *         the parallel farthest from the equator, where they are the
+     *         widest
+     */
+    private double sliceMargin(List<Location> tubeStationsCoordinates) {
+        double maxAbsLatitude = 0;
+        for (Location station : tubeStationsCoordinates) {
+            maxAbsLatitude = Math.max(maxAbsLatitude, Math.abs(station.getLatitude()));
+        }
+        return GeoDistance.longitudeDegrees(maxDistanceToTubeStation,
+                Math.min(maxAbsLatitude + GeoDistance.latitudeDegrees(maxDistanceToTubeStation), 90));
+    }
+
+    private void loadRoutes() {
+        LOG.info("loading routes...");
+        shutDownTime = DateUtil.parseEpochMillis(simulationEndDate);
+        for (Map.Entry<Long, String> route : fleetRegistry.getInitialRoutes().entrySet()) {
+            RouteSource routeSource = openRoute(route.getKey(), route.getValue());
+            int owner = shardOf(routeSource);
+            setOwner(route.getKey(), owner);
+            shards.get(owner).assign(route.getKey(), routeSource);
+        }
+        LOG.info("Routes loading done.");
+    }
+
+    private void runShards() {
+        List<Thread> threads = new ArrayList<>();
+        started = true;
+        for (Dispatcher shard : shards) {
+            threads.add(shard.start());
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        LOG.info("all drones inactive.");
+        LOG.info("total number of reports submited is " + reportsRepo.count());
+        LOG.info("congestion aggregated over " + congestion.cellCount() + " cells, " + congestion.droppedReports() + " late reports dropped.");
+        metrics.dump();
+        LOG.info("simulation complete.");
+    }
+
+    /**
+     * Opens the route of a drone joining the fleet.
+     * 
+     * @return the route, null once the shards stopped uploading routes
+     */
+    RouteSource openRoute(Long droneId, String droneRoutesFilePath) {
+        int open;
+        do {
+            open = openRoutes.get();
+            if (open == 0 && started) {
+                return null;
+            }
+        } while (!openRoutes.compareAndSet(open, open + 1));
+        activeDrones.incrementAndGet();
+
+        if (streamRoutes) {
+            LOG.info("route of drone :: " + droneId + " opened for streaming");
+            return new StreamingRouteSource(droneId, droneRoutesFilePath, shutDownTime, routeReorderBufferSize);
+        }
+        ColumnarRoute route = ColumnarRoute.load(droneId, droneRoutesFilePath, shutDownTime);
+        LOG.info("total number of waypoints for drone :: " + droneId + " is " + route.size());
+        return route;
+    }
+
+    void routeClosed() {
+        openRoutes.decrementAndGet();
+    }
+
+    boolean hasOpenRoutes() {
+        return openRoutes.get() > 0;
+    }
+
+    void droneInactive(Long droneId) {
+        owners.remove(droneId);
+        activeDrones.decrementAndGet();
+    }
+
+    boolean hasActiveDrones() {
+        return activeDrones.get() > 0;
+    }
+
+    Long shardId(int shard) {
+        return firstShardId + shard;
+    }
+
+    int shardOf(Location location) {
+        return partition.partOf(location);
+    }
+
+    int shardOf(double longitude) {
+        return partition.partOf(longitude);
+    }
+
+    /**
+     * @return the shard of the next waypoint of the route, the first shard for
+     *         an empty route
+     */
+    int shardOf(RouteSource route) {
+        WayPoint next = route.peek();
+        return next == null ? 0 : shardOf(next);
+    }
+
+    Integer ownerOf(Long droneId) {
+        return owners.get(droneId);
+    }
+
+    void setOwner(Long droneId, int shard) {
+        owners.put(droneId, shard);
+    }
+
+}
@@ -1,141 +1,363 @@
 package traffic.monitor.agents;
 
-import java.util.PriorityQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
-
-import javax.annotation.PostConstruct;
-import javax.annotation.Resource;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
-import org.springframework.beans.factory.annotation.Value;
 
+import traffic.monitor.agents.AgentScheduler.Activation;
 import traffic.monitor.communication.Channel;
+import traffic.monitor.communication.Channel.DeliveryListener;
 import traffic.monitor.communication.Envelope;
 import traffic.monitor.communication.Envelope.MessageType;
 import traffic.monitor.data.Location;
 import traffic.monitor.data.TrafficReport;
 import traffic.monitor.data.WayPoint;
+import traffic.monitor.data.WayPointBatch;
+import traffic.monitor.metrics.Metrics;
+import traffic.monitor.simulation.SimulationClock;
+import traffic.monitor.trace.EventTracer;
+import traffic.monitor.trace.TraceEvent;
 
+/**
+ * Drone agent, implemented as a state machine run by the
+ * {@link AgentScheduler}. Each step handles the messages waiting in the inbox
+ * and moves the drone forward: it takes off towards the next waypoint, and on
+ * arrival reports the traffic if a tube station is nearby. The dispatcher is
+ * asked about the stations near all the waypoints of a batch as soon as the
+ * batch is received, so the answers are usually in before the drone arrives.
+ * Steps are triggered by message deliveries and by the end of flights,
+ * measured by the {@link SimulationClock}, so a drone holds no thread while it
+ * flies or waits for the dispatcher.
+ * 
+ * The steps of the flight are recorded by the {@link EventTracer} rather than
+ * logged.
+ */
 public class Drone {
 
-    private static final Logger   LOG = Logger.getLogger(Drone.class);
+    private static final Logger   LOG                   = Logger.getLogger(Drone.class);
+
+    private static final int      MAX_MESSAGES_PER_STEP = 64;
 
-    private Long                  id;
+    private final Long            id;
 
-    @Value("#{environment['dispatcher.id']}")
+    /**
+     * Dispatcher shard coordinating the drone, changes as the drone is handed
+     * over between shards.
+     */
     private Long                  dispatcherId;
 
-    @Value("#{environment['drone.speed']}")
-    private Double                speed;
+    /**
+     * Metres flown per second of the simulation clock.
+     */
+    private final Double          speed;
+
+    private final Integer         maxDroneMemCapacity;
+
+    private final Channel         channel;
+
+    private final AgentScheduler  scheduler;
+
+    private final SimulationClock clock;
+
+    private final Metrics         metrics;
+
+    private final EventTracer     tracer;
+
+    /**
+     * Source of the simulated traffic conditions.
+     */
+    private final Random          random;
 
-    @Value("#{environment['max.drone.mem.capacity']}")
-    private Integer               maxDroneMemCapacity;
+    private Activation            activation;
 
-    @Resource
-    private Channel               channel;
+    private final List<Envelope>  inbox;
 
-    private final Queue<WayPoint> wayPoints;
+    /**
+     * Batches received from the dispatcher, in the order they have to be
+     * visited.
+     */
+    private final Queue<QueriedBatch> wayPoints;
 
+    /**
+     * Batches still waiting for some proximity answers, by request
+     * identifier.
+     */
+    private final Map<Long, QueriedBatch> pendingQueries;
+
+    private long                  nextRequestId;
+
+    private int                   bufferedWayPoints;
+
+    /**
+     * Number of buffered waypoints at which the drone tells the dispatcher
+     * about its free memory.
+     */
+    private final int             refillThreshold;
+
+    /**
+     * Where the drone is, null until it reaches its first waypoint.
+     */
     private Location              currentLocation;
 
     private boolean               listenToIncomingMessages;
 
-    public Drone(Long id) {
+    /**
+     * Waypoint the drone is flying to, or waiting a proximity confirmation
+     * for.
+     */
+    private WayPoint              destination;
+
+    /**
+     * Batch of the destination, holding its proximity answer.
+     */
+    private QueriedBatch          destinationBatch;
+
+    private int                   destinationIndex;
+
+    private boolean               flying;
+
+    private long                  arrivalTime;
+
+    private boolean               inactive;
+
+    public Drone(Long id, Long dispatcherId, Double speed, Integer maxDroneMemCapacity, Random random, Channel channel, AgentScheduler scheduler,
+            SimulationClock clock, Metrics metrics, EventTracer tracer) {
         this.id = id;
-        wayPoints = new PriorityQueue<>();
-        currentLocation = new Location(0.0, 0.0);
+        this.dispatcherId = dispatcherId;
+        this.speed = speed;
+        this.maxDroneMemCapacity = maxDroneMemCapacity;
+        this.refillThreshold = maxDroneMemCapacity / 2;
+        this.random = random;
+        this.channel = channel;
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.metrics = metrics;
+        this.tracer = tracer;
+        wayPoints = new ArrayDeque<>();
+        pendingQueries = new HashMap<>();
+        inbox = new ArrayList<>();
     }
 
-    @PostConstruct
-    private void init() {
-        Thread thread = new Thread(new Runnable() {
+    public void start() {
+        listenToIncomingMessages = true;
+        activation = scheduler.register("Drone :: " + id, new Runnable() {
             public void run() {
-                listenToIncomingMessages = true;
-                LOG.info(Drone.this.id + " ready to intercept messages.");
-                while (listenToIncomingMessages || !wayPoints.isEmpty()) {
-                    if (wayPoints.isEmpty()) {
-                        handleIncomingMessage(channel.retreiveMessage(id));
-                    } else {
-                        WayPoint wayPoint = wayPoints.poll();
-                        Location location = wayPoint.getLocation();
-                        goTo(location);
-                        if (assertNearByTubeProximity(location)) {
-                            sendTrafficReport(wayPoint);
-                        }
-                    }
-                }
-                // after the loop we know that the dispatcher requested the
-                // shutdown and that no waypoints remain to be visited
-                channel.sendMessage(new Envelope(id, dispatcherId, MessageType.DRONE_INACTIVE));
+                step();
             }
         });
-        thread.setName("Drone :: " + id + " Thread");
-        thread.start();
+        channel.setDeliveryListener(id, new DeliveryListener() {
+            @Override
+            public void delivered(Long receiverId) {
+                activation.signal();
+            }
+        });
+        LOG.info(id + " ready to intercept messages.");
+        // picks up the messages delivered before the listener was registered
+        activation.signal();
+    }
+
+    private void step() {
+        if (inactive) {
+            return;
+        }
+        while (channel.drainTo(id, inbox, MAX_MESSAGES_PER_STEP, 0, TimeUnit.NANOSECONDS) > 0) {
+            for (Envelope envelope : inbox) {
+                handleIncomingMessage(envelope);
+            }
+            inbox.clear();
+        }
+        if (flying && clock.now() >= arrivalTime) {
+            arrive();
+        }
+        if (flying) {
+            return;
+        }
+        if (destination != null) {
+            Boolean nearby = destinationBatch.nearby[destinationIndex];
+            if (nearby == null) {
+                // answer still on its way
+                return;
+            }
+            onNearByTubeProximityAsserted(nearby);
+        }
+        if (!wayPoints.isEmpty()) {
+            goTo(nextWayPoint());
+        } else if (!listenToIncomingMessages) {
+            // the dispatcher requested the shutdown and no waypoints remain
+            // to be visited
+            inactive = true;
+            channel.sendMessage(new Envelope(id, dispatcherId, MessageType.DRONE_INACTIVE));
+        }
     }
 
     private void handleIncomingMessage(Envelope envelope) {
         switch (envelope.getType()) {
         case ACTIVATE:
             LOG.info(id + " received activation signal. Awaiting way points...");
-            channel.sendMessage(new Envelope(id, dispatcherId, MessageType.DRONE_ACTIVE));
+            dispatcherId = envelope.getSenderId();
+            channel.sendMessage(new Envelope(id, dispatcherId, MessageType.DRONE_ACTIVE, maxDroneMemCapacity - bufferedWayPoints));
+            break;
+        case DISPATCHER_CHANGED:
+            dispatcherId = envelope.getMessage();
+            LOG.info(id + " handed over to dispatcher :: " + dispatcherId);
+            // last message to the previous dispatcher, which can now pass on
+            // the route of the drone
+            channel.sendMessage(new Envelope(id, envelope.getSenderId(), MessageType.HANDOVER_ACK));
             break;
         case WAYPOINT:
-            Queue<WayPoint> newWayPoints = envelope.getMessage();
-            LOG.info(id + ", " + newWayPoints.size() + " way points received");
-            if (wayPoints.size() + newWayPoints.size() <= maxDroneMemCapacity) {
-                wayPoints.addAll(newWayPoints);
-            } else {
-                // TODO keep as many waypoints as possible instead of rejecting
-                // the entire message
-                // TODO implement a notification mechanism using the channel to
-                // let the dispatcher know that some waypoints were rejected
-                // instead of relying on it to keep track of the drone memory
-                // load
-                LOG.warn(id + " out of memory, last message will be discarted");
-            }
+            acceptWayPoints(envelope.<WayPointBatch> getMessage());
+            break;
+        case ASSERT_TUBE_NEARBY_RESPONSE:
+            onProximityResponse(envelope.<ProximityResponse> getMessage());
+            break;
         case SHUTDOWN:
             LOG.info(id + " inactivation signal received. Stoping activity after consuming last waypoint.");
             listenToIncomingMessages = false;
+            break;
         default:
             break;
         }
     }
 
+    /**
+     * Keeps as many of the new waypoints as fit in memory and acknowledges
+     * them, sending back those that did not fit.
+     */
+    private void acceptWayPoints(WayPointBatch newWayPoints) {
+        int accepted = Math.min(newWayPoints.size(), maxDroneMemCapacity - bufferedWayPoints);
+        tracer.trace(TraceEvent.DRONE_WAYPOINTS_RECEIVED, id, accepted, newWayPoints.size());
+        if (accepted > 0) {
+            WayPointBatch acceptedWayPoints = newWayPoints.take(accepted);
+            QueriedBatch batch = new QueriedBatch(nextRequestId++, acceptedWayPoints, clock.now());
+            wayPoints.add(batch);
+            bufferedWayPoints += accepted;
+            assertNearByTubeProximity(batch);
+        }
+        if (!newWayPoints.isEmpty()) {
+            LOG.warn(id + " out of memory, " + newWayPoints.size() + " way points sent back");
+        }
+        channel.sendMessage(new Envelope(id, dispatcherId, MessageType.WAYPOINT_ACK, new WayPointAck(accepted,
+                maxDroneMemCapacity - bufferedWayPoints, newWayPoints)));
+    }
+
+    private WayPoint nextWayPoint() {
+        QueriedBatch batch = wayPoints.peek();
+        WayPoint wayPoint = batch.wayPoints.poll();
+        destinationBatch = batch;
+        destinationIndex = batch.visited++;
+        if (batch.wayPoints.isEmpty()) {
+            wayPoints.poll();
+            metrics.batchConsumed(clock.now() - batch.receivedAt);
+        }
+        bufferedWayPoints--;
+        metrics.wayPointVisited();
+        if (bufferedWayPoints == refillThreshold) {
+            // asks for more while the remaining waypoints keep the drone busy
+            channel.sendMessage(new Envelope(id, dispatcherId, MessageType.CAPACITY_AVAILABLE, maxDroneMemCapacity - bufferedWayPoints));
+        }
+        return wayPoint;
+    }
+
     private void sendTrafficReport(WayPoint wayPoint) {
-        LOG.info(id + " sending traffic report");
-        channel.sendMessage(new Envelope(id, dispatcherId, MessageType.TRAFFIC_REPORT, TrafficReport.randomInstance(id, wayPoint.getDate())));
+        tracer.trace(TraceEvent.DRONE_REPORT_SENT, id, wayPoint.getTime(), 0, wayPoint.getLatitude(), wayPoint.getLongitude(), Double.NaN);
+        channel.sendMessage(new Envelope(id, dispatcherId, MessageType.TRAFFIC_REPORT, TrafficReport.randomInstance(id, wayPoint.getTime(),
+                wayPoint.getLocation(), random)));
     }
 
-    private boolean assertNearByTubeProximity(Location location) {
-        LOG.info(id + " requesting confirmation of nearby tube station.");
-        channel.sendMessage(new Envelope(id, dispatcherId, MessageType.ASSERT_TUBE_NEARBY_REQUEST, location));
-        Boolean isOkToSendReport = null;
-        while (isOkToSendReport == null) {
-            Envelope envelope = channel.retreiveMessage(id);
-            if (envelope.getType() == MessageType.ASSERT_TUBE_NEARBY_RESPONSE) {
-                isOkToSendReport = envelope.getMessage();
-            } else {
-                handleIncomingMessage(envelope);
-            }
+    private void assertNearByTubeProximity(QueriedBatch batch) {
+        tracer.trace(TraceEvent.DRONE_PROXIMITY_REQUESTED, id, batch.requestId, batch.nearby.length);
+        pendingQueries.put(batch.requestId, batch);
+        batch.queriedAt = System.nanoTime();
+        channel.sendMessage(new Envelope(id, dispatcherId, MessageType.ASSERT_TUBE_NEARBY_REQUEST, new ProximityQuery(batch.requestId,
+                batch.wayPoints.copy(), null)));
+    }
+
+    private void onProximityResponse(ProximityResponse response) {
+        QueriedBatch batch = pendingQueries.get(response.getRequestId());
+        if (batch == null) {
+            LOG.warn(id + " unexpected proximity answers for request :: " + response.getRequestId());
+            return;
+        }
+        for (int i = 0; i < response.size(); i++) {
+            batch.nearby[response.indexAt(i)] = response.isNearby(i);
+        }
+        batch.unanswered -= response.size();
+        if (batch.unanswered == 0) {
+            pendingQueries.remove(response.getRequestId());
+            metrics.proximityAnswered(System.nanoTime() - batch.queriedAt);
         }
-        LOG.info(id + " assertion of nearby tube station is :: " + isOkToSendReport);
-        return isOkToSendReport;
     }
 
-    private void goTo(Location newLocation) {
-        LOG.info(id + " moving to :: " + newLocation);
-        Double distance = newLocation.distanceTo(currentLocation);
-        LOG.info(id + " distance to cover is :: " + distance);
-        Long travelTime = Double.valueOf(distance / speed).longValue();
-        LOG.info(id + " estimated travel time :: " + travelTime);
-        try {
-            // simulate flight delay
-            Thread.sleep(travelTime);
-        } catch (InterruptedException e) {
-            LOG.info(id + " unable to travel to :: " + newLocation);
-            throw new RuntimeException(e);
-        }
-        currentLocation = newLocation;
-        LOG.info(id + " arrived at :: " + currentLocation);
+    private void onNearByTubeProximityAsserted(Boolean isOkToSendReport) {
+        tracer.trace(TraceEvent.DRONE_PROXIMITY_ASSERTED, id, isOkToSendReport ? 1 : 0, 0);
+        if (isOkToSendReport) {
+            sendTrafficReport(destination);
+        }
+        destination = null;
+        destinationBatch = null;
+    }
+
+    private void goTo(WayPoint wayPoint) {
+        Location newLocation = wayPoint.getLocation();
+        // the drone is launched from its first waypoint
+        double distance = currentLocation == null ? 0 : newLocation.distanceTo(currentLocation);
+        Long travelTime = Double.valueOf(distance * 1000 / speed).longValue();
+        tracer.trace(TraceEvent.DRONE_MOVING, id, travelTime, 0, newLocation.getLatitude(), newLocation.getLongitude(), distance);
+        // simulate flight delay
+        destination = wayPoint;
+        flying = true;
+        arrivalTime = clock.now() + travelTime;
+        activation.signalAfter(travelTime);
+    }
+
+    private void arrive() {
+        flying = false;
+        currentLocation = destination.getLocation();
+        tracer.trace(TraceEvent.DRONE_ARRIVED, id, 0, 0, currentLocation.getLatitude(), currentLocation.getLongitude(), Double.NaN);
+    }
+
+    /**
+     * Batch of waypoints along with the answers to its proximity query.
+     */
+    private static final class QueriedBatch {
+
+        private final long          requestId;
+
+        private final WayPointBatch wayPoints;
+
+        /**
+         * Proximity answer of each waypoint of the batch, null until received.
+         */
+        private final Boolean[]     nearby;
+
+        private int                 unanswered;
+
+        private int                 visited;
+
+        /**
+         * Simulation time the batch was received at.
+         */
+        private final long          receivedAt;
+
+        /**
+         * Time the proximity query was sent at, as given by
+         * {@link System#nanoTime()}.
+         */
+        private long                queriedAt;
+
+        private QueriedBatch(long requestId, WayPointBatch wayPoints, long receivedAt) {
+            this.requestId = requestId;
+            this.wayPoints = wayPoints;
+            this.receivedAt = receivedAt;
+            this.nearby = new Boolean[wayPoints.size()];
+            this.unanswered = nearby.length;
+        }
     }
 }
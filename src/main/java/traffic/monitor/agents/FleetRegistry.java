@@ -0,0 +1,163 @@
+package traffic.monitor.agents;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+
+import traffic.monitor.communication.Channel;
+import traffic.monitor.communication.Envelope;
+import traffic.monitor.communication.Envelope.MessageType;
+import traffic.monitor.metrics.Metrics;
+import traffic.monitor.simulation.SimulationClock;
+import traffic.monitor.trace.EventTracer;
+import traffic.monitor.util.FileUtil;
+
+/**
+ * Owns the drones of the fleet. At startup one drone is created for every
+ * route file found in the routes directory, the drone identifier being the
+ * file name without its extension. Drones can also be added and retired while
+ * the simulation runs; the dispatcher is told about those changes through the
+ * channel, so that it can keep coordinating from its own thread.
+ * 
+ * When the drones run in processes of their own, the registry of the
+ * dispatcher process only lists the routes, and the registry of each process
+ * hosting drones runs the drones of its routes.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public class FleetRegistry {
+
+    private static final Logger              LOG = Logger.getLogger(FleetRegistry.class);
+
+    @Value("#{environment['dispatcher.id']}")
+    private Long                             dispatcherId;
+
+    @Value("#{environment['routes.directory']}")
+    private String                           routesDirectory;
+
+    @Value("#{environment['routes.file.glob']}")
+    private String                           routesFileGlob;
+
+    @Value("#{environment['drone.speed']}")
+    private Double                           speed;
+
+    @Value("#{environment['max.drone.mem.capacity']}")
+    private Integer                          maxDroneMemCapacity;
+
+    @Value("#{environment['simulation.seed']}")
+    private Long                             seed;
+
+    /**
+     * Whether the drones run in this process.
+     */
+    private final boolean                    hostsDrones;
+
+    @Resource
+    private Channel                          channel;
+
+    @Resource
+    private AgentScheduler                   scheduler;
+
+    @Resource
+    private SimulationClock                  clock;
+
+    @Resource
+    private Metrics                          metrics;
+
+    @Resource
+    private EventTracer                      tracer;
+
+    private final ConcurrentMap<Long, Drone> drones;
+
+    /**
+     * Route files of the drones discovered at startup.
+     */
+    private final Map<Long, String>          initialRoutes;
+
+    public FleetRegistry(boolean hostsDrones) {
+        this.hostsDrones = hostsDrones;
+        drones = new ConcurrentHashMap<>();
+        initialRoutes = new LinkedHashMap<>();
+    }
+
+    @PostConstruct
+    private void init() {
+        for (String routeFilePath : FileUtil.listFiles(routesDirectory, routesFileGlob)) {
+            String fileName = new File(routeFilePath).getName();
+            Long droneId;
+            try {
+                droneId = Long.valueOf(fileName.substring(0, fileName.lastIndexOf('.') < 0 ? fileName.length() : fileName.lastIndexOf('.')));
+            } catch (NumberFormatException e) {
+                LOG.warn("ignoring route file without a drone identifier :: " + routeFilePath);
+                continue;
+            }
+            initialRoutes.put(droneId, routeFilePath);
+            if (hostsDrones) {
+                Drone drone = newDrone(droneId);
+                drones.put(droneId, drone);
+                drone.start();
+            }
+        }
+        if (initialRoutes.isEmpty()) {
+            throw new IllegalStateException("no route files matching " + routesFileGlob + " in routes directory :: '" + routesDirectory + "'");
+        }
+        LOG.info(initialRoutes.size() + " drones registered, " + drones.size() + " running in this process.");
+    }
+
+    /**
+     * @return the route file of each drone registered at startup
+     */
+    public Map<Long, String> getInitialRoutes() {
+        return Collections.unmodifiableMap(initialRoutes);
+    }
+
+    /**
+     * Adds a drone to the running simulation. The dispatcher activates it and
+     * starts uploading its route.
+     */
+    public void addDrone(Long droneId, String routeFilePath) {
+        Drone drone = newDrone(droneId);
+        if (drones.putIfAbsent(droneId, drone) != null) {
+            throw new IllegalStateException("drone :: " + droneId + " is already registered");
+        }
+        drone.start();
+        LOG.info("registering drone :: " + droneId + " with route :: " + routeFilePath);
+        channel.sendMessage(new Envelope(droneId, dispatcherId, MessageType.DRONE_REGISTERED, routeFilePath));
+    }
+
+    /**
+     * Retires a drone from the running simulation. The dispatcher stops
+     * uploading its route and shuts it down once the waypoints already
+     * uploaded are visited.
+     */
+    public void retireDrone(Long droneId) {
+        if (drones.remove(droneId) == null) {
+            LOG.warn("drone :: " + droneId + " is not registered");
+            return;
+        }
+        LOG.info("retiring drone :: " + droneId);
+        channel.sendMessage(new Envelope(droneId, dispatcherId, MessageType.DRONE_RETIRED));
+    }
+
+    public int size() {
+        return drones.size();
+    }
+
+    private Drone newDrone(Long droneId) {
+        // seeded per drone, so that reports do not depend on how the drones
+        // are interleaved
+        return new Drone(droneId, dispatcherId, speed, maxDroneMemCapacity, new Random(seed ^ droneId), channel, scheduler, clock, metrics, tracer);
+    }
+
+}
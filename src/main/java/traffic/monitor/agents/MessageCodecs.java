@@ -0,0 +1,301 @@
+package traffic.monitor.agents;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+
+import traffic.monitor.communication.Envelope.MessageType;
+import traffic.monitor.communication.PayloadCodec;
+import traffic.monitor.data.Location;
+import traffic.monitor.data.TrafficReport;
+import traffic.monitor.data.TrafficReport.Congestion;
+import traffic.monitor.data.WayPointBatch;
+
+/**
+ * Binary form of the payloads the drones and the dispatcher exchange, for
+ * drones running in other processes than the dispatcher. Handovers stay
+ * between the shards of the dispatcher process and have no codec.
+ * 
+ * Waypoint batches are written column by column, latitudes first, and only
+ * their waypoints not consumed yet.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public final class MessageCodecs {
+
+    private static final Congestion[]                    CONGESTIONS        = Congestion.values();
+
+    private static final PayloadCodec<Integer>           INTEGER            = new IntegerCodec();
+
+    private static final PayloadCodec<Long>              LONG               = new LongCodec();
+
+    private static final PayloadCodec<String>            STRING             = new StringCodec();
+
+    private static final PayloadCodec<WayPointBatch>     WAYPOINT_BATCH     = new WayPointBatchCodec();
+
+    private static final PayloadCodec<WayPointAck>       WAYPOINT_ACK       = new WayPointAckCodec();
+
+    private static final PayloadCodec<TrafficReport>     TRAFFIC_REPORT     = new TrafficReportCodec();
+
+    private static final PayloadCodec<ProximityQuery>    PROXIMITY_QUERY    = new ProximityQueryCodec();
+
+    private static final PayloadCodec<ProximityResponse> PROXIMITY_RESPONSE = new ProximityResponseCodec();
+
+    private MessageCodecs() {
+    }
+
+    /**
+     * @return the codecs of the payloads sent between the drones and the
+     *         dispatcher, by message type
+     */
+    public static Map<MessageType, PayloadCodec<?>> payloadCodecs() {
+        Map<MessageType, PayloadCodec<?>> codecs = new EnumMap<>(MessageType.class);
+        codecs.put(MessageType.DRONE_ACTIVE, INTEGER);
+        codecs.put(MessageType.CAPACITY_AVAILABLE, INTEGER);
+        codecs.put(MessageType.DISPATCHER_CHANGED, LONG);
+        codecs.put(MessageType.DRONE_REGISTERED, STRING);
+        codecs.put(MessageType.WAYPOINT, WAYPOINT_BATCH);
+        codecs.put(MessageType.WAYPOINT_ACK, WAYPOINT_ACK);
+        codecs.put(MessageType.TRAFFIC_REPORT, TRAFFIC_REPORT);
+        codecs.put(MessageType.ASSERT_TUBE_NEARBY_REQUEST, PROXIMITY_QUERY);
+        codecs.put(MessageType.ASSERT_TUBE_NEARBY_RESPONSE, PROXIMITY_RESPONSE);
+        return codecs;
+    }
+
+    private static final class IntegerCodec implements PayloadCodec<Integer> {
+
+        @Override
+        public int size(Integer message) {
+            return 4;
+        }
+
+        @Override
+        public void encode(Integer message, ByteBuffer buffer) {
+            buffer.putInt(message);
+        }
+
+        @Override
+        public Integer decode(ByteBuffer buffer) {
+            return buffer.getInt();
+        }
+
+    }
+
+    private static final class LongCodec implements PayloadCodec<Long> {
+
+        @Override
+        public int size(Long message) {
+            return 8;
+        }
+
+        @Override
+        public void encode(Long message, ByteBuffer buffer) {
+            buffer.putLong(message);
+        }
+
+        @Override
+        public Long decode(ByteBuffer buffer) {
+            return buffer.getLong();
+        }
+
+    }
+
+    private static final class StringCodec implements PayloadCodec<String> {
+
+        @Override
+        public int size(String message) {
+            return 4 + message.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        @Override
+        public void encode(String message, ByteBuffer buffer) {
+            byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+
+        @Override
+        public String decode(ByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+    }
+
+    private static final class WayPointBatchCodec implements PayloadCodec<WayPointBatch> {
+
+        @Override
+        public int size(WayPointBatch message) {
+            return 4 + message.size() * (8 + 8 + 8);
+        }
+
+        @Override
+        public void encode(WayPointBatch message, ByteBuffer buffer) {
+            int size = message.size();
+            buffer.putInt(size);
+            for (int i = 0; i < size; i++) {
+                buffer.putDouble(message.getLatitude(i));
+            }
+            for (int i = 0; i < size; i++) {
+                buffer.putDouble(message.getLongitude(i));
+            }
+            for (int i = 0; i < size; i++) {
+                buffer.putLong(message.getTime(i));
+            }
+        }
+
+        @Override
+        public WayPointBatch decode(ByteBuffer buffer) {
+            int size = buffer.getInt();
+            double[] latitudes = new double[size];
+            double[] longitudes = new double[size];
+            long[] times = new long[size];
+            buffer.asDoubleBuffer().get(latitudes);
+            buffer.position(buffer.position() + size * 8);
+            buffer.asDoubleBuffer().get(longitudes);
+            buffer.position(buffer.position() + size * 8);
+            buffer.asLongBuffer().get(times);
+            buffer.position(buffer.position() + size * 8);
+            return new WayPointBatch(latitudes, longitudes, times, 0, size);
+        }
+
+    }
+
+    private static final class WayPointAckCodec implements PayloadCodec<WayPointAck> {
+
+        @Override
+        public int size(WayPointAck message) {
+            return 4 + 4 + WAYPOINT_BATCH.size(message.getRejected());
+        }
+
+        @Override
+        public void encode(WayPointAck message, ByteBuffer buffer) {
+            buffer.putInt(message.getAccepted());
+            buffer.putInt(message.getFreeCapacity());
+            WAYPOINT_BATCH.encode(message.getRejected(), buffer);
+        }
+
+        @Override
+        public WayPointAck decode(ByteBuffer buffer) {
+            int accepted = buffer.getInt();
+            int freeCapacity = buffer.getInt();
+            return new WayPointAck(accepted, freeCapacity, WAYPOINT_BATCH.decode(buffer));
+        }
+
+    }
+
+    /**
+     * Drone, time, latitude, longitude, speed, NaN when unknown, and
+     * congestion, -1 when unknown.
+     */
+    private static final class TrafficReportCodec implements PayloadCodec<TrafficReport> {
+
+        @Override
+        public int size(TrafficReport message) {
+            return 8 + 8 + 8 + 8 + 8 + 1;
+        }
+
+        @Override
+        public void encode(TrafficReport message, ByteBuffer buffer) {
+            buffer.putLong(message.getDroneId());
+            buffer.putLong(message.getTime());
+            buffer.putDouble(message.getLocation().getLatitude());
+            buffer.putDouble(message.getLocation().getLongitude());
+            buffer.putDouble(message.getSpeed() == null ? Double.NaN : message.getSpeed());
+            buffer.put((byte) (message.getCongestion() == null ? -1 : message.getCongestion().ordinal()));
+        }
+
+        @Override
+        public TrafficReport decode(ByteBuffer buffer) {
+            long droneId = buffer.getLong();
+            long time = buffer.getLong();
+            Location location = new Location(buffer.getDouble(), buffer.getDouble());
+            double speed = buffer.getDouble();
+            byte congestion = buffer.get();
+            return new TrafficReport(droneId, time, location, Double.isNaN(speed) ? null : speed,
+                    congestion < 0 ? null : CONGESTIONS[congestion]);
+        }
+
+    }
+
+    /**
+     * Request, number of positions, -1 when all the waypoints are checked,
+     * positions and waypoints.
+     */
+    private static final class ProximityQueryCodec implements PayloadCodec<ProximityQuery> {
+
+        @Override
+        public int size(ProximityQuery message) {
+            int[] indexes = message.getIndexes();
+            return 8 + 4 + (indexes == null ? 0 : indexes.length * 4) + WAYPOINT_BATCH.size(message.getWayPoints());
+        }
+
+        @Override
+        public void encode(ProximityQuery message, ByteBuffer buffer) {
+            int[] indexes = message.getIndexes();
+            buffer.putLong(message.getRequestId());
+            buffer.putInt(indexes == null ? -1 : indexes.length);
+            if (indexes != null) {
+                for (int index : indexes) {
+                    buffer.putInt(index);
+                }
+            }
+            WAYPOINT_BATCH.encode(message.getWayPoints(), buffer);
+        }
+
+        @Override
+        public ProximityQuery decode(ByteBuffer buffer) {
+            long requestId = buffer.getLong();
+            int count = buffer.getInt();
+            int[] indexes = null;
+            if (count >= 0) {
+                indexes = new int[count];
+                for (int i = 0; i < count; i++) {
+                    indexes[i] = buffer.getInt();
+                }
+            }
+            return new ProximityQuery(requestId, WAYPOINT_BATCH.decode(buffer), indexes);
+        }
+
+    }
+
+    /**
+     * Request, number of answers, then the position and the answer of each.
+     */
+    private static final class ProximityResponseCodec implements PayloadCodec<ProximityResponse> {
+
+        @Override
+        public int size(ProximityResponse message) {
+            return 8 + 4 + message.size() * (4 + 1);
+        }
+
+        @Override
+        public void encode(ProximityResponse message, ByteBuffer buffer) {
+            int size = message.size();
+            buffer.putLong(message.getRequestId());
+            buffer.putInt(size);
+            for (int i = 0; i < size; i++) {
+                buffer.putInt(message.indexAt(i));
+                buffer.put((byte) (message.isNearby(i) ? 1 : 0));
+            }
+        }
+
+        @Override
+        public ProximityResponse decode(ByteBuffer buffer) {
+            long requestId = buffer.getLong();
+            int size = buffer.getInt();
+            int[] indexes = new int[size];
+            boolean[] nearby = new boolean[size];
+            for (int i = 0; i < size; i++) {
+                indexes[i] = buffer.getInt();
+                nearby[i] = buffer.get() != 0;
+            }
+            return new ProximityResponse(requestId, indexes, nearby);
+        }
+
+    }
+
+}
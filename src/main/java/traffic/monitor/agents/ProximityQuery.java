@@ -0,0 +1,64 @@
+package traffic.monitor.agents;
+
+import traffic.monitor.data.WayPointBatch;
+
+/**
+ * Asks whether a tube station is nearby for several waypoints at once, so that
+ * a drone can have the answers for its upcoming waypoints before it gets
+ * there. A dispatcher shard answers the waypoints of its band and passes the
+ * others on, in a query of their own keeping the same request identifier and
+ * the positions of the waypoints in the original batch.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+class ProximityQuery {
+
+    private final long          requestId;
+
+    /**
+     * Waypoints of the query, never consumed.
+     */
+    private final WayPointBatch wayPoints;
+
+    /**
+     * Positions of the waypoints to check, null for all of them.
+     */
+    private final int[]         indexes;
+
+    ProximityQuery(long requestId, WayPointBatch wayPoints, int[] indexes) {
+        this.requestId = requestId;
+        this.wayPoints = wayPoints;
+        this.indexes = indexes;
+    }
+
+    long getRequestId() {
+        return requestId;
+    }
+
+    WayPointBatch getWayPoints() {
+        return wayPoints;
+    }
+
+    /**
+     * @return the positions of the waypoints to check, null for all of them
+     */
+    int[] getIndexes() {
+        return indexes;
+    }
+
+    /**
+     * @return the number of waypoints to check
+     */
+    int size() {
+        return indexes == null ? wayPoints.size() : indexes.length;
+    }
+
+    /**
+     * @return the position in the batch of the i-th waypoint to check
+     */
+    int indexAt(int i) {
+        return indexes == null ? i : indexes[i];
+    }
+
+}
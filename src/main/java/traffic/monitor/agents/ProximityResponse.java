@@ -0,0 +1,43 @@
+package traffic.monitor.agents;
+
+/**
+ * Answers to a {@link ProximityQuery}, or to the part of it handled by a
+ * single dispatcher shard.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+class ProximityResponse {
+
+    private final long      requestId;
+
+    /**
+     * Positions of the answered waypoints in the batch of the query.
+     */
+    private final int[]     indexes;
+
+    private final boolean[] nearby;
+
+    ProximityResponse(long requestId, int[] indexes, boolean[] nearby) {
+        this.requestId = requestId;
+        this.indexes = indexes;
+        this.nearby = nearby;
+    }
+
+    long getRequestId() {
+        return requestId;
+    }
+
+    int size() {
+        return indexes.length;
+    }
+
+    int indexAt(int i) {
+        return indexes[i];
+    }
+
+    boolean isNearby(int i) {
+        return nearby[i];
+    }
+
+}
@@ -0,0 +1,246 @@
+package traffic.monitor.agents;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import traffic.monitor.communication.Channel;
+import traffic.monitor.communication.Envelope;
+import traffic.monitor.communication.Envelope.MessageType;
+import traffic.monitor.communication.PayloadCodec;
+import traffic.monitor.communication.TcpChannel;
+import traffic.monitor.communication.TcpChannel.Role;
+import traffic.monitor.data.Location;
+import traffic.monitor.data.TrafficReport;
+import traffic.monitor.data.TrafficReport.Congestion;
+import traffic.monitor.data.WayPointBatch;
+
+/**
+ * Runs a {@link TcpChannel} hub and client over the loopback interface and
+ * sends an envelope of every payload {@link MessageCodecs} encodes both ways,
+ * comparing the envelopes received field by field with the ones sent. One of
+ * the frames is larger than the pooled buffers of the channel. Also checks
+ * that the send refuses an envelope whose payload has no codec, and that a
+ * corrupt frame only closes the connection it came from. Sits next to the
+ * payloads it builds, which are package private.
+ * 
+ * Usage: TcpLoopbackCheck, fails with an exception on the first mismatch.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public final class TcpLoopbackCheck {
+
+    private static final Logger LOG              = Logger.getLogger(TcpLoopbackCheck.class);
+
+    private static final Long   DISPATCHER_ID    = 1L;
+
+    private static final Long   DRONE_ID         = 2L;
+
+    private static final int    BUFFER_SIZE      = 4096;
+
+    /**
+     * Waypoints of the batch encoded in a frame larger than the buffers.
+     */
+    private static final int    LARGE_BATCH_SIZE = 1000;
+
+    private static final long   TIMEOUT_SECONDS  = 10;
+
+    private TcpLoopbackCheck() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<MessageType, PayloadCodec<?>> payloadCodecs = MessageCodecs.payloadCodecs();
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        TcpChannel hub = new TcpChannel(Role.HUB, new InetSocketAddress(loopback, 0), Collections.singleton(DISPATCHER_ID), payloadCodecs,
+                BUFFER_SIZE, 0);
+        TcpChannel client = null;
+        try {
+            client = new TcpChannel(Role.CLIENT, new InetSocketAddress(loopback, hub.getLocalPort()), Collections.<Long> emptySet(), payloadCodecs,
+                    BUFFER_SIZE, TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+            checkRoundTrip(client, hub, DRONE_ID, DISPATCHER_ID);
+            // the drone becomes known to the hub when its inbox is first read
+            checkRoundTrip(hub, client, DISPATCHER_ID, DRONE_ID);
+            checkUnencodable(client);
+            checkCorruptFrame(hub.getLocalPort());
+            checkRoundTrip(client, hub, DRONE_ID, DISPATCHER_ID);
+            LOG.info("TcpChannel loopback check passed.");
+        } finally {
+            if (client != null) {
+                client.close();
+            }
+            hub.close();
+        }
+    }
+
+    private static void checkRoundTrip(Channel from, Channel to, Long senderId, Long receiverId) {
+        List<Envelope> sent = envelopes(senderId, receiverId);
+        List<String> expected = new ArrayList<>();
+        for (Envelope envelope : sent) {
+            expected.add(describe(envelope));
+        }
+        from.sendAll(sent);
+        List<Envelope> received = receive(to, receiverId, sent.size());
+        for (int i = 0; i < sent.size(); i++) {
+            String actual = describe(received.get(i));
+            if (!expected.get(i).equals(actual)) {
+                throw new IllegalStateException("envelope sent as :: " + expected.get(i) + " received as :: " + actual);
+            }
+        }
+        LOG.info(sent.size() + " envelopes from :: " + senderId + " to :: " + receiverId + " received unchanged.");
+    }
+
+    private static List<Envelope> receive(Channel channel, Long receiverId, int count) {
+        List<Envelope> received = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (received.size() < count) {
+            long timeout = deadline - System.nanoTime();
+            if (timeout <= 0) {
+                throw new IllegalStateException(received.size() + " of " + count + " envelopes received by :: " + receiverId);
+            }
+            channel.drainTo(receiverId, received, count - received.size(), timeout, TimeUnit.NANOSECONDS);
+        }
+        return received;
+    }
+
+    private static void checkUnencodable(Channel channel) {
+        try {
+            channel.sendMessage(new Envelope(DRONE_ID, DISPATCHER_ID, MessageType.DRONE_HANDOVER, new Object()));
+        } catch (IllegalArgumentException e) {
+            LOG.info("envelope without a payload codec refused :: " + e.getMessage());
+            return;
+        }
+        throw new IllegalStateException("envelope without a payload codec was sent");
+    }
+
+    /**
+     * Connects to the hub and sends it an envelope frame of an unknown message
+     * type, which it must answer by closing the connection.
+     */
+    private static void checkCorruptFrame(int port) throws IOException {
+        LOG.info("sending a corrupt frame, the hub warns about it.");
+        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port))) {
+            ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 1);
+            // length, envelope frame, message type
+            frame.putInt(1 + 1).put((byte) 0).put((byte) -1);
+            frame.flip();
+            socket.write(frame);
+            socket.socket().setSoTimeout((int) TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+            if (socket.socket().getInputStream().read() >= 0) {
+                throw new IllegalStateException("hub answered a corrupt frame");
+            }
+        }
+    }
+
+    /**
+     * @return an envelope of each message type without payload and at least
+     *         one of each payload with a codec, the edge cases of the
+     *         payloads included
+     */
+    private static List<Envelope> envelopes(Long senderId, Long receiverId) {
+        List<Envelope> envelopes = new ArrayList<>();
+        Set<MessageType> withPayload = MessageCodecs.payloadCodecs().keySet();
+        for (MessageType type : EnumSet.complementOf(EnumSet.copyOf(withPayload))) {
+            envelopes.add(new Envelope(senderId, receiverId, type));
+        }
+        envelopes.add(new Envelope(senderId, receiverId, MessageType.DRONE_ACTIVE, 16));
+        envelopes.add(new Envelope(senderId, receiverId, MessageType.CAPACITY_AVAILABLE, Integer.MAX_VALUE));
+        envelopes.add(new Envelope(senderId, receiverId, MessageType.DISPATCHER_CHANGED, Long.MIN_VALUE));
+        envelopes.add(new Envelope(senderId, receiverId, MessageType.DRONE_REGISTERED, "routes/Stra\u00dfe 5937.csv"));
+        envelopes.add(new Envelope(senderId, receiverId, MessageType.WAYPOINT, wayPoints(3)));
+        WayPointBatch partlyConsumed = wayPoints(5);
+        partlyConsumed.poll();
+        envelopes.add(new Envelope(senderId, receiverId, MessageType.WAYPOINT, partlyConsumed));
+        envelopes.add(new Envelope(senderId, receiverId, MessageType.WAYPOINT, wayPoints(LARGE_BATCH_SIZE)));
+        envelopes.add(new Envelope(senderId, receiverId, MessageType.WAYPOINT_ACK, new WayPointAck(3, 13, wayPoints(0))));
+        envelopes.add(new Envelope(senderId, receiverId, MessageType.WAYPOINT_ACK, new WayPointAck(0, 0, wayPoints(2))));
+        envelopes.add(new Envelope(senderId, receiverId, MessageType.TRAFFIC_REPORT, new TrafficReport(DRONE_ID, 1300000000123L, new Location(51.5033,
+                -0.1195), 12.5, Congestion.MODERATE)));
+        envelopes.add(new Envelope(senderId, receiverId, MessageType.TRAFFIC_REPORT, new TrafficReport(DRONE_ID, 1300000000456L, new Location(51.5033,
+                -0.1195), null, null)));
+        envelopes.add(new Envelope(senderId, receiverId, MessageType.ASSERT_TUBE_NEARBY_REQUEST, new ProximityQuery(7, wayPoints(4), null)));
+        envelopes.add(new Envelope(senderId, receiverId, MessageType.ASSERT_TUBE_NEARBY_REQUEST, new ProximityQuery(8, wayPoints(4),
+                new int[] { 1, 3 })));
+        envelopes.add(new Envelope(senderId, receiverId, MessageType.ASSERT_TUBE_NEARBY_RESPONSE, new ProximityResponse(8, new int[] { 1, 3 },
+                new boolean[] { true, false })));
+        Set<MessageType> covered = EnumSet.noneOf(MessageType.class);
+        for (Envelope envelope : envelopes) {
+            if (envelope.getMessage() != null) {
+                covered.add(envelope.getType());
+            }
+        }
+        if (!covered.equals(withPayload)) {
+            throw new IllegalStateException("no envelope checks the payloads of :: " + EnumSet.complementOf(EnumSet.copyOf(covered)));
+        }
+        return envelopes;
+    }
+
+    private static WayPointBatch wayPoints(int size) {
+        double[] latitudes = new double[size];
+        double[] longitudes = new double[size];
+        long[] times = new long[size];
+        for (int i = 0; i < size; i++) {
+            latitudes[i] = 51.5 + i * 1e-4;
+            longitudes[i] = -0.1 - i * 1e-4;
+            times[i] = 1300000000000L + i * 1000;
+        }
+        return new WayPointBatch(latitudes, longitudes, times, 0, size);
+    }
+
+    private static String describe(Envelope envelope) {
+        return envelope.getType() + " from " + envelope.getSenderId() + " to " + envelope.getReceiverId() + " :: " + describe(envelope.getMessage());
+    }
+
+    private static String describe(Object message) {
+        if (message == null) {
+            return "null";
+        }
+        if (message instanceof WayPointBatch) {
+            WayPointBatch wayPoints = (WayPointBatch) message;
+            StringBuilder description = new StringBuilder("WayPointBatch [");
+            for (int i = 0; i < wayPoints.size(); i++) {
+                description.append(i == 0 ? "" : ", ").append(wayPoints.getLatitude(i)).append(' ').append(wayPoints.getLongitude(i)).append(' ')
+                        .append(wayPoints.getTime(i));
+            }
+            return description.append(']').toString();
+        }
+        if (message instanceof WayPointAck) {
+            WayPointAck ack = (WayPointAck) message;
+            return "WayPointAck [accepted=" + ack.getAccepted() + ", freeCapacity=" + ack.getFreeCapacity() + ", rejected="
+                    + describe(ack.getRejected()) + "]";
+        }
+        if (message instanceof TrafficReport) {
+            TrafficReport report = (TrafficReport) message;
+            return "TrafficReport [droneId=" + report.getDroneId() + ", time=" + report.getTime() + ", latitude=" + report.getLocation().getLatitude()
+                    + ", longitude=" + report.getLocation().getLongitude() + ", speed=" + report.getSpeed() + ", congestion=" + report.getCongestion()
+                    + "]";
+        }
+        if (message instanceof ProximityQuery) {
+            ProximityQuery query = (ProximityQuery) message;
+            return "ProximityQuery [requestId=" + query.getRequestId() + ", indexes=" + Arrays.toString(query.getIndexes()) + ", wayPoints="
+                    + describe(query.getWayPoints()) + "]";
+        }
+        if (message instanceof ProximityResponse) {
+            ProximityResponse response = (ProximityResponse) message;
+            StringBuilder description = new StringBuilder("ProximityResponse [requestId=").append(response.getRequestId());
+            for (int i = 0; i < response.size(); i++) {
+                description.append(", ").append(response.indexAt(i)).append('=').append(response.isNearby(i));
+            }
+            return description.append(']').toString();
+        }
+        return message.getClass().getSimpleName() + " [" + message + "]";
+    }
+
+}
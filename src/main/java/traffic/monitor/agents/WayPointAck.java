@@ -0,0 +1,46 @@
+package traffic.monitor.agents;
+
+import traffic.monitor.data.WayPointBatch;
+
+/**
+ * Reply of a drone to a batch of waypoints. The drone keeps as many waypoints
+ * as fit in its memory and sends the others back, along with the free memory
+ * it has left, which the dispatcher uses as the size of the next batch.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+class WayPointAck {
+
+    private final int           accepted;
+
+    private final int           freeCapacity;
+
+    private final WayPointBatch rejected;
+
+    WayPointAck(int accepted, int freeCapacity, WayPointBatch rejected) {
+        this.accepted = accepted;
+        this.freeCapacity = freeCapacity;
+        this.rejected = rejected;
+    }
+
+    int getAccepted() {
+        return accepted;
+    }
+
+    int getFreeCapacity() {
+        return freeCapacity;
+    }
+
+    /**
+     * @return the waypoints that did not fit, empty for a full ack
+     */
+    WayPointBatch getRejected() {
+        return rejected;
+    }
+
+    boolean isNack() {
+        return !rejected.isEmpty();
+    }
+
+}
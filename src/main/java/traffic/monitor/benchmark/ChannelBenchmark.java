@@ -0,0 +1,178 @@
+package traffic.monitor.benchmark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.log4j.Logger;
+
+import traffic.monitor.agents.MessageCodecs;
+import traffic.monitor.communication.Channel;
+import traffic.monitor.communication.Envelope;
+import traffic.monitor.communication.Envelope.MessageType;
+import traffic.monitor.communication.InMemoryChannel;
+import traffic.monitor.communication.RingBufferChannel;
+import traffic.monitor.communication.TcpChannel;
+import traffic.monitor.communication.WaitStrategy;
+
+/**
+ * Compares the channel implementations on the two traffic patterns of the
+ * simulation: many drones sending to the dispatcher inbox (throughput), and a
+ * drone waiting for the answer to its request (round trip latency). The
+ * {@link TcpChannel} runs over the loopback interface, the drones on a client
+ * of the hub of the dispatcher, both in this process.
+ * 
+ * Usage: ChannelBenchmark [producers] [messagesPerProducer] [roundTrips]
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public final class ChannelBenchmark {
+
+    private static final Logger LOG           = Logger.getLogger(ChannelBenchmark.class);
+
+    private static final Long   DISPATCHER_ID = 1L;
+
+    private static final Long   DRONE_ID      = 2L;
+
+    private static final int    BATCH_SIZE    = 256;
+
+    private ChannelBenchmark() {
+    }
+
+    public static void main(final String[] args) throws InterruptedException, IOException {
+        int producers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int messagesPerProducer = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        int roundTrips = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+
+        List<String> names = new ArrayList<>();
+        names.add("InMemoryChannel");
+        for (WaitStrategy waitStrategy : WaitStrategy.values()) {
+            names.add("RingBufferChannel " + waitStrategy);
+        }
+        names.add("TcpChannel loopback");
+        for (String name : names) {
+            // first run warms up the JIT
+            throughput(channels(name), producers, messagesPerProducer / 10);
+            long messagesPerSecond = throughput(channels(name), producers, messagesPerProducer);
+            latency(channels(name), roundTrips / 10);
+            long[] roundTripNanos = latency(channels(name), roundTrips);
+            LOG.info(name + " :: " + producers + " producers " + messagesPerSecond + " msg/s, round trip p50 " + percentile(roundTripNanos, 0.5)
+                    + " ns, p99 " + percentile(roundTripNanos, 0.99) + " ns, p99.9 " + percentile(roundTripNanos, 0.999) + " ns");
+        }
+    }
+
+    /**
+     * @return the channel of the dispatcher and the channel of the drones,
+     *         the same but for the {@link TcpChannel}
+     */
+    private static Channel[] channels(String name) {
+        if (name.startsWith("RingBufferChannel")) {
+            WaitStrategy waitStrategy = WaitStrategy.valueOf(name.substring(name.indexOf(' ') + 1));
+            Channel channel = new RingBufferChannel(Collections.singleton(DISPATCHER_ID), 65536, 64, waitStrategy);
+            return new Channel[] { channel, channel };
+        }
+        if (name.startsWith("TcpChannel")) {
+            TcpChannel hub = new TcpChannel(TcpChannel.Role.HUB, new InetSocketAddress("127.0.0.1", 0), Collections.singleton(DISPATCHER_ID),
+                    MessageCodecs.payloadCodecs(), 65536, 0);
+            TcpChannel client = new TcpChannel(TcpChannel.Role.CLIENT, new InetSocketAddress("127.0.0.1", hub.getLocalPort()),
+                    Collections.<Long> emptyList(), MessageCodecs.payloadCodecs(), 65536, 1000);
+            return new Channel[] { hub, client };
+        }
+        Channel channel = new InMemoryChannel();
+        return new Channel[] { channel, channel };
+    }
+
+    /**
+     * @return messages received per second by the single consumer
+     */
+    private static long throughput(Channel[] channels, int producers, final int messagesPerProducer) throws InterruptedException, IOException {
+        Channel channel = channels[0];
+        final Channel droneChannel = channels[1];
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final Long senderId = DRONE_ID + p;
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    Envelope envelope = new Envelope(senderId, DISPATCHER_ID, MessageType.TRAFFIC_REPORT);
+                    awaitQuietly(start);
+                    for (int i = 0; i < messagesPerProducer; i++) {
+                        droneChannel.sendMessage(envelope);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        long total = (long) producers * messagesPerProducer;
+        List<Envelope> inbox = new ArrayList<>(BATCH_SIZE);
+        long begin = System.nanoTime();
+        start.countDown();
+        for (long received = 0; received < total;) {
+            received += channel.drainTo(DISPATCHER_ID, inbox, BATCH_SIZE);
+            inbox.clear();
+        }
+        long elapsed = System.nanoTime() - begin;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        close(channels);
+        return total * 1000000000L / Math.max(elapsed, 1);
+    }
+
+    /**
+     * @return the sorted round trip times, in nanoseconds
+     */
+    private static long[] latency(Channel[] channels, final int roundTrips) throws InterruptedException, IOException {
+        final Channel channel = channels[0];
+        Channel droneChannel = channels[1];
+        Thread dispatcher = new Thread(new Runnable() {
+            public void run() {
+                Envelope response = new Envelope(DISPATCHER_ID, DRONE_ID, MessageType.ASSERT_TUBE_NEARBY_RESPONSE);
+                for (int i = 0; i < roundTrips; i++) {
+                    channel.retreiveMessage(DISPATCHER_ID);
+                    channel.sendMessage(response);
+                }
+            }
+        });
+        dispatcher.start();
+        Envelope request = new Envelope(DRONE_ID, DISPATCHER_ID, MessageType.ASSERT_TUBE_NEARBY_REQUEST);
+        long[] roundTripNanos = new long[roundTrips];
+        for (int i = 0; i < roundTrips; i++) {
+            long begin = System.nanoTime();
+            droneChannel.sendMessage(request);
+            droneChannel.retreiveMessage(DRONE_ID);
+            roundTripNanos[i] = System.nanoTime() - begin;
+        }
+        dispatcher.join();
+        close(channels);
+        Arrays.sort(roundTripNanos);
+        return roundTripNanos;
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))];
+    }
+
+    private static void close(Channel[] channels) throws IOException {
+        for (Channel channel : channels) {
+            if (channel instanceof Closeable) {
+                ((Closeable) channel).close();
+            }
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
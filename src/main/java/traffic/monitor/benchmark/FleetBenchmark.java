@@ -0,0 +1,133 @@
+package traffic.monitor.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import traffic.monitor.agents.DispatcherCluster;
+import traffic.monitor.bootstrap.ApplicationContext;
+import traffic.monitor.metrics.Metrics;
+import traffic.monitor.util.DateUtil;
+
+/**
+ * Runs a whole simulation over a synthetic fleet written by the
+ * {@link FleetGenerator} to a temporary directory, removed afterwards, and
+ * measures the waypoints visited and the reports saved per second, the
+ * latency of the proximity queries, the peak heap usage and the time spent
+ * collecting garbage. Times run from the start of the application context,
+ * loading the routes included, to the end of the simulation.
+ * 
+ * The rest of the configuration comes from application.properties and can be
+ * overridden with system properties, such as -Ddispatcher.shards=4 or
+ * -Dsimulation.clock=discrete.event. The lines logged for every drone and
+ * every route file are turned off.
+ * 
+ * Usage: FleetBenchmark [drones] [wayPointIntervalSeconds] [spanMinutes]
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public final class FleetBenchmark {
+
+    private static final Logger LOG  = Logger.getLogger(FleetBenchmark.class);
+
+    private static final long   SEED = 42;
+
+    private FleetBenchmark() {
+    }
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        int drones = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int wayPointIntervalSeconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int spanMinutes = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        long start = DateUtil.parseEpochMillis(FleetGenerator.DEFAULT_START);
+
+        File directory = Files.createTempDirectory("fleet").toFile();
+        try {
+            long wayPoints = FleetGenerator.generate(directory, drones, wayPointIntervalSeconds, spanMinutes, start, SEED);
+            System.setProperty("routes.directory", directory.getPath());
+            System.setProperty("routes.file.glob", "*.csv");
+            System.setProperty("simulation.end.date", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(start + spanMinutes * 60000L)));
+            Logger.getLogger("traffic.monitor.agents").setLevel(Level.WARN);
+            Logger.getLogger("traffic.monitor.util").setLevel(Level.WARN);
+            run(drones, wayPoints);
+        } finally {
+            for (File route : directory.listFiles()) {
+                route.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private static void run(int drones, long wayPoints) throws InterruptedException {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+        long gcCount = -gcCount();
+        long gcMillis = -gcMillis();
+        long startNanos = System.nanoTime();
+
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext(ApplicationContext.class);
+        try {
+            context.getBean(DispatcherCluster.class).awaitCompletion();
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            gcCount += gcCount();
+            gcMillis += gcMillis();
+            Metrics metrics = context.getBean(Metrics.class);
+            Map<String, Long> proximity = metrics.getProximityRoundTripMicros();
+
+            LOG.info(drones + " drones, " + wayPoints + " waypoints generated, simulation took " + String.format("%.2f", seconds) + " s");
+            LOG.info(metrics.getWayPointsVisited() + " waypoints visited, " + Math.round(metrics.getWayPointsVisited() / seconds) + " waypoints/s");
+            LOG.info(metrics.getReportsSaved() + " reports saved, " + Math.round(metrics.getReportsSaved() / seconds) + " reports/s");
+            LOG.info("proximity round trip :: p50 " + proximity.get("p50") + " us, p99 " + proximity.get("p99") + " us, max " + proximity.get("max")
+                    + " us");
+            LOG.info("peak heap :: " + (peakHeap() >> 20) + " MB, gc :: " + gcCount + " collections, " + gcMillis + " ms ("
+                    + String.format("%.1f", gcMillis / 10.0 / seconds) + "% of the time)");
+        } finally {
+            context.close();
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(collector.getCollectionCount(), 0);
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(collector.getCollectionTime(), 0);
+        }
+        return millis;
+    }
+
+    /**
+     * @return the sum of the peak usages of the heap pools, in bytes
+     */
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+}
@@ -0,0 +1,175 @@
+package traffic.monitor.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import traffic.monitor.data.GeoDistance;
+import traffic.monitor.data.Location;
+import traffic.monitor.util.DateUtil;
+import traffic.monitor.util.FileUtil;
+import traffic.monitor.util.FileUtil.LineParser;
+
+/**
+ * Generates the routes of a synthetic fleet of drones over London, in the
+ * format of the bundled route files, one file per drone. Every drone takes
+ * off near a tube station and follows the traffic: it drives along a heading
+ * at a speed drifting between standstill and 30 mph, turns at junctions and
+ * stops now and then, a waypoint being recorded every interval, give or take
+ * half of it. Drones turn back at the edges of Greater London. Routes only
+ * depend on the seed and on the drone identifier.
+ * 
+ * Usage: FleetGenerator directory [drones] [wayPointIntervalSeconds]
+ * [spanMinutes] [start] [seed]
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public final class FleetGenerator {
+
+    /**
+     * Identifier of the first drone, far from the identifiers of the
+     * dispatcher shards.
+     */
+    public static final long    FIRST_DRONE_ID         = 10000;
+
+    public static final String  DEFAULT_START          = "2011-03-22 07:50:00";
+
+    private static final Logger LOG                    = Logger.getLogger(FleetGenerator.class);
+
+    private static final String TUBE_STATIONS_FILE     = "tube.csv";
+
+    private static final double MIN_LATITUDE           = 51.29;
+
+    private static final double MAX_LATITUDE           = 51.69;
+
+    private static final double MIN_LONGITUDE          = -0.51;
+
+    private static final double MAX_LONGITUDE          = 0.33;
+
+    /**
+     * Largest distance between a drone and the tube station it takes off
+     * from.
+     */
+    private static final double TAKE_OFF_RADIUS        = 500;
+
+    /**
+     * 30 mph, in metres per second.
+     */
+    private static final double MAX_SPEED              = 13.4;
+
+    private static final double SPEED_DRIFT            = 2;
+
+    private static final double TURN_PROBABILITY       = 0.2;
+
+    private static final double STOP_PROBABILITY       = 0.1;
+
+    private static final double HEADING_DRIFT_DEGREES  = 10;
+
+    private FleetGenerator() {
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: FleetGenerator directory [drones] [wayPointIntervalSeconds] [spanMinutes] [start] [seed]");
+            System.exit(1);
+        }
+        File directory = new File(args[0]);
+        int drones = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int wayPointIntervalSeconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int spanMinutes = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        long start = DateUtil.parseEpochMillis(args.length > 4 ? args[4] : DEFAULT_START);
+        long seed = args.length > 5 ? Long.parseLong(args[5]) : 42;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new RuntimeException("unable to create the routes directory " + directory);
+        }
+        generate(directory, drones, wayPointIntervalSeconds, spanMinutes, start, seed);
+    }
+
+    /**
+     * Writes the route files of the drones in the directory.
+     * 
+     * @param startMillis
+     *            time the drones take off, milliseconds since the epoch
+     * @return the number of waypoints written
+     */
+    public static long generate(File directory, int drones, int wayPointIntervalSeconds, int spanMinutes, long startMillis, long seed)
+            throws IOException {
+        if (drones < 0 || wayPointIntervalSeconds < 1 || spanMinutes < 1) {
+            throw new IllegalArgumentException("invalid fleet of " + drones + " drones over " + spanMinutes + " minutes, a waypoint every "
+                    + wayPointIntervalSeconds + " s");
+        }
+        List<Location> tubeStations = FileUtil.parseFileLineByLine(TUBE_STATIONS_FILE, ",", new LineParser<Location>() {
+            @Override
+            public Location deserialize(String[] tokens) {
+                return new Location(Double.valueOf(tokens[1]), Double.valueOf(tokens[2]));
+            }
+        });
+        SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        long endMillis = startMillis + spanMinutes * 60000L;
+        long wayPoints = 0;
+        for (long droneId = FIRST_DRONE_ID; droneId < FIRST_DRONE_ID + drones; droneId++) {
+            try (Writer route = new BufferedWriter(new FileWriter(new File(directory, droneId + ".csv")))) {
+                wayPoints += writeRoute(route, droneId, tubeStations, wayPointIntervalSeconds, startMillis, endMillis, new Random(seed ^ droneId),
+                        timeFormat);
+            }
+        }
+        LOG.info(drones + " routes of " + wayPoints + " waypoints generated in :: " + directory.getAbsolutePath());
+        return wayPoints;
+    }
+
+    private static long writeRoute(Writer route, long droneId, List<Location> tubeStations, int wayPointIntervalSeconds, long startMillis,
+            long endMillis, Random random, SimpleDateFormat timeFormat) throws IOException {
+        Location takeOff = tubeStations.get(random.nextInt(tubeStations.size()));
+        double latitude = takeOff.getLatitude() + (random.nextDouble() * 2 - 1) * TAKE_OFF_RADIUS / GeoDistance.METRES_PER_DEGREE;
+        double longitude = takeOff.getLongitude() + (random.nextDouble() * 2 - 1) * TAKE_OFF_RADIUS / metresPerLongitudeDegree(latitude);
+        double heading = random.nextDouble() * 2 * Math.PI;
+        double speed = random.nextDouble() * MAX_SPEED;
+        long time = startMillis + (long) (random.nextDouble() * wayPointIntervalSeconds) * 1000;
+        long wayPoints = 0;
+        while (time < endMillis) {
+            route.write(droneId + ",\"" + String.format(Locale.ROOT, "%.6f", latitude) + "\",\"" + String.format(Locale.ROOT, "%.6f", longitude)
+                    + "\",\"" + timeFormat.format(new Date(time)) + "\"\n");
+            wayPoints++;
+
+            long elapsedSeconds = Math.max(1, Math.round(wayPointIntervalSeconds * (0.5 + random.nextDouble())));
+            time += elapsedSeconds * 1000;
+            if (random.nextDouble() < STOP_PROBABILITY) {
+                // held at a red light or in a queue
+                speed = 0;
+                continue;
+            }
+            speed = Math.min(Math.max(speed + random.nextGaussian() * SPEED_DRIFT, 0), MAX_SPEED);
+            if (random.nextDouble() < TURN_PROBABILITY) {
+                heading += random.nextBoolean() ? Math.PI / 2 : -Math.PI / 2;
+            } else {
+                heading += Math.toRadians(random.nextGaussian() * HEADING_DRIFT_DEGREES);
+            }
+            double distance = speed * elapsedSeconds;
+            double nextLatitude = latitude + distance * Math.cos(heading) / GeoDistance.METRES_PER_DEGREE;
+            double nextLongitude = longitude + distance * Math.sin(heading) / metresPerLongitudeDegree(latitude);
+            if (nextLatitude < MIN_LATITUDE || nextLatitude > MAX_LATITUDE || nextLongitude < MIN_LONGITUDE || nextLongitude > MAX_LONGITUDE) {
+                // turns back at the edge of the map
+                heading += Math.PI;
+                continue;
+            }
+            latitude = nextLatitude;
+            longitude = nextLongitude;
+        }
+        return wayPoints;
+    }
+
+    private static double metresPerLongitudeDegree(double latitude) {
+        return GeoDistance.METRES_PER_DEGREE * GeoDistance.cosLatitude(latitude);
+    }
+
+}
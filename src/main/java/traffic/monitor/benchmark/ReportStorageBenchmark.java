@@ -0,0 +1,118 @@
+package traffic.monitor.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import traffic.monitor.data.InMemoryTrafficReportRepository;
+import traffic.monitor.data.Location;
+import traffic.monitor.data.Repository;
+import traffic.monitor.data.SegmentLogTrafficReportRepository;
+import traffic.monitor.data.TrafficReport;
+
+/**
+ * Measures how fast reports are saved by the in-memory repository and by the
+ * segment log, then how long the segment log takes to rebuild its indexes
+ * when reopened. The reopened log is checked to hold every saved report. The
+ * segments are written to a temporary directory removed afterwards. Finally
+ * the reports made around random locations during the last minutes of the
+ * sample are looked up.
+ * 
+ * The JMH ReportRepositoryBenchmark of the benchmarks module only measures
+ * single saves to the in-memory repository. This one is kept for what does
+ * not fit a JMH iteration: the segment files, the recovery with its check
+ * that no report is lost, and the queries over a repository filled once.
+ * 
+ * Usage: ReportStorageBenchmark [reports] [drones] [segmentSize]
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public final class ReportStorageBenchmark {
+
+    private static final Logger LOG                    = Logger.getLogger(ReportStorageBenchmark.class);
+
+    private static final long   COMMIT_INTERVAL_MILLIS = 50;
+
+    private static final int    QUERIES                = 10000;
+
+    private static final double QUERY_RADIUS           = 350;
+
+    private static final long   QUERY_PERIOD_MILLIS    = 10 * 60000;
+
+    private ReportStorageBenchmark() {
+    }
+
+    public static void main(final String[] args) throws IOException {
+        int reports = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+        int drones = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        long segmentSize = args.length > 2 ? Long.parseLong(args[2]) : 64L << 20;
+        TrafficReport[] sample = sample(reports, drones);
+
+        InMemoryTrafficReportRepository inMemoryRepo = new InMemoryTrafficReportRepository();
+        LOG.info("in memory :: " + reportsPerMinute(inMemoryRepo, sample) + " reports/min");
+
+        File directory = Files.createTempDirectory("reports").toFile();
+        try {
+            SegmentLogTrafficReportRepository log = new SegmentLogTrafficReportRepository(directory.getPath(), segmentSize, COMMIT_INTERVAL_MILLIS,
+                    new InMemoryTrafficReportRepository());
+            LOG.info("segment log :: " + reportsPerMinute(log, sample) + " reports/min, " + directory.list().length + " segments");
+            log.close();
+
+            long start = System.nanoTime();
+            SegmentLogTrafficReportRepository reopened = new SegmentLogTrafficReportRepository(directory.getPath(), segmentSize,
+                    COMMIT_INTERVAL_MILLIS, new InMemoryTrafficReportRepository());
+            long recoveryMillis = (System.nanoTime() - start) / 1000000;
+            if (reopened.count() != reports) {
+                throw new IllegalStateException("recovered " + reopened.count() + " reports out of " + reports);
+            }
+            LOG.info("segment log recovery :: " + reports + " reports in " + recoveryMillis + " ms");
+            reopened.close();
+        } finally {
+            for (File segment : directory.listFiles()) {
+                segment.delete();
+            }
+            directory.delete();
+        }
+
+        Random random = new Random(7);
+        long to = sample[sample.length - 1].getTime() + 1;
+        long found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < QUERIES; i++) {
+            found += inMemoryRepo.findWithin(randomLocation(random), QUERY_RADIUS, to - QUERY_PERIOD_MILLIS, to).size();
+        }
+        long queryMicros = (System.nanoTime() - start) / 1000 / QUERIES;
+        LOG.info("reports within " + QUERY_RADIUS + " m over the last " + QUERY_PERIOD_MILLIS / 60000 + " minutes :: " + queryMicros + " us/query, "
+                + found / QUERIES + " reports/query");
+    }
+
+    private static TrafficReport[] sample(int reports, int drones) {
+        Random random = new Random(42);
+        TrafficReport[] sample = new TrafficReport[reports];
+        long time = System.currentTimeMillis();
+        for (int i = 0; i < reports; i++) {
+            sample[i] = TrafficReport.randomInstance(Long.valueOf(random.nextInt(drones)), time + i * 10L, randomLocation(random), random);
+        }
+        return sample;
+    }
+
+    /**
+     * @return a location in the Greater London area
+     */
+    private static Location randomLocation(Random random) {
+        return new Location(51.3 + random.nextDouble() * 0.4, -0.5 + random.nextDouble() * 0.7);
+    }
+
+    private static long reportsPerMinute(Repository<TrafficReport> repository, TrafficReport[] sample) {
+        long start = System.nanoTime();
+        for (TrafficReport report : sample) {
+            repository.save(report);
+        }
+        long elapsed = Math.max(System.nanoTime() - start, 1);
+        return sample.length * 60000000000L / elapsed;
+    }
+}
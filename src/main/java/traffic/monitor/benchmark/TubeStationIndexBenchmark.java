@@ -0,0 +1,123 @@
+package traffic.monitor.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import traffic.monitor.data.GridTubeStationIndex;
+import traffic.monitor.data.LinearScanTubeStationIndex;
+import traffic.monitor.data.Location;
+import traffic.monitor.data.TubeStationIndex;
+import traffic.monitor.util.FileUtil;
+import traffic.monitor.util.FileUtil.LineParser;
+
+/**
+ * Compares the grid based tube station index with the linear scan it
+ * replaced, using the bundled stations and waypoints plus uniformly random
+ * locations over London. Answers of both indexes are cross checked before any
+ * timing is reported.
+ * 
+ * Usage: TubeStationIndexBenchmark [radius in metres...]
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public final class TubeStationIndexBenchmark {
+
+    private static final Logger LOG               = Logger.getLogger(TubeStationIndexBenchmark.class);
+
+    private static final int    RANDOM_QUERIES    = 100000;
+
+    private static final int    WARMUP_ROUNDS     = 5;
+
+    private static final int    MEASURED_ROUNDS   = 10;
+
+    private static final double[] DEFAULT_RADIUSES = { 100, 350, 1000, 5000 };
+
+    private TubeStationIndexBenchmark() {
+    }
+
+    public static void main(final String[] args) {
+        List<Location> stations = FileUtil.parseFileLineByLine("tube.csv", ",", new LineParser<Location>() {
+            @Override
+            public Location deserialize(String[] tokens) {
+                return new Location(Double.valueOf(tokens[1]), Double.valueOf(tokens[2]));
+            }
+        });
+        Location[] queries = queries();
+        double[] radiuses = DEFAULT_RADIUSES;
+        if (args.length > 0) {
+            radiuses = new double[args.length];
+            for (int i = 0; i < args.length; i++) {
+                radiuses[i] = Double.parseDouble(args[i]);
+            }
+        }
+
+        TubeStationIndex linear = new LinearScanTubeStationIndex(stations);
+        TubeStationIndex grid = new GridTubeStationIndex(stations);
+        verify(linear, grid, queries, radiuses);
+
+        for (double radius : radiuses) {
+            LOG.info("anyWithin(" + radius + ") linear :: " + nanosPerQuery(linear, queries, radius) + " ns/query, grid :: "
+                    + nanosPerQuery(grid, queries, radius) + " ns/query");
+        }
+        LOG.info("nearest linear :: " + nanosPerQuery(linear, queries, -1) + " ns/query, grid :: " + nanosPerQuery(grid, queries, -1) + " ns/query");
+    }
+
+    private static Location[] queries() {
+        LineParser<Location> lp = new LineParser<Location>() {
+            @Override
+            public Location deserialize(String[] tokens) {
+                return new Location(Double.valueOf(tokens[1].replaceAll("\"", "")), Double.valueOf(tokens[2].replaceAll("\"", "")));
+            }
+        };
+        List<Location> queries = new ArrayList<>();
+        queries.addAll(FileUtil.parseFileLineByLine("5937.csv", ",", lp));
+        queries.addAll(FileUtil.parseFileLineByLine("6043.csv", ",", lp));
+        Random random = new Random(42);
+        for (int i = 0; i < RANDOM_QUERIES; i++) {
+            queries.add(new Location(51.28 + random.nextDouble() * 0.42, -0.51 + random.nextDouble() * 0.84));
+        }
+        return queries.toArray(new Location[queries.size()]);
+    }
+
+    private static void verify(TubeStationIndex expected, TubeStationIndex actual, Location[] queries, double[] radiuses) {
+        for (Location query : queries) {
+            if (!expected.nearest(query).equals(actual.nearest(query))) {
+                throw new IllegalStateException("nearest station mismatch for :: " + query);
+            }
+            for (double radius : radiuses) {
+                if (expected.anyWithin(query, radius) != actual.anyWithin(query, radius)) {
+                    throw new IllegalStateException("proximity mismatch for :: " + query + " and radius " + radius);
+                }
+            }
+        }
+    }
+
+    /**
+     * A negative radius measures nearest station lookups.
+     */
+    private static long nanosPerQuery(TubeStationIndex index, Location[] queries, double radius) {
+        int hits = 0;
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (Location query : queries) {
+                if (radius < 0 ? index.nearest(query) != null : index.anyWithin(query, radius)) {
+                    hits++;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            if (round >= WARMUP_ROUNDS) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        // keeps the JIT from discarding the query results
+        if (hits == -1) {
+            LOG.info(hits);
+        }
+        return best / queries.length;
+    }
+}
@@ -1,49 +1,160 @@
 package traffic.monitor.bootstrap;
 
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import javax.annotation.Resource;
 
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.core.env.Environment;
 
-import traffic.monitor.agents.Dispatcher;
-import traffic.monitor.agents.Drone;
+import traffic.monitor.agents.AgentScheduler;
+import traffic.monitor.agents.DispatcherCluster;
+import traffic.monitor.agents.FleetRegistry;
+import traffic.monitor.agents.MessageCodecs;
 import traffic.monitor.communication.Channel;
 import traffic.monitor.communication.InMemoryChannel;
+import traffic.monitor.communication.MeteredChannel;
+import traffic.monitor.communication.RingBufferChannel;
+import traffic.monitor.communication.TcpChannel;
+import traffic.monitor.communication.WaitStrategy;
+import traffic.monitor.communication.WorkTrackingChannel;
+import traffic.monitor.data.CongestionAggregator;
 import traffic.monitor.data.InMemoryTrafficReportRepository;
 import traffic.monitor.data.Repository;
+import traffic.monitor.data.SegmentLogTrafficReportRepository;
 import traffic.monitor.data.TrafficReport;
+import traffic.monitor.metrics.Metrics;
+import traffic.monitor.simulation.DiscreteEventClock;
+import traffic.monitor.simulation.RealTimeClock;
+import traffic.monitor.simulation.SimulationClock;
+import traffic.monitor.trace.EventTracer;
 
 @Configuration
 @PropertySource("classpath:application.properties")
 public class ApplicationContext {
 
+    /**
+     * Profile of the process running the dispatcher, the drones running in
+     * processes of their own.
+     */
+    public static final String DISPATCHER_PROFILE = "dispatcher";
+
+    /**
+     * Profile of a process hosting drones only.
+     */
+    public static final String DRONES_PROFILE     = "drones";
+
     @Resource
-    private Environment env;
+    private Environment        env;
+
+    @Bean
+    @Profile("!" + DRONES_PROFILE)
+    public DispatcherCluster dispatcherCluster() {
+        return new DispatcherCluster();
+    }
 
     @Bean
-    public Dispatcher dispatcher() {
-        return new Dispatcher();
+    public AgentScheduler agentScheduler() {
+        return new AgentScheduler(env.getProperty("agent.worker.threads", Integer.class), simulationClock());
     }
 
     @Bean
+    public SimulationClock simulationClock() {
+        if (isDiscreteEventSimulation()) {
+            return new DiscreteEventClock();
+        }
+        return new RealTimeClock();
+    }
+
+    @Bean
+    @Profile("!" + DRONES_PROFILE)
     public Repository<TrafficReport> trafficReportsRepo() {
-        return new InMemoryTrafficReportRepository();
+        InMemoryTrafficReportRepository inMemoryRepo = new InMemoryTrafficReportRepository(
+                env.getProperty("repository.index.cell.size", Double.class), env.getProperty("repository.index.bucket.millis", Long.class));
+        if ("segment.log".equals(env.getProperty("repository.type"))) {
+            return new SegmentLogTrafficReportRepository(env.getProperty("repository.directory"),
+                    env.getProperty("repository.segment.size", Long.class), env.getProperty("repository.commit.interval.millis", Long.class),
+                    inMemoryRepo);
+        }
+        return inMemoryRepo;
+    }
+
+    @Bean
+    @Profile("!" + DRONES_PROFILE)
+    public CongestionAggregator congestionAggregator() {
+        return new CongestionAggregator(env.getProperty("congestion.cell.size", Double.class),
+                env.getProperty("congestion.window.millis", Long.class), env.getProperty("congestion.windows", Integer.class));
+    }
+
+    @Bean
+    public Metrics metrics() {
+        return new Metrics(env.getProperty("metrics.dump.interval.millis", Long.class), env.getProperty("max.drone.mem.capacity", Integer.class));
+    }
+
+    @Bean
+    public EventTracer eventTracer() {
+        return new EventTracer(env.getProperty("trace.file"), env.getProperty("trace.buffer.records", Integer.class),
+                env.getProperty("trace.drain.interval.millis", Long.class));
     }
 
     @Bean
     public Channel channel() {
-        return new InMemoryChannel();
+        Channel channel;
+        boolean distributed = env.acceptsProfiles(DISPATCHER_PROFILE, DRONES_PROFILE);
+        if (distributed && !"tcp".equals(env.getProperty("channel.type"))) {
+            throw new IllegalStateException("drones running in other processes than the dispatcher need channel.type=tcp");
+        }
+        if (distributed && isDiscreteEventSimulation()) {
+            throw new IllegalStateException("the discrete event clock cannot be shared by several processes");
+        }
+        if ("ring.buffer".equals(env.getProperty("channel.type"))) {
+            List<Long> shardIds = shardIds();
+            // with several shards a drone gets answers from the shards of the
+            // locations it visits, not only from its own
+            channel = new RingBufferChannel(shardIds, env.getProperty("channel.ring.dispatcher.capacity", Integer.class),
+                    env.getProperty("channel.ring.drone.capacity", Integer.class), shardIds.size() == 1,
+                    WaitStrategy.valueOf(env.getProperty("channel.ring.wait.strategy")));
+        } else if ("tcp".equals(env.getProperty("channel.type"))) {
+            InetSocketAddress address = new InetSocketAddress(env.getProperty("channel.tcp.host"),
+                    env.getProperty("channel.tcp.port", Integer.class));
+            // the dispatcher process is the hub, the processes hosting drones
+            // connect to it
+            TcpChannel.Role role = env.acceptsProfiles(DRONES_PROFILE) ? TcpChannel.Role.CLIENT : TcpChannel.Role.HUB;
+            channel = new TcpChannel(role, address, role == TcpChannel.Role.HUB ? shardIds() : Collections.<Long> emptyList(),
+                    MessageCodecs.payloadCodecs(), env.getProperty("channel.tcp.buffer.size", Integer.class),
+                    env.getProperty("channel.tcp.connect.timeout.millis", Long.class));
+        } else {
+            channel = new InMemoryChannel();
+        }
+        channel = new MeteredChannel(channel, metrics());
+        if (isDiscreteEventSimulation()) {
+            // the clock must know about the messages in transit
+            return new WorkTrackingChannel(channel, simulationClock());
+        }
+        return channel;
+    }
+
+    @Bean
+    public FleetRegistry fleetRegistry() {
+        return new FleetRegistry(!env.acceptsProfiles(DISPATCHER_PROFILE));
     }
 
-    @Bean(name = "firstDrone")
-    public Drone firstDrone() {
-        return new Drone(env.getProperty("first.drone.id", Long.class));
+    private List<Long> shardIds() {
+        int shards = DispatcherCluster.shardCount(env.getProperty("dispatcher.shards", Integer.class));
+        List<Long> shardIds = new ArrayList<>();
+        for (int shard = 0; shard < shards; shard++) {
+            shardIds.add(env.getProperty("dispatcher.id", Long.class) + shard);
+        }
+        return shardIds;
     }
 
-    @Bean(name = "secondDrone")
-    public Drone secondDrone() {
-        return new Drone(env.getProperty("second.drone.id", Long.class));
+    private boolean isDiscreteEventSimulation() {
+        return "discrete.event".equals(env.getProperty("simulation.clock"));
     }
 }
@@ -13,11 +13,12 @@ public final class Bootstrap {
     public static void main(final String[] args) {
         LOG.info("Initializing system");
 
-        try (AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext()) {
-            context.register(ApplicationContext.class);
-            context.refresh();
-            context.registerShutdownHook();
-        }
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.register(ApplicationContext.class);
+        context.refresh();
+        // the simulation runs on the threads started by the beans, which are
+        // destroyed when the JVM exits
+        context.registerShutdownHook();
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,59 @@
+package traffic.monitor.communication;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Direct buffers of a single size, kept once released to be handed out
+ * again. Direct buffers are costly to allocate and their memory is only
+ * freed when the garbage collector gets to them, so the buffers frames are
+ * encoded to and read into are reused rather than allocated per write.
+ * 
+ * Not thread safe, the pool belongs to the I/O thread of a
+ * {@link TcpChannel}.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+class BufferPool {
+
+    private final int                    bufferSize;
+
+    /**
+     * Number of released buffers kept at most, the others are left to the
+     * garbage collector.
+     */
+    private final int                    maxPooled;
+
+    private final ArrayDeque<ByteBuffer> pooled;
+
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        pooled = new ArrayDeque<>();
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return an empty buffer of the size of the pool
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = pooled.poll();
+        return buffer == null ? ByteBuffer.allocateDirect(bufferSize) : buffer;
+    }
+
+    /**
+     * Takes the buffer back, unless it was not acquired from a pool of this
+     * size.
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer.isDirect() && buffer.capacity() == bufferSize && pooled.size() < maxPooled) {
+            buffer.clear();
+            pooled.push(buffer);
+        }
+    }
+
+}
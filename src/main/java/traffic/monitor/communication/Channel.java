@@ -1,10 +1,59 @@
 package traffic.monitor.communication;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public interface Channel {
 
+    /**
+     * Callback notified after envelopes are delivered to a receiver inbox. It
+     * lets receivers run by an executor get woken up instead of blocking in
+     * {@link Channel#retreiveMessage(Long)}. The callback runs on the sender
+     * thread and must not block.
+     */
+    interface DeliveryListener {
+        void delivered(Long receiverId);
+    }
+
     void sendMessage(Envelope envelope);
 
     Envelope retreiveMessage(Long receiverId);
 
+    /**
+     * Sends a batch of envelopes, possibly addressed to different receivers.
+     * Envelopes for the same receiver are delivered in iteration order. The
+     * collection can be reused by the caller once the call returns.
+     */
+    void sendAll(Collection<Envelope> envelopes);
+
+    /**
+     * Blocks until at least one envelope is available for the receiver, then
+     * moves up to max pending envelopes into the given collection.
+     * 
+     * @return the number of envelopes added to the collection
+     */
+    int drainTo(Long receiverId, Collection<Envelope> envelopes, int max);
+
+    /**
+     * Same as {@link #drainTo(Long, Collection, int)} but gives up once the
+     * timeout expires.
+     * 
+     * @return the number of envelopes added to the collection, 0 if the
+     *         timeout expired
+     */
+    int drainTo(Long receiverId, Collection<Envelope> envelopes, int max, long timeout, TimeUnit unit);
+
+    /**
+     * Registers the listener notified of every delivery to the receiver inbox,
+     * replacing the previous one if any.
+     */
+    void setDeliveryListener(Long receiverId, DeliveryListener listener);
+
+    /**
+     * @return the number of envelopes waiting in the inbox of every receiver
+     *         known to the channel, meant for monitoring only
+     */
+    Map<Long, Integer> queueDepths();
+
 }
@@ -10,7 +10,14 @@ public class Envelope {
         WAYPOINT,
         TRAFFIC_REPORT,
         ASSERT_TUBE_NEARBY_REQUEST,
-        ASSERT_TUBE_NEARBY_RESPONSE;
+        ASSERT_TUBE_NEARBY_RESPONSE,
+        DRONE_REGISTERED,
+        DRONE_RETIRED,
+        DISPATCHER_CHANGED,
+        HANDOVER_ACK,
+        DRONE_HANDOVER,
+        WAYPOINT_ACK,
+        CAPACITY_AVAILABLE;
     }
 
     private final MessageType type;
@@ -0,0 +1,94 @@
+package traffic.monitor.communication;
+
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.Map;
+
+import traffic.monitor.communication.Envelope.MessageType;
+
+/**
+ * Binary form of the envelopes: the ordinal of the message type on one byte,
+ * the sender and receiver identifiers on eight bytes each, one byte telling
+ * whether a payload follows, then the payload written by the
+ * {@link PayloadCodec} of the message type. Envelopes of a type without a
+ * codec can only be encoded without payload.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public class EnvelopeCodec {
+
+    private static final MessageType[]                   TYPES       = MessageType.values();
+
+    private static final int                             HEADER_SIZE = 1 + 8 + 8 + 1;
+
+    private final Map<MessageType, PayloadCodec<Object>> payloadCodecs;
+
+    @SuppressWarnings("unchecked")
+    public EnvelopeCodec(Map<MessageType, ? extends PayloadCodec<?>> payloadCodecs) {
+        this.payloadCodecs = new EnumMap<>(MessageType.class);
+        for (Map.Entry<MessageType, ? extends PayloadCodec<?>> codec : payloadCodecs.entrySet()) {
+            this.payloadCodecs.put(codec.getKey(), (PayloadCodec<Object>) codec.getValue());
+        }
+    }
+
+    /**
+     * @return the number of bytes {@link #encode(Envelope, ByteBuffer)} writes
+     *         for the envelope
+     */
+    public int size(Envelope envelope) {
+        Object message = envelope.getMessage();
+        return HEADER_SIZE + (message == null ? 0 : payloadCodec(envelope.getType()).size(message));
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if the envelope has a payload its message type has no codec
+     *             for
+     */
+    public void checkEncodable(Envelope envelope) {
+        if (envelope.getMessage() != null) {
+            payloadCodec(envelope.getType());
+        }
+    }
+
+    public void encode(Envelope envelope, ByteBuffer buffer) {
+        Object message = envelope.getMessage();
+        buffer.put((byte) envelope.getType().ordinal());
+        buffer.putLong(envelope.getSenderId());
+        buffer.putLong(envelope.getReceiverId());
+        buffer.put((byte) (message == null ? 0 : 1));
+        if (message != null) {
+            payloadCodec(envelope.getType()).encode(message, buffer);
+        }
+    }
+
+    /**
+     * Reads an envelope written by {@link #encode(Envelope, ByteBuffer)},
+     * leaving the buffer positioned after it.
+     * 
+     * @throws IllegalArgumentException
+     *             if the message type is unknown or has no codec for the
+     *             payload
+     */
+    public Envelope decode(ByteBuffer buffer) {
+        byte ordinal = buffer.get();
+        if (ordinal < 0 || ordinal >= TYPES.length) {
+            throw new IllegalArgumentException("unknown message type :: " + ordinal);
+        }
+        MessageType type = TYPES[ordinal];
+        long senderId = buffer.getLong();
+        long receiverId = buffer.getLong();
+        Object message = buffer.get() == 0 ? null : payloadCodec(type).decode(buffer);
+        return new Envelope(senderId, receiverId, type, message);
+    }
+
+    private PayloadCodec<Object> payloadCodec(MessageType type) {
+        PayloadCodec<Object> payloadCodec = payloadCodecs.get(type);
+        if (payloadCodec == null) {
+            throw new IllegalArgumentException("no codec for the payload of " + type + " messages");
+        }
+        return payloadCodec;
+    }
+
+}
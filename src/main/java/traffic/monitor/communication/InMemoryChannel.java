@@ -1,19 +1,21 @@
 package traffic.monitor.communication;
 
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
-import traffic.monitor.util.DateUtil;
-
 public class InMemoryChannel implements Channel {
 
-    private static final Logger                                LOG = Logger.getLogger(DateUtil.class);
+    private static final Logger             LOG = Logger.getLogger(InMemoryChannel.class);
 
-    private final ConcurrentMap<Long, BlockingQueue<Envelope>> pipes;
+    private final ConcurrentMap<Long, Pipe> pipes;
 
     public InMemoryChannel() {
         pipes = new ConcurrentHashMap<>();
@@ -21,36 +23,82 @@ public class InMemoryChannel implements Channel {
 
     @Override
     public void sendMessage(Envelope envelope) {
-        createReceiverPipeIfNeeded(envelope.getReceiverId());
+        pipe(envelope.getReceiverId()).put(envelope);
+    }
+
+    @Override
+    public Envelope retreiveMessage(Long receiverId) {
         try {
-            pipes.get(envelope.getReceiverId()).put(envelope);
+            return pipe(receiverId).take();
         } catch (InterruptedException e) {
-            LOG.error("Unable to send message :: " + envelope, e);
+            LOG.error("Unable to retreive message for receiver :: " + receiverId, e);
             throw new RuntimeException(e);
         }
     }
 
     @Override
-    public Envelope retreiveMessage(Long receiverId) {
-        createReceiverPipeIfNeeded(receiverId);
+    public void sendAll(Collection<Envelope> envelopes) {
+        if (envelopes.size() == 1) {
+            sendMessage(envelopes.iterator().next());
+            return;
+        }
+        Map<Long, List<Envelope>> byReceiver = new HashMap<>();
+        for (Envelope envelope : envelopes) {
+            List<Envelope> batch = byReceiver.get(envelope.getReceiverId());
+            if (batch == null) {
+                batch = new ArrayList<>();
+                byReceiver.put(envelope.getReceiverId(), batch);
+            }
+            batch.add(envelope);
+        }
+        for (Map.Entry<Long, List<Envelope>> batch : byReceiver.entrySet()) {
+            pipe(batch.getKey()).putAll(batch.getValue());
+        }
+    }
+
+    @Override
+    public int drainTo(Long receiverId, Collection<Envelope> envelopes, int max) {
+        return drainTo(receiverId, envelopes, max, -1, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int drainTo(Long receiverId, Collection<Envelope> envelopes, int max, long timeout, TimeUnit unit) {
         try {
-            return pipes.get(receiverId).take();
+            return pipe(receiverId).drainTo(envelopes, max, timeout, unit);
         } catch (InterruptedException e) {
-            LOG.error("Unable to retreive message for receiver :: " + receiverId, e);
+            LOG.error("Unable to retreive messages for receiver :: " + receiverId, e);
             throw new RuntimeException(e);
         }
     }
 
-    private void createReceiverPipeIfNeeded(Long receiverId) {
-        if (!pipes.containsKey(receiverId)) {
+    @Override
+    public void setDeliveryListener(Long receiverId, DeliveryListener listener) {
+        pipe(receiverId).setDeliveryListener(listener);
+    }
+
+    @Override
+    public Map<Long, Integer> queueDepths() {
+        Map<Long, Integer> depths = new HashMap<>();
+        for (Map.Entry<Long, Pipe> pipe : pipes.entrySet()) {
+            depths.put(pipe.getKey(), pipe.getValue().size());
+        }
+        return depths;
+    }
+
+    private Pipe pipe(Long receiverId) {
+        Pipe pipe = pipes.get(receiverId);
+        if (pipe == null) {
             synchronized (pipes) {
                 // the entry could have been added after the unsynchronized
                 // check
-                if (!pipes.containsKey(receiverId)) {
-                    pipes.put(receiverId, new LinkedBlockingQueue<Envelope>());
+                pipe = pipes.get(receiverId);
+                if (pipe == null) {
+                    pipe = new Pipe();
+                    pipes.put(receiverId, pipe);
                 }
             }
         }
+        return pipe;
     }
 
 }
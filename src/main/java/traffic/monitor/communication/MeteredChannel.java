@@ -0,0 +1,94 @@
+package traffic.monitor.communication;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import traffic.monitor.metrics.Metrics;
+
+/**
+ * Decorator counting the envelopes sent and received through the channel, per
+ * message type, and letting the {@link Metrics} measure the depth of its
+ * inboxes.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public class MeteredChannel implements Channel {
+
+    private final Channel channel;
+
+    private final Metrics metrics;
+
+    public MeteredChannel(Channel channel, Metrics metrics) {
+        this.channel = channel;
+        this.metrics = metrics;
+        metrics.watch(channel);
+    }
+
+    @Override
+    public void sendMessage(Envelope envelope) {
+        metrics.messageSent(envelope.getType());
+        channel.sendMessage(envelope);
+    }
+
+    @Override
+    public Envelope retreiveMessage(Long receiverId) {
+        Envelope envelope = channel.retreiveMessage(receiverId);
+        metrics.messageReceived(envelope.getType());
+        return envelope;
+    }
+
+    @Override
+    public void sendAll(Collection<Envelope> envelopes) {
+        for (Envelope envelope : envelopes) {
+            metrics.messageSent(envelope.getType());
+        }
+        channel.sendAll(envelopes);
+    }
+
+    @Override
+    public int drainTo(Long receiverId, Collection<Envelope> envelopes, int max) {
+        if (envelopes instanceof List) {
+            return received((List<Envelope>) envelopes, channel.drainTo(receiverId, envelopes, max));
+        }
+        List<Envelope> drained = new ArrayList<>();
+        channel.drainTo(receiverId, drained, max);
+        envelopes.addAll(drained);
+        return received(drained, drained.size());
+    }
+
+    @Override
+    public int drainTo(Long receiverId, Collection<Envelope> envelopes, int max, long timeout, TimeUnit unit) {
+        if (envelopes instanceof List) {
+            return received((List<Envelope>) envelopes, channel.drainTo(receiverId, envelopes, max, timeout, unit));
+        }
+        List<Envelope> drained = new ArrayList<>();
+        channel.drainTo(receiverId, drained, max, timeout, unit);
+        envelopes.addAll(drained);
+        return received(drained, drained.size());
+    }
+
+    @Override
+    public void setDeliveryListener(Long receiverId, DeliveryListener listener) {
+        channel.setDeliveryListener(receiverId, listener);
+    }
+
+    @Override
+    public Map<Long, Integer> queueDepths() {
+        return channel.queueDepths();
+    }
+
+    /**
+     * Counts the envelopes just drained, appended at the end of the list.
+     */
+    private int received(List<Envelope> envelopes, int drained) {
+        for (int i = envelopes.size() - drained; i < envelopes.size(); i++) {
+            metrics.messageReceived(envelopes.get(i).getType());
+        }
+        return drained;
+    }
+
+}
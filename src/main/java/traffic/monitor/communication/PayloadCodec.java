@@ -0,0 +1,28 @@
+package traffic.monitor.communication;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary form of the payload of the envelopes of a message type, for the
+ * envelopes the {@link TcpChannel} carries between processes.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public interface PayloadCodec<M> {
+
+    /**
+     * @return the number of bytes {@link #encode(Object, ByteBuffer)} writes
+     *         for the message
+     */
+    int size(M message);
+
+    void encode(M message, ByteBuffer buffer);
+
+    /**
+     * Reads a message written by {@link #encode(Object, ByteBuffer)},
+     * leaving the buffer positioned after it.
+     */
+    M decode(ByteBuffer buffer);
+
+}
@@ -0,0 +1,132 @@
+package traffic.monitor.communication;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Unbounded queue of envelopes addressed to a single receiver. Unlike a
+ * {@link java.util.concurrent.LinkedBlockingQueue} it takes its lock once per
+ * batch, both when adding and when draining envelopes, and signals a waiting
+ * receiver once per batch.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+class Pipe {
+
+    private final ArrayDeque<Envelope>        envelopes;
+
+    private final ReentrantLock               lock;
+
+    private final Condition                   notEmpty;
+
+    private volatile Channel.DeliveryListener deliveryListener;
+
+    Pipe() {
+        envelopes = new ArrayDeque<>();
+        lock = new ReentrantLock();
+        notEmpty = lock.newCondition();
+    }
+
+    void put(Envelope envelope) {
+        lock.lock();
+        try {
+            envelopes.add(envelope);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        notifyDelivery(envelope.getReceiverId());
+    }
+
+    void putAll(Collection<Envelope> batch) {
+        lock.lock();
+        try {
+            envelopes.addAll(batch);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        notifyDelivery(batch.iterator().next().getReceiverId());
+    }
+
+    void setDeliveryListener(Channel.DeliveryListener deliveryListener) {
+        this.deliveryListener = deliveryListener;
+    }
+
+    Envelope take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (envelopes.isEmpty()) {
+                notEmpty.await();
+            }
+            Envelope envelope = envelopes.poll();
+            signalIfNotEmpty();
+            return envelope;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until at least one envelope is available, or the timeout expires,
+     * then moves up to max envelopes into the batch. A negative timeout waits
+     * indefinitely.
+     * 
+     * @return the number of envelopes added to the batch
+     */
+    int drainTo(Collection<Envelope> batch, int max, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (envelopes.isEmpty()) {
+                if (timeout < 0) {
+                    notEmpty.await();
+                } else if (nanos <= 0) {
+                    return 0;
+                } else {
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+            }
+            int drained = 0;
+            while (drained < max && !envelopes.isEmpty()) {
+                batch.add(envelopes.poll());
+                drained++;
+            }
+            signalIfNotEmpty();
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return envelopes.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void notifyDelivery(Long receiverId) {
+        Channel.DeliveryListener listener = deliveryListener;
+        if (listener != null) {
+            listener.delivered(receiverId);
+        }
+    }
+
+    /**
+     * Passes the signal on to another waiting receiver thread, if any, when
+     * envelopes are left behind.
+     */
+    private void signalIfNotEmpty() {
+        if (!envelopes.isEmpty()) {
+            notEmpty.signal();
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+package traffic.monitor.communication;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, pre-allocated and lock free queue. The capacity is rounded up to a
+ * power of two so that sequences map to slots with a mask. Only a single
+ * thread may consume from a ring buffer; the producer side is defined by the
+ * subclasses.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+abstract class RingBuffer<E> {
+
+    /**
+     * Atomic long padded to its own cache line, so that the producer and the
+     * consumer sequences do not invalidate each other.
+     */
+    @SuppressWarnings("unused")
+    static final class Sequence extends AtomicLong {
+
+        private static final long serialVersionUID = 1L;
+
+        private long              p1, p2, p3, p4, p5, p6, p7;
+
+    }
+
+    protected final AtomicReferenceArray<E> slots;
+
+    protected final int                     capacity;
+
+    protected final int                     mask;
+
+    /** Next sequence to be consumed. */
+    protected final Sequence                head;
+
+    /** Next sequence to be produced. */
+    protected final Sequence                tail;
+
+    RingBuffer(int requestedCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(requestedCapacity, 2) - 1) << 1;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.head = new Sequence();
+        this.tail = new Sequence();
+    }
+
+    /**
+     * @return false if the buffer is full
+     */
+    abstract boolean offer(E element);
+
+    /**
+     * Consumer side only.
+     * 
+     * @return the oldest element, or null if the buffer is empty
+     */
+    E poll() {
+        long sequence = head.get();
+        int slot = (int) sequence & mask;
+        E element = slots.get(slot);
+        if (element == null) {
+            if (sequence == tail.get()) {
+                return null;
+            }
+            // a producer claimed the slot but did not publish it yet
+            while ((element = slots.get(slot)) == null) {
+                // spin
+            }
+        }
+        slots.lazySet(slot, null);
+        head.lazySet(sequence + 1);
+        return element;
+    }
+
+    int size() {
+        return (int) Math.max(0, Math.min(capacity, tail.get() - head.get()));
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Ring buffer for a single producer thread, which therefore publishes
+     * without any compare and swap.
+     */
+    static final class SingleProducer<E> extends RingBuffer<E> {
+
+        SingleProducer(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        boolean offer(E element) {
+            long sequence = tail.get();
+            if (sequence - head.get() >= capacity) {
+                return false;
+            }
+            slots.lazySet((int) sequence & mask, element);
+            tail.lazySet(sequence + 1);
+            return true;
+        }
+    }
+
+    /**
+     * Ring buffer for any number of producer threads, which claim their
+     * sequence with a compare and swap before publishing the element.
+     */
+    static final class MultiProducer<E> extends RingBuffer<E> {
+
+        MultiProducer(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        boolean offer(E element) {
+            long sequence;
+            do {
+                sequence = tail.get();
+                if (sequence - head.get() >= capacity) {
+                    return false;
+                }
+            } while (!tail.compareAndSet(sequence, sequence + 1));
+            slots.lazySet((int) sequence & mask, element);
+            return true;
+        }
+    }
+
+}
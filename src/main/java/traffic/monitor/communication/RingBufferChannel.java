@@ -0,0 +1,176 @@
+package traffic.monitor.communication;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Channel backed by pre-allocated lock free ring buffers. The inboxes of the
+ * multi producer receivers (the dispatcher) accept envelopes from any thread;
+ * every other inbox (the drones) is written by a single sender thread only,
+ * which lets it publish without compare and swap, unless the channel is
+ * created with multi producer inboxes only.
+ * 
+ * Inboxes are bounded: a sender finding the inbox of the receiver full waits,
+ * following the configured wait strategy, until the receiver catches up.
+ * Receivers wait for incoming envelopes the same way.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public class RingBufferChannel implements Channel {
+
+    private final ConcurrentMap<Long, RingBuffer<Envelope>> pipes;
+
+    private final Set<Long>                                 multiProducerReceivers;
+
+    private final int                                       multiProducerCapacity;
+
+    private final int                                       singleProducerCapacity;
+
+    private final boolean                                   singleProducerInboxes;
+
+    private final WaitStrategy                              waitStrategy;
+
+    private final ConcurrentMap<Long, DeliveryListener>     deliveryListeners;
+
+    /**
+     * @param multiProducerReceivers
+     *            receivers that get envelopes from several sender threads
+     * @param multiProducerCapacity
+     *            inbox capacity of those receivers
+     * @param singleProducerCapacity
+     *            inbox capacity of every other receiver
+     */
+    public RingBufferChannel(Collection<Long> multiProducerReceivers, int multiProducerCapacity, int singleProducerCapacity,
+            WaitStrategy waitStrategy) {
+        this(multiProducerReceivers, multiProducerCapacity, singleProducerCapacity, true, waitStrategy);
+    }
+
+    /**
+     * @param singleProducerInboxes
+     *            false when the other receivers get envelopes from several
+     *            sender threads as well; their inboxes keep the smaller
+     *            capacity
+     */
+    public RingBufferChannel(Collection<Long> multiProducerReceivers, int multiProducerCapacity, int singleProducerCapacity,
+            boolean singleProducerInboxes, WaitStrategy waitStrategy) {
+        this.pipes = new ConcurrentHashMap<>();
+        this.multiProducerReceivers = new HashSet<>(multiProducerReceivers);
+        this.multiProducerCapacity = multiProducerCapacity;
+        this.singleProducerCapacity = singleProducerCapacity;
+        this.singleProducerInboxes = singleProducerInboxes;
+        this.waitStrategy = waitStrategy;
+        this.deliveryListeners = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void sendMessage(Envelope envelope) {
+        RingBuffer<Envelope> pipe = pipe(envelope.getReceiverId());
+        for (int iteration = 0; !pipe.offer(envelope); iteration++) {
+            waitStrategy.idle(iteration);
+        }
+        if (!deliveryListeners.isEmpty()) {
+            DeliveryListener listener = deliveryListeners.get(envelope.getReceiverId());
+            if (listener != null) {
+                listener.delivered(envelope.getReceiverId());
+            }
+        }
+    }
+
+    @Override
+    public Envelope retreiveMessage(Long receiverId) {
+        RingBuffer<Envelope> pipe = pipe(receiverId);
+        Envelope envelope;
+        for (int iteration = 0; (envelope = pipe.poll()) == null; iteration++) {
+            waitStrategy.idle(iteration);
+        }
+        return envelope;
+    }
+
+    @Override
+    public void sendAll(Collection<Envelope> envelopes) {
+        for (Envelope envelope : envelopes) {
+            sendMessage(envelope);
+        }
+    }
+
+    @Override
+    public int drainTo(Long receiverId, Collection<Envelope> envelopes, int max) {
+        if (max <= 0) {
+            return 0;
+        }
+        envelopes.add(retreiveMessage(receiverId));
+        return 1 + drainAvailable(pipe(receiverId), envelopes, max - 1);
+    }
+
+    @Override
+    public int drainTo(Long receiverId, Collection<Envelope> envelopes, int max, long timeout, TimeUnit unit) {
+        if (max <= 0) {
+            return 0;
+        }
+        RingBuffer<Envelope> pipe = pipe(receiverId);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Envelope envelope;
+        for (int iteration = 0; (envelope = pipe.poll()) == null; iteration++) {
+            if (System.nanoTime() - deadline >= 0) {
+                return 0;
+            }
+            waitStrategy.idle(iteration);
+        }
+        envelopes.add(envelope);
+        return 1 + drainAvailable(pipe, envelopes, max - 1);
+    }
+
+    @Override
+    public void setDeliveryListener(Long receiverId, DeliveryListener listener) {
+        deliveryListeners.put(receiverId, listener);
+    }
+
+    @Override
+    public Map<Long, Integer> queueDepths() {
+        Map<Long, Integer> depths = new HashMap<>();
+        for (Map.Entry<Long, RingBuffer<Envelope>> pipe : pipes.entrySet()) {
+            depths.put(pipe.getKey(), pipe.getValue().size());
+        }
+        return depths;
+    }
+
+    private int drainAvailable(RingBuffer<Envelope> pipe, Collection<Envelope> envelopes, int max) {
+        int drained = 0;
+        Envelope envelope;
+        while (drained < max && (envelope = pipe.poll()) != null) {
+            envelopes.add(envelope);
+            drained++;
+        }
+        return drained;
+    }
+
+    private RingBuffer<Envelope> pipe(Long receiverId) {
+        RingBuffer<Envelope> pipe = pipes.get(receiverId);
+        if (pipe == null) {
+            synchronized (pipes) {
+                // the entry could have been added after the unsynchronized
+                // check
+                pipe = pipes.get(receiverId);
+                if (pipe == null) {
+                    if (multiProducerReceivers.contains(receiverId)) {
+                        pipe = new RingBuffer.MultiProducer<>(multiProducerCapacity);
+                    } else if (!singleProducerInboxes) {
+                        pipe = new RingBuffer.MultiProducer<>(singleProducerCapacity);
+                    } else {
+                        pipe = new RingBuffer.SingleProducer<>(singleProducerCapacity);
+                    }
+                    pipes.put(receiverId, pipe);
+                }
+            }
+        }
+        return pipe;
+    }
+
+}
@@ -0,0 +1,696 @@
+package traffic.monitor.communication;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import traffic.monitor.communication.Envelope.MessageType;
+
+/**
+ * Channel carrying envelopes between processes over TCP, so that the drones
+ * can run in other JVMs than the dispatcher. The process of the dispatcher is
+ * the hub: it listens for the processes hosting drones, its clients, and
+ * routes the envelopes between them. A receiver is local to the process that
+ * reads its inbox or sets its delivery listener; a client tells the hub about
+ * its local receivers and sends it every envelope addressed to anyone else.
+ * The hub keeps the envelopes of receivers it does not know about yet until
+ * they show up, on a client or locally.
+ * 
+ * Envelopes between local receivers are handed over as they are, like the
+ * {@link InMemoryChannel} does. The others travel in frames made of their
+ * length, a byte telling an envelope from the registration of a receiver, and
+ * the envelope written by the {@link EnvelopeCodec}. Envelopes are encoded
+ * after the send returns, so they must not be modified once sent.
+ * 
+ * A single I/O thread runs a non blocking selector over the connections.
+ * Senders only queue their envelopes, waking the thread up when the
+ * connection had nothing queued, so that the envelopes of a burst are encoded
+ * back to back in pooled direct buffers and written with a single gathering
+ * write.
+ * 
+ * The I/O thread of a client is not a daemon: a process hosting drones runs
+ * until the hub closes the connection, at the end of the simulation. The
+ * dispatcher process runs with -Dspring.profiles.active=dispatcher and each
+ * process hosting drones with -Dspring.profiles.active=drones and the
+ * routes.file.glob of its own drones, all with -Dchannel.type=tcp.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public class TcpChannel implements Channel, Closeable {
+
+    public enum Role {
+        HUB,
+        CLIENT;
+    }
+
+    private static final Logger                   LOG                  = Logger.getLogger(TcpChannel.class);
+
+    private static final byte                     ENVELOPE_FRAME       = 0;
+
+    private static final byte                     REGISTRATION_FRAME   = 1;
+
+    /**
+     * Length of the frame, not counting itself, and kind of frame.
+     */
+    private static final int                      FRAME_HEADER_SIZE    = 4 + 1;
+
+    /**
+     * Buffers written by a single gathering write, and encoded per flush of a
+     * connection.
+     */
+    private static final int                      MAX_GATHERED_BUFFERS = 64;
+
+    private static final int                      MAX_POOLED_BUFFERS   = 256;
+
+    private static final long                     CONNECT_RETRY_MILLIS = 100;
+
+    private final Role                            role;
+
+    private final EnvelopeCodec                   codec;
+
+    private final BufferPool                      buffers;
+
+    private final Selector                        selector;
+
+    /**
+     * Socket accepting the clients, null for a client.
+     */
+    private final ServerSocketChannel             server;
+
+    /**
+     * Connection to the hub, null for the hub.
+     */
+    private final Connection                      hub;
+
+    private final ConcurrentMap<Long, Pipe>       pipes;
+
+    /**
+     * Connections of the clients hosting the remote receivers known to the
+     * hub.
+     */
+    private final ConcurrentMap<Long, Connection> routes;
+
+    /**
+     * Envelopes kept by the hub for the receivers it does not know about yet.
+     * Guards the creation of the local pipes and the registration of the
+     * remote receivers as well.
+     */
+    private final Map<Long, List<Envelope>>       parked;
+
+    /**
+     * Connections with envelopes or registrations queued for the I/O thread
+     * to write.
+     */
+    private final Queue<Connection>               pendingFlushes;
+
+    private final AtomicLong                      droppedEnvelopes;
+
+    private final Thread                          ioThread;
+
+    private volatile boolean                      closed;
+
+    /**
+     * @param address
+     *            address the hub listens on, and the clients connect to
+     * @param localReceivers
+     *            receivers local from the start, the dispatcher shards of the
+     *            hub
+     * @param bufferSize
+     *            size of the pooled buffers, frames larger than that get a
+     *            buffer of their own
+     * @param connectTimeoutMillis
+     *            how long a client retries to connect to a hub not listening
+     *            yet
+     */
+    public TcpChannel(Role role, InetSocketAddress address, Collection<Long> localReceivers,
+            Map<MessageType, ? extends PayloadCodec<?>> payloadCodecs, int bufferSize, long connectTimeoutMillis) {
+        this.role = role;
+        this.codec = new EnvelopeCodec(payloadCodecs);
+        this.buffers = new BufferPool(bufferSize, MAX_POOLED_BUFFERS);
+        this.pipes = new ConcurrentHashMap<>();
+        this.routes = new ConcurrentHashMap<>();
+        this.parked = new HashMap<>();
+        this.pendingFlushes = new ConcurrentLinkedQueue<>();
+        this.droppedEnvelopes = new AtomicLong();
+        for (Long receiverId : localReceivers) {
+            pipes.put(receiverId, new Pipe());
+        }
+        try {
+            selector = Selector.open();
+            if (role == Role.HUB) {
+                server = ServerSocketChannel.open();
+                server.bind(address);
+                server.configureBlocking(false);
+                server.register(selector, SelectionKey.OP_ACCEPT);
+                hub = null;
+                LOG.info("channel hub listening on :: " + server.getLocalAddress());
+            } else {
+                server = null;
+                hub = new Connection(connect(address, connectTimeoutMillis));
+                LOG.info("channel connected to hub :: " + address);
+            }
+        } catch (IOException e) {
+            LOG.error("Unable to open the channel on :: " + address, e);
+            throw new RuntimeException(e);
+        }
+        ioThread = new Thread(new Runnable() {
+            public void run() {
+                runSelector();
+            }
+        });
+        ioThread.setName("Channel I/O Thread");
+        ioThread.setDaemon(role == Role.HUB);
+        ioThread.start();
+    }
+
+    /**
+     * @return the port the hub listens on, useful when it was bound to any
+     *         free port
+     */
+    public int getLocalPort() {
+        return server == null ? -1 : server.socket().getLocalPort();
+    }
+
+    @Override
+    public void sendMessage(Envelope envelope) {
+        deliver(envelope);
+    }
+
+    @Override
+    public Envelope retreiveMessage(Long receiverId) {
+        try {
+            return pipe(receiverId).take();
+        } catch (InterruptedException e) {
+            LOG.error("Unable to retreive message for receiver :: " + receiverId, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void sendAll(Collection<Envelope> envelopes) {
+        for (Envelope envelope : envelopes) {
+            deliver(envelope);
+        }
+    }
+
+    @Override
+    public int drainTo(Long receiverId, Collection<Envelope> envelopes, int max) {
+        return drainTo(receiverId, envelopes, max, -1, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int drainTo(Long receiverId, Collection<Envelope> envelopes, int max, long timeout, TimeUnit unit) {
+        try {
+            return pipe(receiverId).drainTo(envelopes, max, timeout, unit);
+        } catch (InterruptedException e) {
+            LOG.error("Unable to retreive messages for receiver :: " + receiverId, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void setDeliveryListener(Long receiverId, DeliveryListener listener) {
+        pipe(receiverId).setDeliveryListener(listener);
+    }
+
+    /**
+     * @return the depths of the local inboxes and the number of envelopes the
+     *         hub keeps for receivers not known yet
+     */
+    @Override
+    public Map<Long, Integer> queueDepths() {
+        Map<Long, Integer> depths = new HashMap<>();
+        for (Map.Entry<Long, Pipe> pipe : pipes.entrySet()) {
+            depths.put(pipe.getKey(), pipe.getValue().size());
+        }
+        synchronized (parked) {
+            for (Map.Entry<Long, List<Envelope>> waiting : parked.entrySet()) {
+                depths.put(waiting.getKey(), waiting.getValue().size());
+            }
+        }
+        return depths;
+    }
+
+    /**
+     * Stops the I/O thread and closes the connections. Envelopes not written
+     * yet are lost.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    private void deliver(Envelope envelope) {
+        Long receiverId = envelope.getReceiverId();
+        while (true) {
+            Pipe pipe = pipes.get(receiverId);
+            if (pipe != null) {
+                pipe.put(envelope);
+                return;
+            }
+            Connection connection = role == Role.CLIENT ? hub : routes.get(receiverId);
+            if (connection != null) {
+                connection.send(envelope);
+                return;
+            }
+            synchronized (parked) {
+                // the receiver could have shown up after the unsynchronized
+                // checks, in which case the envelope is delivered again
+                if (!pipes.containsKey(receiverId) && !routes.containsKey(receiverId)) {
+                    List<Envelope> waiting = parked.get(receiverId);
+                    if (waiting == null) {
+                        waiting = new ArrayList<>();
+                        parked.put(receiverId, waiting);
+                    }
+                    waiting.add(envelope);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the inbox of the receiver, which becomes local to the process if
+     *         it was not already
+     */
+    private Pipe pipe(Long receiverId) {
+        Pipe pipe = pipes.get(receiverId);
+        if (pipe == null) {
+            synchronized (parked) {
+                // the entry could have been added after the unsynchronized
+                // check
+                pipe = pipes.get(receiverId);
+                if (pipe == null) {
+                    pipe = new Pipe();
+                    List<Envelope> waiting = parked.remove(receiverId);
+                    if (waiting != null) {
+                        pipe.putAll(waiting);
+                    }
+                    pipes.put(receiverId, pipe);
+                    if (hub != null) {
+                        hub.register(receiverId);
+                    }
+                }
+            }
+        }
+        return pipe;
+    }
+
+    /**
+     * Routes the envelopes of a receiver hosted by a client to its
+     * connection, the envelopes kept for it first.
+     */
+    private void registered(Long receiverId, Connection connection) {
+        connection.remoteReceivers.add(receiverId);
+        synchronized (parked) {
+            List<Envelope> waiting = parked.remove(receiverId);
+            if (waiting != null) {
+                for (Envelope envelope : waiting) {
+                    connection.send(envelope);
+                }
+            }
+            // published last, so that no envelope overtakes the ones kept
+            routes.put(receiverId, connection);
+        }
+    }
+
+    private void received(Envelope envelope) {
+        if (role == Role.CLIENT) {
+            // sent by the hub to a local receiver, never back to the hub
+            pipe(envelope.getReceiverId()).put(envelope);
+        } else {
+            deliver(envelope);
+        }
+    }
+
+    private SocketChannel connect(InetSocketAddress address, long connectTimeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + connectTimeoutMillis;
+        while (true) {
+            try {
+                return SocketChannel.open(address);
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() >= deadline) {
+                    throw e;
+                }
+            }
+            try {
+                Thread.sleep(CONNECT_RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                LOG.error("Interrupted while connecting to hub :: " + address, e);
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private void runSelector() {
+        try {
+            while (!closed) {
+                selector.select();
+                // connections flagged while flushing are flushed on the next
+                // round, after the reads
+                for (int flushes = pendingFlushes.size(); flushes > 0; flushes--) {
+                    Connection connection = pendingFlushes.poll();
+                    if (connection.open) {
+                        connection.flush();
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isReadable()) {
+                        connection.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.writeQueued();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Channel I/O failed", e);
+            throw new RuntimeException(e);
+        } catch (RuntimeException e) {
+            LOG.error("Channel I/O failed", e);
+            throw e;
+        } finally {
+            // the envelopes sent from now on are dropped rather than queued
+            closed = true;
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() != null) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            closeQuietly(server);
+            closeQuietly(selector);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel socket = server.accept();
+        if (socket != null) {
+            new Connection(socket);
+            LOG.info("channel client connected :: " + socket.getRemoteAddress());
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LOG.warn("Unable to close :: " + closeable, e);
+        }
+    }
+
+    /**
+     * Connection between the hub and a client. Envelopes and registrations
+     * are queued by any thread; everything else runs on the I/O thread.
+     */
+    private final class Connection {
+
+        private final SocketChannel          socket;
+
+        private final SelectionKey           key;
+
+        private final Queue<Envelope>        outbox;
+
+        /**
+         * Local receivers the client has not told the hub about yet.
+         */
+        private final Queue<Long>            registrations;
+
+        private final AtomicBoolean          flushScheduled;
+
+        /**
+         * Encoded frames not written yet, ready to be read from.
+         */
+        private final ArrayDeque<ByteBuffer> unwritten;
+
+        private final ByteBuffer[]           gathered;
+
+        /**
+         * Receivers the client hosts, known to the hub.
+         */
+        private final Set<Long>              remoteReceivers;
+
+        private ByteBuffer                   input;
+
+        private volatile boolean             open;
+
+        Connection(SocketChannel socket) throws IOException {
+            this.socket = socket;
+            this.outbox = new ConcurrentLinkedQueue<>();
+            this.registrations = new ConcurrentLinkedQueue<>();
+            this.flushScheduled = new AtomicBoolean();
+            this.unwritten = new ArrayDeque<>();
+            this.gathered = new ByteBuffer[MAX_GATHERED_BUFFERS];
+            this.remoteReceivers = new HashSet<>();
+            this.input = buffers.acquire();
+            this.open = true;
+            socket.configureBlocking(false);
+            // frames are already batched, so they are not delayed any further
+            socket.socket().setTcpNoDelay(true);
+            key = socket.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        /**
+         * @throws IllegalArgumentException
+         *             if the payload of the envelope cannot be encoded, before
+         *             it is queued for the I/O thread
+         */
+        void send(Envelope envelope) {
+            codec.checkEncodable(envelope);
+            if (!open) {
+                if (droppedEnvelopes.getAndIncrement() == 0) {
+                    LOG.warn("connection closed, dropping the envelopes for receivers such as :: " + envelope.getReceiverId());
+                }
+                return;
+            }
+            outbox.add(envelope);
+            scheduleFlush();
+        }
+
+        void register(Long receiverId) {
+            registrations.add(receiverId);
+            scheduleFlush();
+        }
+
+        private void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                pendingFlushes.add(this);
+                selector.wakeup();
+            }
+        }
+
+        void flush() {
+            flushScheduled.set(false);
+            writeQueued();
+        }
+
+        /**
+         * Writes the frames encoded before, then, once the socket took them
+         * all, encodes and writes the queued frames.
+         */
+        void writeQueued() {
+            if (!unwritten.isEmpty()) {
+                write();
+            }
+            if (open && unwritten.isEmpty()) {
+                encode();
+                write();
+            }
+        }
+
+        private void encode() {
+            ByteBuffer buffer = null;
+            Long receiverId;
+            while ((receiverId = registrations.poll()) != null) {
+                buffer = reserve(buffer, FRAME_HEADER_SIZE + 8);
+                buffer.putInt(1 + 8).put(REGISTRATION_FRAME).putLong(receiverId);
+            }
+            Envelope envelope;
+            while (unwritten.size() < MAX_GATHERED_BUFFERS && (envelope = outbox.poll()) != null) {
+                int size = codec.size(envelope);
+                buffer = reserve(buffer, FRAME_HEADER_SIZE + size);
+                buffer.putInt(1 + size).put(ENVELOPE_FRAME);
+                codec.encode(envelope, buffer);
+            }
+            if (buffer != null) {
+                buffer.flip();
+                unwritten.add(buffer);
+            }
+            if (!outbox.isEmpty()) {
+                // the rest is encoded once these buffers are written
+                scheduleFlush();
+            }
+        }
+
+        /**
+         * @return the buffer if the frame fits, a new one otherwise
+         */
+        private ByteBuffer reserve(ByteBuffer buffer, int frameSize) {
+            if (buffer != null && buffer.remaining() >= frameSize) {
+                return buffer;
+            }
+            if (buffer != null) {
+                buffer.flip();
+                unwritten.add(buffer);
+            }
+            return frameSize <= buffers.bufferSize() ? buffers.acquire() : ByteBuffer.allocateDirect(frameSize);
+        }
+
+        private void write() {
+            int count = 0;
+            for (ByteBuffer buffer : unwritten) {
+                gathered[count++] = buffer;
+                if (count == gathered.length) {
+                    break;
+                }
+            }
+            try {
+                socket.write(gathered, 0, count);
+            } catch (IOException e) {
+                LOG.warn("Unable to write to :: " + this, e);
+                close();
+                return;
+            } finally {
+                Arrays.fill(gathered, 0, count, null);
+            }
+            while (!unwritten.isEmpty() && !unwritten.peek().hasRemaining()) {
+                buffers.release(unwritten.poll());
+            }
+            key.interestOps(unwritten.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        void read() {
+            try {
+                if (socket.read(input) < 0) {
+                    close();
+                    return;
+                }
+            } catch (IOException e) {
+                LOG.warn("Unable to read from :: " + this, e);
+                close();
+                return;
+            }
+            input.flip();
+            int needed = 0;
+            while (input.remaining() >= 4) {
+                int length = input.getInt(input.position());
+                if (length < 1) {
+                    LOG.warn("Corrupt frame of length :: " + length + " from :: " + this);
+                    close();
+                    return;
+                }
+                if (input.remaining() < 4 + length) {
+                    needed = 4 + length;
+                    break;
+                }
+                int end = input.position() + 4 + length;
+                int limit = input.limit();
+                // the frame is decoded on its own, a corrupt one cannot be
+                // read past
+                input.position(input.position() + 4).limit(end);
+                byte kind = input.get();
+                Envelope envelope = null;
+                long receiverId = 0;
+                try {
+                    if (kind == ENVELOPE_FRAME) {
+                        envelope = codec.decode(input);
+                    } else if (kind == REGISTRATION_FRAME && role == Role.HUB) {
+                        receiverId = input.getLong();
+                    } else {
+                        throw new IllegalArgumentException("unexpected frame :: " + kind);
+                    }
+                } catch (RuntimeException e) {
+                    LOG.warn("Corrupt frame from :: " + this, e);
+                    close();
+                    return;
+                }
+                input.limit(limit).position(end);
+                if (envelope != null) {
+                    received(envelope);
+                } else {
+                    registered(receiverId, this);
+                }
+            }
+            input.compact();
+            if (needed > input.capacity()) {
+                // frame larger than the pooled buffers
+                ByteBuffer larger = ByteBuffer.allocateDirect(needed);
+                input.flip();
+                larger.put(input);
+                buffers.release(input);
+                input = larger;
+            }
+        }
+
+        void close() {
+            if (!open) {
+                return;
+            }
+            open = false;
+            key.cancel();
+            closeQuietly(socket);
+            buffers.release(input);
+            while (!unwritten.isEmpty()) {
+                buffers.release(unwritten.poll());
+            }
+            if (role == Role.CLIENT) {
+                LOG.info("channel connection to hub closed.");
+                closed = true;
+                return;
+            }
+            for (Long receiverId : remoteReceivers) {
+                routes.remove(receiverId, this);
+            }
+            if (!closed && !remoteReceivers.isEmpty()) {
+                LOG.warn("channel client disconnected, " + remoteReceivers.size() + " receivers unreachable.");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(socket.socket().getRemoteSocketAddress());
+        }
+
+    }
+
+}
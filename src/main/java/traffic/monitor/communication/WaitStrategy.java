@@ -0,0 +1,68 @@
+package traffic.monitor.communication;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * What a thread does while it waits on a ring buffer, either for a message to
+ * arrive or for room to send one.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public enum WaitStrategy {
+
+    /**
+     * Keeps the core busy. Lowest latency, but burns a full core per waiting
+     * thread.
+     */
+    BUSY_SPIN {
+        @Override
+        void idle(int iteration) {
+            // spin
+        }
+    },
+
+    /**
+     * Gives the core away to other runnable threads between checks.
+     */
+    YIELD {
+        @Override
+        void idle(int iteration) {
+            Thread.yield();
+        }
+    },
+
+    /**
+     * Spins, then yields, then parks for increasingly long periods. Suited to
+     * many more threads than cores.
+     */
+    PARK {
+        @Override
+        void idle(int iteration) {
+            if (iteration < SPINS) {
+                return;
+            }
+            if (iteration < SPINS + YIELDS) {
+                Thread.yield();
+                return;
+            }
+            int shift = Math.min(iteration - SPINS - YIELDS, MAX_PARK_SHIFT);
+            LockSupport.parkNanos(MIN_PARK_NANOS << shift);
+        }
+    };
+
+    private static final int  SPINS          = 100;
+
+    private static final int  YIELDS         = 10;
+
+    private static final long MIN_PARK_NANOS = 1000;
+
+    private static final int  MAX_PARK_SHIFT = 10;
+
+    /**
+     * @param iteration
+     *            number of consecutive unsuccessful checks so far
+     */
+    abstract void idle(int iteration);
+
+}
@@ -0,0 +1,106 @@
+package traffic.monitor.communication;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import traffic.monitor.simulation.SimulationClock;
+
+/**
+ * Decorator reporting every envelope in transit to the simulation clock as
+ * pending work. An envelope counts as pending from the moment it is sent until
+ * its receiver comes back for more envelopes, i.e. until the receiver is done
+ * handling it, so that the clock never advances while a reaction to a
+ * message may still be on its way.
+ * 
+ * Each receiver must be served by a single thread at a time.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public class WorkTrackingChannel implements Channel {
+
+    private final Channel                      channel;
+
+    private final SimulationClock              clock;
+
+    /**
+     * Number of envelopes handed to each receiver on its last retrieval.
+     */
+    private final ConcurrentMap<Long, int[]>   inHandling;
+
+    public WorkTrackingChannel(Channel channel, SimulationClock clock) {
+        this.channel = channel;
+        this.clock = clock;
+        this.inHandling = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void sendMessage(Envelope envelope) {
+        clock.workStarted();
+        channel.sendMessage(envelope);
+    }
+
+    @Override
+    public Envelope retreiveMessage(Long receiverId) {
+        handled(receiverId);
+        Envelope envelope = channel.retreiveMessage(receiverId);
+        handling(receiverId, 1);
+        return envelope;
+    }
+
+    @Override
+    public void sendAll(Collection<Envelope> envelopes) {
+        for (int i = 0; i < envelopes.size(); i++) {
+            clock.workStarted();
+        }
+        channel.sendAll(envelopes);
+    }
+
+    @Override
+    public int drainTo(Long receiverId, Collection<Envelope> envelopes, int max) {
+        handled(receiverId);
+        int drained = channel.drainTo(receiverId, envelopes, max);
+        handling(receiverId, drained);
+        return drained;
+    }
+
+    @Override
+    public int drainTo(Long receiverId, Collection<Envelope> envelopes, int max, long timeout, TimeUnit unit) {
+        handled(receiverId);
+        int drained = channel.drainTo(receiverId, envelopes, max, timeout, unit);
+        handling(receiverId, drained);
+        return drained;
+    }
+
+    @Override
+    public void setDeliveryListener(Long receiverId, DeliveryListener listener) {
+        channel.setDeliveryListener(receiverId, listener);
+    }
+
+    @Override
+    public Map<Long, Integer> queueDepths() {
+        return channel.queueDepths();
+    }
+
+    private void handling(Long receiverId, int envelopes) {
+        int[] count = inHandling.get(receiverId);
+        if (count == null) {
+            count = new int[1];
+            inHandling.put(receiverId, count);
+        }
+        count[0] = envelopes;
+    }
+
+    private void handled(Long receiverId) {
+        int[] count = inHandling.get(receiverId);
+        if (count != null) {
+            for (; count[0] > 0; count[0]--) {
+                clock.workCompleted();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+package traffic.monitor.data;
+
+import java.util.Arrays;
+
+import traffic.monitor.util.FileUtil;
+import traffic.monitor.util.MappedCsvReader.Record;
+import traffic.monitor.util.MappedCsvReader.RecordParser;
+
+/**
+ * Route fully loaded in memory as three primitive columns (latitude,
+ * longitude and time), which takes 24 bytes per waypoint. Waypoints are sorted
+ * by time once, at load time, and then handed out through a cursor as
+ * {@link WayPointBatch} slices sharing the columns.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public class ColumnarRoute implements RouteSource {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Long       droneId;
+
+    private double[]         latitudes;
+
+    private double[]         longitudes;
+
+    private long[]           times;
+
+    private int              size;
+
+    private int              cursor;
+
+    private ColumnarRoute(Long droneId) {
+        this.droneId = droneId;
+        latitudes = new double[INITIAL_CAPACITY];
+        longitudes = new double[INITIAL_CAPACITY];
+        times = new long[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Loads the waypoints of the route file up to and including the given
+     * time.
+     */
+    public static ColumnarRoute load(Long droneId, String filePath, final long endTime) {
+        final ColumnarRoute route = new ColumnarRoute(droneId);
+        FileUtil.parseMappedFile(filePath, ',', new RecordParser<Void>() {
+            @Override
+            public Void deserialize(Record record) {
+                long time = record.getEpochMillis(TIME_FIELD);
+                if (time <= endTime) {
+                    route.add(record.getDouble(LATITUDE_FIELD), record.getDouble(LONGITUDE_FIELD), time);
+                }
+                return null;
+            }
+        });
+        route.trim();
+        route.sortByTime();
+        return route;
+    }
+
+    @Override
+    public Long getDroneId() {
+        return droneId;
+    }
+
+    @Override
+    public WayPointBatch nextBatch(int max) {
+        int from = cursor;
+        cursor = Math.min(size, cursor + Math.max(max, 0));
+        return new WayPointBatch(latitudes, longitudes, times, from, cursor);
+    }
+
+    @Override
+    public WayPoint peek() {
+        return cursor < size ? new WayPoint(latitudes[cursor], longitudes[cursor], times[cursor]) : null;
+    }
+
+    @Override
+    public boolean isExhausted() {
+        return cursor >= size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void close() {
+        cursor = size;
+    }
+
+    private void add(double latitude, double longitude, long time) {
+        if (size == times.length) {
+            int capacity = size * 2;
+            latitudes = Arrays.copyOf(latitudes, capacity);
+            longitudes = Arrays.copyOf(longitudes, capacity);
+            times = Arrays.copyOf(times, capacity);
+        }
+        latitudes[size] = latitude;
+        longitudes[size] = longitude;
+        times[size] = time;
+        size++;
+    }
+
+    private void trim() {
+        latitudes = Arrays.copyOf(latitudes, size);
+        longitudes = Arrays.copyOf(longitudes, size);
+        times = Arrays.copyOf(times, size);
+    }
+
+    /**
+     * Stable sort of the three columns by time. Route files are usually
+     * already ordered, in which case the columns are left untouched.
+     */
+    private void sortByTime() {
+        boolean sorted = true;
+        for (int i = 1; i < size && sorted; i++) {
+            sorted = times[i - 1] <= times[i];
+        }
+        if (sorted) {
+            return;
+        }
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        mergeSort(order, new int[size], 0, size);
+        double[] sortedLatitudes = new double[size];
+        double[] sortedLongitudes = new double[size];
+        long[] sortedTimes = new long[size];
+        for (int i = 0; i < size; i++) {
+            sortedLatitudes[i] = latitudes[order[i]];
+            sortedLongitudes[i] = longitudes[order[i]];
+            sortedTimes[i] = times[order[i]];
+        }
+        latitudes = sortedLatitudes;
+        longitudes = sortedLongitudes;
+        times = sortedTimes;
+    }
+
+    private void mergeSort(int[] order, int[] buffer, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(order, buffer, from, middle);
+        mergeSort(order, buffer, middle, to);
+        if (times[order[middle - 1]] <= times[order[middle]]) {
+            return;
+        }
+        System.arraycopy(order, from, buffer, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || left < middle && times[buffer[left]] <= times[buffer[right]]) {
+                order[i] = buffer[left++];
+            } else {
+                order[i] = buffer[right++];
+            }
+        }
+    }
+
+}
@@ -0,0 +1,249 @@
+package traffic.monitor.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import traffic.monitor.data.TrafficReport.Congestion;
+
+/**
+ * Aggregates the traffic reports as they come in, per cell of a uniform grid
+ * over the map and per tumbling window of time, so that the congestion of an
+ * area can be looked at without going through the raw reports.
+ * 
+ * Every cell keeps the counters of its last windows in a ring of fixed size,
+ * the counters of the oldest window being reused when a new one starts. The
+ * memory used per cell is therefore constant and a query only sums a bounded
+ * number of windows. Windows are positioned on the time of the reports: the
+ * current window is the one holding the most recent report received, whatever
+ * its cell, and reports older than the retained windows are dropped.
+ * 
+ * Reports can be added from several threads.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public class CongestionAggregator {
+
+    private static final int                       CONGESTIONS = Congestion.values().length;
+
+    private final double                           cellSize;
+
+    private final long                             windowMillis;
+
+    private final int                              windows;
+
+    private final ConcurrentMap<Long, CellWindows> cells;
+
+    /**
+     * Time of the most recent report received.
+     */
+    private final AtomicLong                       latestTime;
+
+    private final AtomicLong                       droppedReports;
+
+    /**
+     * @param cellSize
+     *            side of the grid cells, in degrees
+     * @param windowMillis
+     *            length of the tumbling windows
+     * @param windows
+     *            number of windows retained per cell, which is also the length
+     *            of the sliding window in tumbling windows
+     */
+    public CongestionAggregator(double cellSize, long windowMillis, int windows) {
+        if (cellSize <= 0 || windowMillis <= 0 || windows < 1) {
+            throw new IllegalArgumentException("invalid aggregation of cells of " + cellSize + " over " + windows + " windows of " + windowMillis
+                    + " ms");
+        }
+        this.cellSize = cellSize;
+        this.windowMillis = windowMillis;
+        this.windows = windows;
+        cells = new ConcurrentHashMap<>();
+        latestTime = new AtomicLong(Long.MIN_VALUE);
+        droppedReports = new AtomicLong();
+    }
+
+    /**
+     * Accounts for a report. Reports without a location are ignored.
+     */
+    public void add(TrafficReport report) {
+        Location location = report.getLocation();
+        if (location == null) {
+            return;
+        }
+        Long cell = cellOf(location);
+        CellWindows cellWindows = cells.get(cell);
+        if (cellWindows == null) {
+            CellWindows newCellWindows = new CellWindows();
+            cellWindows = cells.putIfAbsent(cell, newCellWindows);
+            if (cellWindows == null) {
+                cellWindows = newCellWindows;
+            }
+        }
+        if (!cellWindows.add(report)) {
+            droppedReports.incrementAndGet();
+            return;
+        }
+        long latest;
+        do {
+            latest = latestTime.get();
+        } while (report.getTime() > latest && !latestTime.compareAndSet(latest, report.getTime()));
+    }
+
+    /**
+     * @return the tumbling window holding the most recent report received,
+     *         for the cell of the location
+     */
+    public CongestionWindow current(Location location) {
+        long start = currentWindowStart();
+        return window(location, start, start + windowMillis);
+    }
+
+    /**
+     * @return the window made of all the retained tumbling windows up to the
+     *         current one, for the cell of the location
+     */
+    public CongestionWindow recent(Location location) {
+        long end = currentWindowStart() + windowMillis;
+        return window(location, end - windows * windowMillis, end);
+    }
+
+    /**
+     * @return the retained tumbling windows of the cell of the location, from
+     *         the oldest to the current one
+     */
+    public List<CongestionWindow> history(Location location) {
+        long start = currentWindowStart() - (windows - 1) * windowMillis;
+        List<CongestionWindow> history = new ArrayList<>(windows);
+        for (int i = 0; i < windows; i++, start += windowMillis) {
+            history.add(window(location, start, start + windowMillis));
+        }
+        return history;
+    }
+
+    /**
+     * @return the number of cells reports were made in
+     */
+    public int cellCount() {
+        return cells.size();
+    }
+
+    /**
+     * @return the number of reports dropped for being older than the windows
+     *         retained for their cell
+     */
+    public long droppedReports() {
+        return droppedReports.get();
+    }
+
+    private long currentWindowStart() {
+        long latest = latestTime.get();
+        return latest == Long.MIN_VALUE ? 0 : windowStart(latest);
+    }
+
+    private CongestionWindow window(Location location, long start, long end) {
+        CellWindows cellWindows = cells.get(cellOf(location));
+        if (cellWindows == null) {
+            return new CongestionWindow(start, end, 0, 0, 0, new int[CONGESTIONS]);
+        }
+        return cellWindows.between(start, end);
+    }
+
+    private Long cellOf(Location location) {
+        long row = (long) Math.floor(location.getLatitude() / cellSize);
+        long column = (long) Math.floor(location.getLongitude() / cellSize);
+        return (row << 32) | (column & 0xFFFFFFFFL);
+    }
+
+    private long windowStart(long time) {
+        return time - ((time % windowMillis) + windowMillis) % windowMillis;
+    }
+
+    /**
+     * Counters of the retained windows of a cell, the window starting at time
+     * t being kept in slot (t / windowMillis) modulo the number of windows.
+     */
+    private final class CellWindows {
+
+        private final long[]   starts;
+
+        private final int[]    reports;
+
+        private final int[]    speedReports;
+
+        private final double[] speedSums;
+
+        /**
+         * Number of reports per window and congestion level, the levels of a
+         * window being contiguous.
+         */
+        private final int[]    congestions;
+
+        CellWindows() {
+            starts = new long[windows];
+            Arrays.fill(starts, Long.MIN_VALUE);
+            reports = new int[windows];
+            speedReports = new int[windows];
+            speedSums = new double[windows];
+            congestions = new int[windows * CONGESTIONS];
+        }
+
+        /**
+         * @return false if the report is older than the retained windows
+         */
+        synchronized boolean add(TrafficReport report) {
+            long start = windowStart(report.getTime());
+            int slot = slot(start);
+            if (starts[slot] > start) {
+                return false;
+            }
+            if (starts[slot] < start) {
+                starts[slot] = start;
+                reports[slot] = 0;
+                speedReports[slot] = 0;
+                speedSums[slot] = 0;
+                Arrays.fill(congestions, slot * CONGESTIONS, (slot + 1) * CONGESTIONS, 0);
+            }
+            reports[slot]++;
+            if (report.getSpeed() != null) {
+                speedReports[slot]++;
+                speedSums[slot] += report.getSpeed();
+            }
+            if (report.getCongestion() != null) {
+                congestions[slot * CONGESTIONS + report.getCongestion().ordinal()]++;
+            }
+            return true;
+        }
+
+        /**
+         * Sums the retained windows starting in [from, to).
+         */
+        synchronized CongestionWindow between(long from, long to) {
+            int windowReports = 0;
+            int windowSpeedReports = 0;
+            double windowSpeedSum = 0;
+            int[] windowCongestions = new int[CONGESTIONS];
+            for (int slot = 0; slot < windows; slot++) {
+                if (starts[slot] >= from && starts[slot] < to) {
+                    windowReports += reports[slot];
+                    windowSpeedReports += speedReports[slot];
+                    windowSpeedSum += speedSums[slot];
+                    for (int c = 0; c < CONGESTIONS; c++) {
+                        windowCongestions[c] += congestions[slot * CONGESTIONS + c];
+                    }
+                }
+            }
+            return new CongestionWindow(from, to, windowReports, windowSpeedReports, windowSpeedSum, windowCongestions);
+        }
+
+        private int slot(long start) {
+            long window = start / windowMillis;
+            return (int) (((window % windows) + windows) % windows);
+        }
+    }
+
+}
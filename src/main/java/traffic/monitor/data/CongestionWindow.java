@@ -0,0 +1,91 @@
+package traffic.monitor.data;
+
+import java.util.Date;
+
+import traffic.monitor.data.TrafficReport.Congestion;
+
+/**
+ * Immutable summary of the traffic reports made in a cell of the map during a
+ * window of time: how many there were, the average reported speed and how the
+ * reported congestion levels are distributed.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public class CongestionWindow {
+
+    private final long   start;
+
+    private final long   end;
+
+    private final int    reports;
+
+    private final int    speedReports;
+
+    private final double speedSum;
+
+    /**
+     * Number of reports per congestion level, indexed by ordinal.
+     */
+    private final int[]  congestions;
+
+    CongestionWindow(long start, long end, int reports, int speedReports, double speedSum, int[] congestions) {
+        this.start = start;
+        this.end = end;
+        this.reports = reports;
+        this.speedReports = speedReports;
+        this.speedSum = speedSum;
+        this.congestions = congestions;
+    }
+
+    /**
+     * @return the start of the window, milliseconds since the epoch
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * @return the end of the window, exclusive, milliseconds since the epoch
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    public int getReports() {
+        return reports;
+    }
+
+    /**
+     * @return the average speed of the reports giving one, null if none did
+     */
+    public Double getAverageSpeed() {
+        return speedReports == 0 ? null : speedSum / speedReports;
+    }
+
+    public int getCount(Congestion congestion) {
+        return congestions[congestion.ordinal()];
+    }
+
+    /**
+     * @return the congestion level reported the most, null for an empty window
+     */
+    public Congestion getDominantCongestion() {
+        Congestion dominant = null;
+        int dominantCount = 0;
+        for (Congestion congestion : Congestion.values()) {
+            if (congestions[congestion.ordinal()] > dominantCount) {
+                dominant = congestion;
+                dominantCount = congestions[congestion.ordinal()];
+            }
+        }
+        return dominant;
+    }
+
+    @Override
+    public String toString() {
+        return "CongestionWindow [start=" + new Date(start) + ", end=" + new Date(end) + ", reports=" + reports + ", averageSpeed="
+                + getAverageSpeed() + ", dominantCongestion=" + getDominantCongestion() + "]";
+    }
+
+}
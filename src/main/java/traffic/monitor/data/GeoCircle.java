@@ -0,0 +1,76 @@
+package traffic.monitor.data;
+
+/**
+ * Area within a radius, in metres, around a location, for testing many
+ * locations against the same radius. Everything derived from the centre is
+ * computed once: the bounding box of the circle in degrees, which rejects
+ * most of the locations with two subtractions and two comparisons, and the
+ * cosine of the latitude of the centre, which the {@link GeoDistance}
+ * equirectangular approximation the remaining locations are checked with
+ * needs. No trigonometric function is called per location, nor square root.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public final class GeoCircle {
+
+    private final double latitude;
+
+    private final double longitude;
+
+    private final double cosLatitude;
+
+    /**
+     * Half height of the bounding box, in degrees, which is also the radius
+     * in degrees of latitude.
+     */
+    private final double latitudeRadius;
+
+    /**
+     * Half width of the bounding box, in degrees.
+     */
+    private final double longitudeRadius;
+
+    public GeoCircle(double latitude, double longitude, double radius) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        cosLatitude = GeoDistance.cosLatitude(latitude);
+        latitudeRadius = GeoDistance.latitudeDegrees(Math.max(radius, 0));
+        longitudeRadius = GeoDistance.longitudeDegrees(Math.max(radius, 0), latitude);
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public double getLatitudeRadius() {
+        return latitudeRadius;
+    }
+
+    public double getLongitudeRadius() {
+        return longitudeRadius;
+    }
+
+    /**
+     * @return true if the location is strictly closer than the radius to the
+     *         centre
+     */
+    public boolean contains(double latitude, double longitude) {
+        double y = latitude - this.latitude;
+        if (y >= latitudeRadius || y <= -latitudeRadius) {
+            return false;
+        }
+        double dx = longitude - this.longitude;
+        if (dx >= longitudeRadius || dx <= -longitudeRadius) {
+            return false;
+        }
+        // distances compared in degrees of latitude
+        double x = dx * cosLatitude;
+        return x * x + y * y < latitudeRadius * latitudeRadius;
+    }
+
+}
@@ -0,0 +1,68 @@
+package traffic.monitor.data;
+
+/**
+ * Distances on the surface of the earth, in metres, between locations given
+ * by their latitude and longitude in degrees. The haversine formula is
+ * accurate to the metre at any distance; the equirectangular approximation
+ * projects the locations on a plane tangent at a reference latitude, whose
+ * cosine is computed once by the caller, and is as accurate at the scale of a
+ * city for a fraction of the cost.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public final class GeoDistance {
+
+    /**
+     * Mean radius of the earth.
+     */
+    public static final double EARTH_RADIUS_METRES = 6371008.8;
+
+    /**
+     * Length of a degree of latitude, or of longitude on the equator.
+     */
+    public static final double METRES_PER_DEGREE   = EARTH_RADIUS_METRES * Math.PI / 180;
+
+    private GeoDistance() {
+    }
+
+    public static double haversine(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double latitudeSine = Math.sin(Math.toRadians(latitude2 - latitude1) / 2);
+        double longitudeSine = Math.sin(Math.toRadians(longitude2 - longitude1) / 2);
+        double a = latitudeSine * latitudeSine + Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2)) * longitudeSine
+                * longitudeSine;
+        return 2 * EARTH_RADIUS_METRES * Math.asin(Math.min(Math.sqrt(a), 1));
+    }
+
+    /**
+     * @param cosLatitude
+     *            cosine of the latitude the locations are projected at,
+     *            usually one of theirs
+     */
+    public static double equirectangular(double latitude1, double longitude1, double latitude2, double longitude2, double cosLatitude) {
+        double x = (longitude2 - longitude1) * cosLatitude;
+        double y = latitude2 - latitude1;
+        return METRES_PER_DEGREE * Math.sqrt(x * x + y * y);
+    }
+
+    public static double cosLatitude(double latitude) {
+        return Math.cos(Math.toRadians(latitude));
+    }
+
+    /**
+     * @return the degrees of latitude covering the distance
+     */
+    public static double latitudeDegrees(double metres) {
+        return metres / METRES_PER_DEGREE;
+    }
+
+    /**
+     * @return the degrees of longitude covering the distance along the
+     *         parallel of the latitude, 360 near the poles
+     */
+    public static double longitudeDegrees(double metres, double latitude) {
+        double cosine = cosLatitude(latitude);
+        return cosine < 1e-9 ? 360 : Math.min(metres / (METRES_PER_DEGREE * cosine), 360);
+    }
+
+}
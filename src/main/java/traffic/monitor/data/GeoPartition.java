@@ -0,0 +1,84 @@
+package traffic.monitor.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Splits the map into vertical bands, one per dispatcher shard. Band
+ * boundaries are longitude quantiles of the tube stations, so every band holds
+ * about the same number of stations whatever their density. The first and the
+ * last band extend to the edges of the map.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public class GeoPartition {
+
+    /**
+     * Upper longitude boundary of every band but the last one, in ascending
+     * order.
+     */
+    private final double[] boundaries;
+
+    public GeoPartition(Collection<Location> stations, int parts) {
+        if (parts < 1) {
+            throw new IllegalArgumentException("a partition needs at least one part, got " + parts);
+        }
+        double[] longitudes = new double[stations.size()];
+        int i = 0;
+        for (Location station : stations) {
+            longitudes[i++] = station.getLongitude();
+        }
+        Arrays.sort(longitudes);
+        boundaries = new double[parts - 1];
+        for (int part = 1; part < parts; part++) {
+            boundaries[part - 1] = longitudes.length == 0 ? 0 : longitudes[(int) ((long) part * longitudes.length / parts)];
+        }
+    }
+
+    public int size() {
+        return boundaries.length + 1;
+    }
+
+    /**
+     * @return the index of the band the location falls in
+     */
+    public int partOf(Location location) {
+        return partOf(location.getLongitude());
+    }
+
+    public int partOf(double longitude) {
+        int low = 0;
+        int high = boundaries.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (longitude < boundaries[middle]) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the stations of the given band, plus those of the neighbouring
+     *         bands closer than margin degrees of longitude to its boundaries,
+     *         so that any location of the band can be checked against its
+     *         slice alone
+     */
+    public List<Location> slice(Collection<Location> stations, int part, double margin) {
+        double lower = part == 0 ? Double.NEGATIVE_INFINITY : boundaries[part - 1] - margin;
+        double upper = part == boundaries.length ? Double.POSITIVE_INFINITY : boundaries[part] + margin;
+        List<Location> slice = new ArrayList<>();
+        for (Location station : stations) {
+            if (station.getLongitude() >= lower && station.getLongitude() <= upper) {
+                slice.add(station);
+            }
+        }
+        return slice;
+    }
+
+}
@@ -0,0 +1,235 @@
+package traffic.monitor.data;
+
+import java.util.Collection;
+
+/**
+ * Uniform grid over the bounding box of the tube stations. Stations are
+ * bucketed by cell once at construction time and queries only visit the cells
+ * overlapping the bounding box of the search radius, or the rings of cells
+ * around the query location that can still contain a closer station, so the
+ * cost of a lookup no longer depends on the total number of stations.
+ * 
+ * Cells are kept in a compact layout: stations are stored sorted by cell and
+ * {@code cellStart[c]} points to the first station of cell {@code c}. Their
+ * coordinates are also kept in arrays of primitives, read by the distance
+ * computations.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public class GridTubeStationIndex implements TubeStationIndex {
+
+    /**
+     * Average number of stations a cell should hold when the cell size is
+     * derived from the data.
+     */
+    private static final int STATIONS_PER_CELL = 2;
+
+    private static final double MIN_CELL_SIZE  = 1e-6;
+
+    private final double     minLatitude;
+
+    private final double     minLongitude;
+
+    private final double     cellSize;
+
+    private final int        rows;
+
+    private final int        columns;
+
+    private final int[]      cellStart;
+
+    private final Location[] stations;
+
+    private final double[]   latitudes;
+
+    private final double[]   longitudes;
+
+    public GridTubeStationIndex(Collection<Location> stations) {
+        this(stations, defaultCellSize(stations));
+    }
+
+    public GridTubeStationIndex(Collection<Location> stations, double cellSize) {
+        double minLat = Double.POSITIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        for (Location station : stations) {
+            minLat = Math.min(minLat, station.getLatitude());
+            minLon = Math.min(minLon, station.getLongitude());
+            maxLat = Math.max(maxLat, station.getLatitude());
+            maxLon = Math.max(maxLon, station.getLongitude());
+        }
+        this.cellSize = Math.max(cellSize, MIN_CELL_SIZE);
+        if (stations.isEmpty()) {
+            minLatitude = 0;
+            minLongitude = 0;
+            rows = 0;
+            columns = 0;
+        } else {
+            minLatitude = minLat;
+            minLongitude = minLon;
+            rows = (int) ((maxLat - minLat) / this.cellSize) + 1;
+            columns = (int) ((maxLon - minLon) / this.cellSize) + 1;
+        }
+
+        // counting sort of the stations by cell
+        cellStart = new int[rows * columns + 1];
+        int[] cells = new int[stations.size()];
+        int i = 0;
+        for (Location station : stations) {
+            cells[i] = row(station.getLatitude()) * columns + column(station.getLongitude());
+            cellStart[cells[i] + 1]++;
+            i++;
+        }
+        for (int c = 0; c < rows * columns; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        int[] next = cellStart.clone();
+        this.stations = new Location[stations.size()];
+        latitudes = new double[stations.size()];
+        longitudes = new double[stations.size()];
+        i = 0;
+        for (Location station : stations) {
+            int position = next[cells[i++]]++;
+            this.stations[position] = station;
+            latitudes[position] = station.getLatitude();
+            longitudes[position] = station.getLongitude();
+        }
+    }
+
+    private static double defaultCellSize(Collection<Location> stations) {
+        if (stations.isEmpty()) {
+            return MIN_CELL_SIZE;
+        }
+        double minLat = Double.POSITIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        for (Location station : stations) {
+            minLat = Math.min(minLat, station.getLatitude());
+            minLon = Math.min(minLon, station.getLongitude());
+            maxLat = Math.max(maxLat, station.getLatitude());
+            maxLon = Math.max(maxLon, station.getLongitude());
+        }
+        return Math.sqrt(STATIONS_PER_CELL * (maxLat - minLat) * (maxLon - minLon) / stations.size());
+    }
+
+    @Override
+    public boolean anyWithin(Location location, double radius) {
+        if (stations.length == 0) {
+            return false;
+        }
+        GeoCircle circle = new GeoCircle(location.getLatitude(), location.getLongitude(), radius);
+        int fromRow = Math.max(clampedRow(circle.getLatitude() - circle.getLatitudeRadius()), 0);
+        int toRow = Math.min(clampedRow(circle.getLatitude() + circle.getLatitudeRadius()), rows - 1);
+        int fromColumn = Math.max(clampedColumn(circle.getLongitude() - circle.getLongitudeRadius()), 0);
+        int toColumn = Math.min(clampedColumn(circle.getLongitude() + circle.getLongitudeRadius()), columns - 1);
+        for (int row = fromRow; row <= toRow; row++) {
+            for (int cell = row * columns + fromColumn; cell <= row * columns + toColumn; cell++) {
+                for (int s = cellStart[cell]; s < cellStart[cell + 1]; s++) {
+                    if (circle.contains(latitudes[s], longitudes[s])) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Location nearest(Location location) {
+        if (stations.length == 0) {
+            return null;
+        }
+        double latitude = location.getLatitude();
+        double longitude = location.getLongitude();
+        int queryRow = clampedRow(latitude);
+        int queryColumn = clampedColumn(longitude);
+        int lastRing = lastRing(queryRow, queryColumn);
+        // shortest length of a cell side, along the parallel farthest from
+        // the equator
+        double maxAbsLatitude = Math.max(Math.max(Math.abs(minLatitude), Math.abs(minLatitude + rows * cellSize)), Math.abs(latitude));
+        double cellMetres = cellSize * GeoDistance.METRES_PER_DEGREE * GeoDistance.cosLatitude(Math.min(maxAbsLatitude, 90));
+        int nearest = -1;
+        double nearestDistance = Double.POSITIVE_INFINITY;
+        for (int ring = firstRing(queryRow, queryColumn); ring <= lastRing; ring++) {
+            // every cell of this ring is at least (ring - 1) cells away
+            if (nearest >= 0 && nearestDistance <= (ring - 1) * cellMetres) {
+                break;
+            }
+            int candidate = scanRing(latitude, longitude, queryRow, queryColumn, ring, nearestDistance);
+            if (candidate >= 0) {
+                nearest = candidate;
+                nearestDistance = GeoDistance.haversine(latitudes[candidate], longitudes[candidate], latitude, longitude);
+            }
+        }
+        return nearest < 0 ? null : stations[nearest];
+    }
+
+    @Override
+    public int size() {
+        return stations.length;
+    }
+
+    /**
+     * @return the position of the station of the ring closest to the location
+     *         and strictly closer than maxDistance, or -1 if there is none
+     */
+    private int scanRing(double latitude, double longitude, int queryRow, int queryColumn, int ring, double maxDistance) {
+        int nearest = -1;
+        double nearestDistance = maxDistance;
+        int fromRow = Math.max(queryRow - ring, 0);
+        int toRow = Math.min(queryRow + ring, rows - 1);
+        for (int row = fromRow; row <= toRow; row++) {
+            boolean fullRow = row == queryRow - ring || row == queryRow + ring;
+            int step = fullRow ? 1 : Math.max(2 * ring, 1);
+            for (int column = queryColumn - ring; column <= queryColumn + ring; column += step) {
+                if (column < 0 || column >= columns) {
+                    continue;
+                }
+                int cell = row * columns + column;
+                for (int s = cellStart[cell]; s < cellStart[cell + 1]; s++) {
+                    double distance = GeoDistance.haversine(latitudes[s], longitudes[s], latitude, longitude);
+                    if (distance < nearestDistance) {
+                        nearestDistance = distance;
+                        nearest = s;
+                    }
+                }
+            }
+        }
+        return nearest;
+    }
+
+    private int firstRing(int queryRow, int queryColumn) {
+        int rowGap = Math.max(Math.max(-queryRow, queryRow - (rows - 1)), 0);
+        int columnGap = Math.max(Math.max(-queryColumn, queryColumn - (columns - 1)), 0);
+        return Math.max(rowGap, columnGap);
+    }
+
+    private int lastRing(int queryRow, int queryColumn) {
+        int rowSpan = Math.max(Math.abs(queryRow), Math.abs(rows - 1 - queryRow));
+        int columnSpan = Math.max(Math.abs(queryColumn), Math.abs(columns - 1 - queryColumn));
+        return Math.max(rowSpan, columnSpan);
+    }
+
+    private int row(double latitude) {
+        return (int) ((latitude - minLatitude) / cellSize);
+    }
+
+    private int column(double longitude) {
+        return (int) ((longitude - minLongitude) / cellSize);
+    }
+
+    /**
+     * Locations outside of the grid are mapped on the ring of virtual cells
+     * surrounding it, which keeps the ring distance a valid lower bound.
+     */
+    private int clampedRow(double latitude) {
+        return (int) Math.max(-1, Math.min(rows, Math.floor((latitude - minLatitude) / cellSize)));
+    }
+
+    private int clampedColumn(double longitude) {
+        return (int) Math.max(-1, Math.min(columns, Math.floor((longitude - minLongitude) / cellSize)));
+    }
+}
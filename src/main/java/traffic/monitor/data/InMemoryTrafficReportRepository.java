@@ -1,46 +1,188 @@
 package traffic.monitor.data;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Naive implementation of a repository that works with a simple collection to
- * store and retrieve TrafficReport objects. Instances of this type should be
- * used only for simulations or tests.
+ * Repository keeping the reports in memory, in an append only log per drone.
+ * Instances of this type should be used only for simulations or tests.
+ * 
+ * Reports can be saved from several threads. Readers never lock: each query
+ * works on the reports of a drone published when it starts, so it sees a
+ * consistent prefix of the log even while reports keep coming in. Reports are
+ * also indexed by place and time, to find those made around a location.
  * 
  * @author Sorin Petre Nica
  * 
  */
 public class InMemoryTrafficReportRepository implements Repository<TrafficReport> {
 
-    private final Map<Long, List<TrafficReport>> inMemoryDb;
+    private static final Comparator<TrafficReport> BY_TIME = new Comparator<TrafficReport>() {
+        @Override
+        public int compare(TrafficReport r1, TrafficReport r2) {
+            return Long.compare(r1.getTime(), r2.getTime());
+        }
+    };
+
+    /**
+     * Side in degrees of the cells of the index by place and time.
+     */
+    public static final double                      DEFAULT_CELL_SIZE     = 0.005;
+
+    /**
+     * Length of time of the buckets of the index by place and time.
+     */
+    public static final long                        DEFAULT_BUCKET_MILLIS = 60000;
+
+    private final ConcurrentMap<Long, DroneReports> inMemoryDb;
+
+    private final AtomicLong                        totalCount;
+
+    private final SpatioTemporalReportIndex         spatioTemporalIndex;
 
     public InMemoryTrafficReportRepository() {
-        inMemoryDb = new HashMap<>();
+        this(DEFAULT_CELL_SIZE, DEFAULT_BUCKET_MILLIS);
+    }
+
+    public InMemoryTrafficReportRepository(double cellSize, long bucketMillis) {
+        inMemoryDb = new ConcurrentHashMap<>();
+        totalCount = new AtomicLong();
+        spatioTemporalIndex = new SpatioTemporalReportIndex(cellSize, bucketMillis);
     }
 
     @Override
     public void save(TrafficReport trafficReport) {
-        if (!inMemoryDb.containsKey(trafficReport.getDroneId())) {
-            inMemoryDb.put(trafficReport.getDroneId(), new ArrayList<TrafficReport>());
+        DroneReports reports = inMemoryDb.get(trafficReport.getDroneId());
+        if (reports == null) {
+            DroneReports newReports = new DroneReports();
+            reports = inMemoryDb.putIfAbsent(trafficReport.getDroneId(), newReports);
+            if (reports == null) {
+                reports = newReports;
+            }
         }
-        inMemoryDb.get(trafficReport.getDroneId()).add(trafficReport);
+        reports.append(trafficReport);
+        spatioTemporalIndex.add(trafficReport);
+        totalCount.incrementAndGet();
     }
 
     @Override
     public Long count() {
-        long totalCount = 0;
-        for (Long droneId : inMemoryDb.keySet()) {
-            totalCount += countByDrone(droneId);
-        }
-        return totalCount;
+        return totalCount.get();
     }
 
     @Override
     public Long countByDrone(Long droneId) {
-        return new Long(inMemoryDb.get(droneId).size());
+        DroneReports reports = inMemoryDb.get(droneId);
+        return reports == null ? 0L : reports.size;
+    }
+
+    @Override
+    public List<TrafficReport> findByDrone(Long droneId, long fromTime, long toTime) {
+        DroneReports reports = inMemoryDb.get(droneId);
+        if (reports == null) {
+            return Collections.emptyList();
+        }
+        return reports.between(fromTime, toTime);
+    }
+
+    @Override
+    public TrafficReport findLatestByDrone(Long droneId) {
+        DroneReports reports = inMemoryDb.get(droneId);
+        return reports == null ? null : reports.latest;
+    }
+
+    @Override
+    public Map<Long, TrafficReport> findLatest() {
+        Map<Long, TrafficReport> latest = new HashMap<>();
+        for (Map.Entry<Long, DroneReports> reports : inMemoryDb.entrySet()) {
+            TrafficReport report = reports.getValue().latest;
+            if (report != null) {
+                latest.put(reports.getKey(), report);
+            }
+        }
+        return latest;
+    }
+
+    @Override
+    public List<TrafficReport> findWithin(Location location, double radius, long fromTime, long toTime) {
+        return spatioTemporalIndex.findWithin(location, radius, fromTime, toTime);
+    }
+
+    /**
+     * Append only log of the reports of a drone. Writers are serialized on the
+     * log; the volatile size publishes every report appended before it, and
+     * the grown array along with it since the array is volatile as well. The
+     * entries below the size are never written again, even when the array is
+     * grown, so a reader reading the size first, then the array, has a stable
+     * snapshot.
+     */
+    private static final class DroneReports {
+
+        private volatile TrafficReport[] reports = new TrafficReport[16];
+
+        private volatile int             size;
+
+        /**
+         * Whether the reports were appended in chronological order, which lets
+         * time windows be found by binary search.
+         */
+        private volatile boolean         chronological = true;
+
+        private volatile TrafficReport   latest;
+
+        private synchronized void append(TrafficReport report) {
+            if (size == reports.length) {
+                reports = Arrays.copyOf(reports, size * 2);
+            }
+            reports[size] = report;
+            if (latest != null && report.getTime() < latest.getTime()) {
+                chronological = false;
+            } else {
+                latest = report;
+            }
+            size++;
+        }
+
+        private List<TrafficReport> between(long fromTime, long toTime) {
+            int snapshotSize = size;
+            boolean sorted = chronological;
+            TrafficReport[] snapshot = reports;
+            if (sorted) {
+                int from = firstNotBefore(snapshot, snapshotSize, fromTime);
+                int to = firstNotBefore(snapshot, snapshotSize, toTime);
+                return from >= to ? Collections.<TrafficReport> emptyList() : new ArrayList<>(Arrays.asList(snapshot).subList(from, to));
+            }
+            List<TrafficReport> window = new ArrayList<>();
+            for (int i = 0; i < snapshotSize; i++) {
+                if (snapshot[i].getTime() >= fromTime && snapshot[i].getTime() < toTime) {
+                    window.add(snapshot[i]);
+                }
+            }
+            Collections.sort(window, BY_TIME);
+            return window;
+        }
+
+        private static int firstNotBefore(TrafficReport[] snapshot, int size, long time) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (snapshot[middle].getTime() < time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
     }
 
 }
@@ -0,0 +1,52 @@
+package traffic.monitor.data;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Brute force index that compares the location with every station. Kept as
+ * the reference implementation for benchmarks and for very small data sets.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public class LinearScanTubeStationIndex implements TubeStationIndex {
+
+    private final List<Location> stations;
+
+    public LinearScanTubeStationIndex(Collection<Location> stations) {
+        this.stations = new ArrayList<>(stations);
+    }
+
+    @Override
+    public boolean anyWithin(Location location, double radius) {
+        GeoCircle circle = new GeoCircle(location.getLatitude(), location.getLongitude(), radius);
+        for (Location station : stations) {
+            if (circle.contains(station.getLatitude(), station.getLongitude())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Location nearest(Location location) {
+        Location nearest = null;
+        double nearestDistance = Double.POSITIVE_INFINITY;
+        for (Location station : stations) {
+            double distance = station.distanceTo(location);
+            if (distance < nearestDistance) {
+                nearestDistance = distance;
+                nearest = station;
+            }
+        }
+        return nearest;
+    }
+
+    @Override
+    public int size() {
+        return stations.size();
+    }
+
+}
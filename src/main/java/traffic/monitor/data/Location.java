@@ -1,12 +1,16 @@
 package traffic.monitor.data;
 
+import java.io.Serializable;
+
 /**
  * Immutable type that represents a geographic location.
  * 
  * @author Sorin Petre Nica
  * 
  */
-public class Location {
+public class Location implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private final Double latitude;
     private final Double longitude;
@@ -24,10 +28,11 @@ public class Location {
         return latitude;
     }
 
-    public Double distanceTo(Location otherLocation) {
-        double dx = latitude - otherLocation.latitude;
-        double dy = longitude - otherLocation.longitude;
-        return Math.sqrt(Math.pow(dx, 2) + Math.pow(dy, 2));
+    /**
+     * @return the distance in metres to the other location
+     */
+    public double distanceTo(Location otherLocation) {
+        return GeoDistance.haversine(latitude, longitude, otherLocation.latitude, otherLocation.longitude);
     }
 
     @Override
@@ -0,0 +1,243 @@
+package traffic.monitor.data;
+
+import java.util.Arrays;
+
+/**
+ * Answers whether locations are closer than a radius to a tube station,
+ * caching the answers per cell of a fine grid over the map. Waypoints of a
+ * route are metres apart and drones drive along the same streets, so most
+ * locations fall in a cell already looked up.
+ * 
+ * Answers are exact: the answer of a cell is only cached when it holds for
+ * every location of the cell, that is when a station is closer than the
+ * radius less a guard band to the centre of the cell, or none is closer than
+ * the radius plus the guard band. The guard band is half the diagonal of a
+ * cell plus a margin covering the approximations of the distances. Cells
+ * straddling the radius of a station are cached as such and their locations
+ * looked up in the index every time.
+ * 
+ * The cache holds a bounded number of cells, evicted in CLOCK order: cells
+ * looked up since the hand last passed them get a second chance. Cells are
+ * kept in arrays of primitives behind an open addressing table, so a hit
+ * allocates nothing. Not thread safe, every dispatcher shard has its own.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public class ProximityCache {
+
+    /**
+     * Distance covering the differences between the approximated distances
+     * of a location and of the centre of its cell to a station.
+     */
+    private static final double      GUARD_MARGIN_METRES  = 1;
+
+    private static final long        HASH_MULTIPLIER      = 0x9E3779B97F4A7C15L;
+
+    private static final byte        NOT_NEARBY           = 0;
+
+    private static final byte        NEARBY               = 1;
+
+    private static final byte        BOUNDARY             = 2;
+
+    private final TubeStationIndex   tubeStations;
+
+    private final double             radius;
+
+    /**
+     * Side of the cells, in degrees of latitude and longitude alike.
+     */
+    private final double             cellSize;
+
+    private final double             guard;
+
+    private final int                capacity;
+
+    private final long[]             cells;
+
+    private final byte[]             answers;
+
+    private final boolean[]          referenced;
+
+    /**
+     * Slots of the cells by hash of the cell, -1 for an empty entry, two to
+     * four times as large as the capacity.
+     */
+    private final int[]              table;
+
+    private final int                hashShift;
+
+    private int                      size;
+
+    private int                      hand;
+
+    private long                     hits;
+
+    private long                     misses;
+
+    private long                     boundaryLookups;
+
+    /**
+     * @param radius
+     *            distance to a station, in metres
+     * @param cellMetres
+     *            side of the cells along the meridians, in metres; cells are
+     *            narrower along the parallels, in proportion to the cosine of
+     *            the latitude
+     * @param capacity
+     *            number of cells cached, 0 to cache none
+     */
+    public ProximityCache(TubeStationIndex tubeStations, double radius, double cellMetres, int capacity) {
+        if (cellMetres <= 0 || capacity < 0) {
+            throw new IllegalArgumentException("invalid cache of " + capacity + " cells of " + cellMetres + " m");
+        }
+        this.tubeStations = tubeStations;
+        this.radius = radius;
+        this.capacity = capacity;
+        cellSize = GeoDistance.latitudeDegrees(cellMetres);
+        guard = cellMetres * Math.sqrt(2) / 2 + GUARD_MARGIN_METRES;
+        cells = new long[capacity];
+        answers = new byte[capacity];
+        referenced = new boolean[capacity];
+        int tableSize = Integer.highestOneBit(Math.max(capacity, 1)) << 2;
+        table = new int[tableSize];
+        Arrays.fill(table, -1);
+        hashShift = 64 - Integer.numberOfTrailingZeros(tableSize);
+    }
+
+    /**
+     * @return true if a station is strictly closer than the radius to the
+     *         location
+     */
+    public boolean isNearby(double latitude, double longitude) {
+        if (capacity == 0) {
+            misses++;
+            return tubeStations.anyWithin(new Location(latitude, longitude), radius);
+        }
+        long row = (long) Math.floor(latitude / cellSize);
+        long column = (long) Math.floor(longitude / cellSize);
+        long cell = (row << 32) | (column & 0xFFFFFFFFL);
+        int slot = find(cell);
+        byte answer;
+        if (slot >= 0) {
+            hits++;
+            referenced[slot] = true;
+            answer = answers[slot];
+        } else {
+            misses++;
+            answer = lookUp((row + 0.5) * cellSize, (column + 0.5) * cellSize);
+            insert(cell, answer);
+        }
+        if (answer == BOUNDARY) {
+            boundaryLookups++;
+            return tubeStations.anyWithin(new Location(latitude, longitude), radius);
+        }
+        return answer == NEARBY;
+    }
+
+    public int stationCount() {
+        return tubeStations.size();
+    }
+
+    /**
+     * @return the number of locations whose cell was cached
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of locations whose cell had to be looked up
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of locations looked up in the index because their
+     *         cell straddles the radius of a station
+     */
+    public long getBoundaryLookups() {
+        return boundaryLookups;
+    }
+
+    private byte lookUp(double latitude, double longitude) {
+        Location centre = new Location(latitude, longitude);
+        if (tubeStations.anyWithin(centre, radius - guard)) {
+            return NEARBY;
+        }
+        if (!tubeStations.anyWithin(centre, radius + guard)) {
+            return NOT_NEARBY;
+        }
+        return BOUNDARY;
+    }
+
+    private int find(long cell) {
+        for (int i = hash(cell);; i = (i + 1) & (table.length - 1)) {
+            int slot = table[i];
+            if (slot < 0 || cells[slot] == cell) {
+                return slot;
+            }
+        }
+    }
+
+    private void insert(long cell, byte answer) {
+        int slot;
+        if (size < capacity) {
+            slot = size++;
+        } else {
+            slot = evict();
+        }
+        cells[slot] = cell;
+        answers[slot] = answer;
+        referenced[slot] = false;
+        int i = hash(cell);
+        while (table[i] >= 0) {
+            i = (i + 1) & (table.length - 1);
+        }
+        table[i] = slot;
+    }
+
+    /**
+     * Moves the hand to the first cell not looked up since it last passed,
+     * clearing the marks on its way, and removes that cell.
+     * 
+     * @return the slot of the removed cell
+     */
+    private int evict() {
+        while (referenced[hand]) {
+            referenced[hand] = false;
+            hand = hand + 1 == capacity ? 0 : hand + 1;
+        }
+        int victim = hand;
+        hand = hand + 1 == capacity ? 0 : hand + 1;
+        remove(cells[victim]);
+        return victim;
+    }
+
+    /**
+     * Removes the cell from the table, moving back the entries after it that
+     * would no longer be reachable from their hash.
+     */
+    private void remove(long cell) {
+        int mask = table.length - 1;
+        int i = hash(cell);
+        while (cells[table[i]] != cell) {
+            i = (i + 1) & mask;
+        }
+        for (int j = (i + 1) & mask; table[j] >= 0; j = (j + 1) & mask) {
+            int home = hash(cells[table[j]]);
+            // the entry can move to i if i lies between its home and j
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                table[i] = table[j];
+                i = j;
+            }
+        }
+        table[i] = -1;
+    }
+
+    private int hash(long cell) {
+        return (int) ((cell * HASH_MULTIPLIER) >>> hashShift);
+    }
+
+}
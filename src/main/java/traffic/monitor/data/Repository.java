@@ -1,5 +1,8 @@
 package traffic.monitor.data;
 
+import java.util.List;
+import java.util.Map;
+
 public interface Repository<E> {
 
     void save(TrafficReport trafficReport);
@@ -7,4 +10,27 @@ public interface Repository<E> {
     Long count();
 
     Long countByDrone(Long droneId);
+
+    /**
+     * @return the reports of the drone with a time from fromTime inclusive to
+     *         toTime exclusive, in chronological order
+     */
+    List<E> findByDrone(Long droneId, long fromTime, long toTime);
+
+    /**
+     * @return the most recent report of the drone, null if it has none
+     */
+    E findLatestByDrone(Long droneId);
+
+    /**
+     * @return the most recent report of every drone having reports
+     */
+    Map<Long, E> findLatest();
+
+    /**
+     * @return the reports made less than radius metres away from the location
+     *         with a time from fromTime inclusive to toTime exclusive, in
+     *         chronological order
+     */
+    List<E> findWithin(Location location, double radius, long fromTime, long toTime);
 }
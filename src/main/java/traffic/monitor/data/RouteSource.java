@@ -0,0 +1,40 @@
+package traffic.monitor.data;
+
+import java.io.Closeable;
+
+/**
+ * Supplies the waypoints of a single drone route, in chronological order, a
+ * batch at a time.
+ * 
+ * Route files hold one waypoint per line: the drone identifier, the latitude,
+ * the longitude and the yyyy-MM-dd HH:mm:ss time of the waypoint.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public interface RouteSource extends Closeable {
+
+    int LATITUDE_FIELD  = 1;
+
+    int LONGITUDE_FIELD = 2;
+
+    int TIME_FIELD      = 3;
+
+    Long getDroneId();
+
+    /**
+     * Takes up to max waypoints from the route.
+     * 
+     * @return the next waypoints, an empty batch once the route is exhausted
+     */
+    WayPointBatch nextBatch(int max);
+
+    /**
+     * @return the next waypoint of the route without taking it, null once the
+     *         route is exhausted
+     */
+    WayPoint peek();
+
+    boolean isExhausted();
+
+}
@@ -0,0 +1,316 @@
+package traffic.monitor.data;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import traffic.monitor.data.TrafficReport.Congestion;
+import traffic.monitor.util.FileUtil;
+
+/**
+ * Repository persisting the reports in an append only log of memory mapped
+ * segment files. Each segment starts with a header:
+ * 
+ * <pre>
+ * 0  magic             int, 0x524C4F47
+ * 4  version           int
+ * 8  record size       int
+ * 12 reserved          4 bytes
+ * </pre>
+ * 
+ * followed by the reports, each written as a fixed width binary record:
+ * 
+ * <pre>
+ * 0  drone identifier  long
+ * 8  time              long, milliseconds since the epoch
+ * 16 speed             double, NaN when unknown
+ * 24 latitude          double, NaN when unknown
+ * 32 longitude         double, NaN when unknown
+ * 40 congestion        byte, ordinal + 1, 0xFF when unknown, 0 for a free slot
+ * 41 reserved          7 bytes
+ * </pre>
+ * 
+ * The congestion byte is written last and marks the record as complete. When
+ * a segment is full a new one is started. Segments whose header does not
+ * match the layout above are refused rather than read or written with a
+ * layout they were not written with. Writes only copy the record in the
+ * mapped pages, which reach the file even if the JVM dies; to survive an
+ * operating system crash the pages are forced to disk by a background thread
+ * every commit interval, one force covering all the reports written since
+ * the previous one.
+ * 
+ * Queries are answered by an {@link InMemoryTrafficReportRepository}, rebuilt
+ * from the segments when the repository is opened.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public class SegmentLogTrafficReportRepository implements Repository<TrafficReport>, Closeable {
+
+    public static final int                       MAGIC            = 0x524C4F47;
+
+    public static final int                       VERSION          = 1;
+
+    public static final int                       HEADER_SIZE      = 16;
+
+    public static final int                       RECORD_SIZE      = 48;
+
+    private static final String                   SEGMENT_PREFIX   = "reports-";
+
+    private static final String                   SEGMENT_SUFFIX   = ".seg";
+
+    private static final String                   SEGMENT_GLOB     = SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX;
+
+    private static final int                      CONGESTION_FIELD = 40;
+
+    /**
+     * Congestion byte of a report without congestion, 0 marking a free slot.
+     */
+    private static final byte                     NO_CONGESTION    = (byte) 0xFF;
+
+    private static final Congestion[]             CONGESTIONS      = Congestion.values();
+
+    private static final Logger                   LOG              = Logger.getLogger(SegmentLogTrafficReportRepository.class);
+
+    private final File                            directory;
+
+    private final long                            segmentSize;
+
+    private final InMemoryTrafficReportRepository index;
+
+    private final ScheduledExecutorService        committer;
+
+    private int                                   segmentNumber;
+
+    private MappedByteBuffer                      segment;
+
+    /**
+     * Whether reports were written since the last commit.
+     */
+    private boolean                               dirty;
+
+    private boolean                               closed;
+
+    /**
+     * @param segmentSize
+     *            size of the segment files in bytes, header included, rounded
+     *            down to a whole number of records
+     * @param commitIntervalMillis
+     *            time between two forces of the written reports to disk
+     * @param index
+     *            empty repository the queries are answered by
+     */
+    public SegmentLogTrafficReportRepository(String directory, long segmentSize, long commitIntervalMillis, InMemoryTrafficReportRepository index) {
+        if (segmentSize < HEADER_SIZE + RECORD_SIZE || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("segment size must hold at least one record and fit in a single mapping, got " + segmentSize);
+        }
+        this.directory = new File(directory);
+        this.segmentSize = segmentSize - (segmentSize - HEADER_SIZE) % RECORD_SIZE;
+        this.index = index;
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new RuntimeException("unable to create the reports directory " + directory);
+        }
+        recover();
+
+        committer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Report Log Committer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        committer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                commit();
+            }
+        }, commitIntervalMillis, commitIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void save(TrafficReport trafficReport) {
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("the reports log is closed");
+            }
+            if (segment.remaining() < RECORD_SIZE) {
+                roll();
+            }
+            int position = segment.position();
+            segment.putLong(position, trafficReport.getDroneId());
+            segment.putLong(position + 8, trafficReport.getTime());
+            segment.putDouble(position + 16, trafficReport.getSpeed() == null ? Double.NaN : trafficReport.getSpeed());
+            Location location = trafficReport.getLocation();
+            segment.putDouble(position + 24, location == null ? Double.NaN : location.getLatitude());
+            segment.putDouble(position + 32, location == null ? Double.NaN : location.getLongitude());
+            Congestion congestion = trafficReport.getCongestion();
+            segment.put(position + CONGESTION_FIELD, congestion == null ? NO_CONGESTION : (byte) (congestion.ordinal() + 1));
+            segment.position(position + RECORD_SIZE);
+            dirty = true;
+        }
+        index.save(trafficReport);
+    }
+
+    @Override
+    public Long count() {
+        return index.count();
+    }
+
+    @Override
+    public Long countByDrone(Long droneId) {
+        return index.countByDrone(droneId);
+    }
+
+    @Override
+    public List<TrafficReport> findByDrone(Long droneId, long fromTime, long toTime) {
+        return index.findByDrone(droneId, fromTime, toTime);
+    }
+
+    @Override
+    public TrafficReport findLatestByDrone(Long droneId) {
+        return index.findLatestByDrone(droneId);
+    }
+
+    @Override
+    public Map<Long, TrafficReport> findLatest() {
+        return index.findLatest();
+    }
+
+    @Override
+    public List<TrafficReport> findWithin(Location location, double radius, long fromTime, long toTime) {
+        return index.findWithin(location, radius, fromTime, toTime);
+    }
+
+    /**
+     * Forces the reports written so far to disk.
+     */
+    public void commit() {
+        MappedByteBuffer toCommit;
+        synchronized (this) {
+            if (!dirty || closed) {
+                return;
+            }
+            dirty = false;
+            toCommit = segment;
+        }
+        // writers keep appending while the pages are forced
+        toCommit.force();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            committer.shutdown();
+            segment.force();
+            closed = true;
+        }
+        LOG.info("reports log closed, " + index.count() + " reports stored.");
+    }
+
+    /**
+     * Loads the reports of the existing segments in the index and positions
+     * the log after the last complete record.
+     */
+    private void recover() {
+        List<String> segmentFiles = FileUtil.listFiles(directory.getAbsolutePath(), SEGMENT_GLOB);
+        for (String segmentFile : segmentFiles) {
+            // numbers can have gaps, the next segment follows the highest one
+            segmentNumber = Math.max(segmentNumber, segmentNumber(segmentFile) + 1);
+            MappedByteBuffer mapped = map(new File(segmentFile), new File(segmentFile).length());
+            checkHeader(segmentFile, mapped);
+            int position = HEADER_SIZE;
+            while (position + RECORD_SIZE <= mapped.limit() && mapped.get(position + CONGESTION_FIELD) != 0) {
+                double speed = mapped.getDouble(position + 16);
+                double latitude = mapped.getDouble(position + 24);
+                double longitude = mapped.getDouble(position + 32);
+                byte congestion = mapped.get(position + CONGESTION_FIELD);
+                Location location = Double.isNaN(latitude) ? null : new Location(latitude, longitude);
+                index.save(new TrafficReport(mapped.getLong(position), mapped.getLong(position + 8), location, Double.isNaN(speed) ? null : speed,
+                        congestion == NO_CONGESTION ? null : CONGESTIONS[congestion - 1]));
+                position += RECORD_SIZE;
+            }
+            mapped.position(position);
+            segment = mapped;
+        }
+        if (segment == null) {
+            roll();
+        }
+        LOG.info(index.count() + " reports recovered from " + segmentFiles.size() + " segments in " + directory);
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if the segment was not written with the layout of this
+     *             version
+     */
+    private static void checkHeader(String segmentFile, MappedByteBuffer mapped) {
+        if (mapped.limit() < HEADER_SIZE || mapped.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException(segmentFile + " is not a reports log segment, or was written without a segment header");
+        }
+        int version = mapped.getInt(4);
+        if (version != VERSION) {
+            throw new IllegalArgumentException("unsupported version " + version + " of reports log segment " + segmentFile);
+        }
+        int recordSize = mapped.getInt(8);
+        if (recordSize != RECORD_SIZE) {
+            throw new IllegalArgumentException("reports log segment " + segmentFile + " has records of " + recordSize + " bytes, expected "
+                    + RECORD_SIZE);
+        }
+    }
+
+    private static int segmentNumber(String segmentFile) {
+        String name = new File(segmentFile).getName();
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(segmentFile + " is not a numbered reports log segment", e);
+        }
+    }
+
+    /**
+     * Commits the current segment and starts a new one, its header forced to
+     * disk before any report is written to it. An existing file is never
+     * started again, the reports it holds would be overwritten.
+     */
+    private void roll() {
+        if (segment != null) {
+            segment.force();
+        }
+        File file = new File(directory, String.format(SEGMENT_PREFIX + "%08d" + SEGMENT_SUFFIX, segmentNumber++));
+        try {
+            if (!file.createNewFile()) {
+                throw new IllegalStateException("reports log segment " + file + " already exists");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("unable to create the reports log segment " + file, e);
+        }
+        segment = map(file, segmentSize);
+        segment.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0);
+        segment.force();
+        LOG.info("reports log segment started :: " + file);
+    }
+
+    private static MappedByteBuffer map(File file, long size) {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            // the mapping stays valid once the file is closed
+            return randomAccessFile.getChannel().map(MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            throw new RuntimeException("unable to map the reports log segment " + file, e);
+        }
+    }
+
+}
@@ -0,0 +1,202 @@
+package traffic.monitor.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Index of the traffic reports by place and time. The map is cut in square
+ * cells of a uniform grid, every cell keeping an append only log of its
+ * reports and a directory of the time buckets, of fixed length, the log went
+ * through: the position at which the most recent report of the cell first
+ * fell in each bucket. Finding the reports made around a location during a
+ * period only reads the cells overlapping the bounding box of the search,
+ * from the position of the bucket the period starts in. Late reports are not
+ * missed: a report can only be appended after the most recent one, which is
+ * at least as recent.
+ * 
+ * Reports without a location are not indexed. Reports can be added from
+ * several threads while the index is searched.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public class SpatioTemporalReportIndex {
+
+    private static final Comparator<TrafficReport> BY_TIME = new Comparator<TrafficReport>() {
+        @Override
+        public int compare(TrafficReport r1, TrafficReport r2) {
+            return Long.compare(r1.getTime(), r2.getTime());
+        }
+    };
+
+    private final double                           cellSize;
+
+    private final long                             bucketMillis;
+
+    private final ConcurrentMap<Long, CellReports> cells;
+
+    /**
+     * @param cellSize
+     *            side of the grid cells, in degrees
+     * @param bucketMillis
+     *            length of time covered by a bucket
+     */
+    public SpatioTemporalReportIndex(double cellSize, long bucketMillis) {
+        if (cellSize <= 0 || bucketMillis <= 0) {
+            throw new IllegalArgumentException("invalid index of cells of " + cellSize + " by buckets of " + bucketMillis + " ms");
+        }
+        this.cellSize = cellSize;
+        this.bucketMillis = bucketMillis;
+        cells = new ConcurrentHashMap<>();
+    }
+
+    public void add(TrafficReport report) {
+        Location location = report.getLocation();
+        if (location == null) {
+            return;
+        }
+        Long cell = cell(row(location.getLatitude()), column(location.getLongitude()));
+        CellReports reports = cells.get(cell);
+        if (reports == null) {
+            CellReports newReports = new CellReports();
+            reports = cells.putIfAbsent(cell, newReports);
+            if (reports == null) {
+                reports = newReports;
+            }
+        }
+        reports.append(report);
+    }
+
+    /**
+     * @return the reports made less than radius metres away from the location
+     *         with a time from fromTime inclusive to toTime exclusive, in
+     *         chronological order
+     */
+    public List<TrafficReport> findWithin(Location location, double radius, long fromTime, long toTime) {
+        if (fromTime >= toTime) {
+            return Collections.emptyList();
+        }
+        GeoCircle circle = new GeoCircle(location.getLatitude(), location.getLongitude(), radius);
+        double latitude = circle.getLatitude();
+        double longitude = circle.getLongitude();
+        // near the poles the box spans every longitude
+        double longitudeRadius = Math.min(circle.getLongitudeRadius(), 180);
+
+        List<TrafficReport> found = new ArrayList<>();
+        for (long row = row(latitude - circle.getLatitudeRadius()); row <= row(latitude + circle.getLatitudeRadius()); row++) {
+            for (long column = column(longitude - longitudeRadius); column <= column(longitude + longitudeRadius); column++) {
+                CellReports reports = cells.get(cell(row, column));
+                if (reports != null) {
+                    reports.collect(circle, fromTime, toTime, found);
+                }
+            }
+        }
+        Collections.sort(found, BY_TIME);
+        return found;
+    }
+
+    private long row(double latitude) {
+        return (long) Math.floor(latitude / cellSize);
+    }
+
+    private long column(double longitude) {
+        return (long) Math.floor(longitude / cellSize);
+    }
+
+    private static Long cell(long row, long column) {
+        return (row << 32) | (column & 0xFFFFFFFFL);
+    }
+
+    private long bucketStart(long time) {
+        return time - ((time % bucketMillis) + bucketMillis) % bucketMillis;
+    }
+
+    /**
+     * Reports of a cell in arrival order, with the directory of their
+     * buckets. Writers are serialized on the cell; the volatile size publishes
+     * every report and directory entry written before it, and the arrays are
+     * volatile as well so that their grown copies are published with them.
+     * Readers read the counts first, then the arrays, and never lock.
+     */
+    private final class CellReports {
+
+        private volatile TrafficReport[] reports         = new TrafficReport[4];
+
+        private volatile int             size;
+
+        /**
+         * Starts of the buckets reached by the most recent report of the cell,
+         * in ascending order, and the position of the report that reached
+         * each of them.
+         */
+        private volatile long[]          bucketStarts    = new long[4];
+
+        private volatile int[]           bucketPositions = new int[4];
+
+        private volatile int             buckets;
+
+        private long                     latestTime      = Long.MIN_VALUE;
+
+        private synchronized void append(TrafficReport report) {
+            if (size == reports.length) {
+                reports = Arrays.copyOf(reports, size * 2);
+            }
+            reports[size] = report;
+            if (report.getTime() > latestTime) {
+                latestTime = report.getTime();
+                long start = bucketStart(latestTime);
+                if (buckets == 0 || bucketStarts[buckets - 1] < start) {
+                    if (buckets == bucketStarts.length) {
+                        bucketStarts = Arrays.copyOf(bucketStarts, buckets * 2);
+                        bucketPositions = Arrays.copyOf(bucketPositions, buckets * 2);
+                    }
+                    bucketStarts[buckets] = start;
+                    bucketPositions[buckets] = size;
+                    buckets++;
+                }
+            }
+            size++;
+        }
+
+        private void collect(GeoCircle circle, long fromTime, long toTime, List<TrafficReport> found) {
+            int snapshotSize = size;
+            TrafficReport[] snapshot = reports;
+            for (int i = firstPosition(fromTime); i < snapshotSize; i++) {
+                TrafficReport report = snapshot[i];
+                if (report.getTime() >= fromTime && report.getTime() < toTime
+                        && circle.contains(report.getLocation().getLatitude(), report.getLocation().getLongitude())) {
+                    found.add(report);
+                }
+            }
+        }
+
+        /**
+         * @return the position of the first report appended once the most
+         *         recent report of the cell had reached the bucket of the
+         *         time, the first one that can have been made from that time on
+         */
+        private int firstPosition(long time) {
+            int snapshotBuckets = buckets;
+            long[] starts = bucketStarts;
+            int[] positions = bucketPositions;
+            long start = bucketStart(time);
+            int low = 0;
+            int high = snapshotBuckets;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (starts[middle] < start) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low == 0 ? 0 : low == snapshotBuckets ? Integer.MAX_VALUE : positions[low];
+        }
+    }
+
+}
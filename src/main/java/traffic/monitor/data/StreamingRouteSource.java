@@ -0,0 +1,117 @@
+package traffic.monitor.data;
+
+import java.io.IOException;
+import java.util.PriorityQueue;
+
+import org.apache.log4j.Logger;
+
+import traffic.monitor.util.FileUtil;
+import traffic.monitor.util.MappedCsvReader;
+import traffic.monitor.util.MappedCsvReader.Record;
+import traffic.monitor.util.MappedCsvReader.RecordParser;
+
+/**
+ * Route source that reads the memory mapped route file lazily, so that only a
+ * bounded number of waypoints per drone is held in memory regardless of the
+ * file length.
+ * 
+ * Files are not required to be time ordered: waypoints go through a small
+ * reorder buffer and the earliest buffered one is always released first. This
+ * restores the chronological order as long as no waypoint is displaced by more
+ * than the buffer size; waypoints arriving later than that are still
+ * delivered, and reported.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public class StreamingRouteSource implements RouteSource {
+
+    private static final Logger          LOG = Logger.getLogger(StreamingRouteSource.class);
+
+    private final Long                   droneId;
+
+    private final MappedCsvReader<WayPoint> routeReader;
+
+    private final PriorityQueue<WayPoint> reorderBuffer;
+
+    private final int                    reorderBufferSize;
+
+    private WayPoint                     lastReleased;
+
+    private long                         outOfOrderWayPoints;
+
+    /**
+     * Streams the waypoints of the route file up to and including the given
+     * time.
+     */
+    public StreamingRouteSource(Long droneId, String filePath, final long endTime, int reorderBufferSize) {
+        this.droneId = droneId;
+        this.reorderBufferSize = Math.max(reorderBufferSize, 1);
+        this.reorderBuffer = new PriorityQueue<>(this.reorderBufferSize);
+        this.routeReader = FileUtil.iterateMappedFile(filePath, ',', new RecordParser<WayPoint>() {
+            @Override
+            public WayPoint deserialize(Record record) {
+                long time = record.getEpochMillis(TIME_FIELD);
+                if (time > endTime) {
+                    return null;
+                }
+                return new WayPoint(record.getDouble(LATITUDE_FIELD), record.getDouble(LONGITUDE_FIELD), time);
+            }
+        });
+    }
+
+    @Override
+    public Long getDroneId() {
+        return droneId;
+    }
+
+    @Override
+    public WayPointBatch nextBatch(int max) {
+        int capacity = Math.max(max, 0);
+        double[] latitudes = new double[capacity];
+        double[] longitudes = new double[capacity];
+        long[] times = new long[capacity];
+        int drained = 0;
+        while (drained < capacity) {
+            fillReorderBuffer();
+            WayPoint wayPoint = reorderBuffer.poll();
+            if (wayPoint == null) {
+                break;
+            }
+            if (lastReleased != null && wayPoint.compareTo(lastReleased) < 0 && outOfOrderWayPoints++ == 0) {
+                LOG.warn("route of drone :: " + droneId + " is out of order beyond the reorder buffer size of " + reorderBufferSize);
+            }
+            lastReleased = wayPoint;
+            latitudes[drained] = wayPoint.getLatitude();
+            longitudes[drained] = wayPoint.getLongitude();
+            times[drained] = wayPoint.getTime();
+            drained++;
+        }
+        return new WayPointBatch(latitudes, longitudes, times, 0, drained);
+    }
+
+    @Override
+    public WayPoint peek() {
+        fillReorderBuffer();
+        return reorderBuffer.peek();
+    }
+
+    @Override
+    public boolean isExhausted() {
+        fillReorderBuffer();
+        return reorderBuffer.isEmpty();
+    }
+
+    @Override
+    public void close() throws IOException {
+        reorderBuffer.clear();
+        routeReader.close();
+    }
+
+    private void fillReorderBuffer() {
+        while (reorderBuffer.size() < reorderBufferSize && routeReader.hasNext()) {
+            reorderBuffer.add(routeReader.next());
+        }
+    }
+
+}
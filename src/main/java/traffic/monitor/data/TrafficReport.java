@@ -6,7 +6,7 @@ import java.util.Random;
 
 public class TrafficReport implements Serializable {
 
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 3L;
 
     public enum Congestion {
         HEAVY,
@@ -16,32 +16,45 @@ public class TrafficReport implements Serializable {
 
     private final Long       droneId;
 
-    private final Date       time;
+    /**
+     * Milliseconds since the epoch.
+     */
+    private final long       time;
+
+    /**
+     * Location of the waypoint the report was made at.
+     */
+    private final Location   location;
 
     private final Double     speed;
 
     private final Congestion congestion;
 
-    public TrafficReport(Long droneId, Date time, Double speed, Congestion congestion) {
+    public TrafficReport(Long droneId, long time, Location location, Double speed, Congestion congestion) {
         this.droneId = droneId;
         this.time = time;
+        this.location = location;
         this.speed = speed;
         this.congestion = congestion;
     }
 
-    public static TrafficReport randomInstance(Long droneId, Date time) {
-        Random rn = new Random();
-        return new TrafficReport(droneId, time, Integer.valueOf(rn.nextInt(140)).doubleValue(), Congestion.values()[rn.nextInt(Congestion.values().length)]);
+    public static TrafficReport randomInstance(Long droneId, long time, Location location, Random rn) {
+        return new TrafficReport(droneId, time, location, Integer.valueOf(rn.nextInt(140)).doubleValue(),
+                Congestion.values()[rn.nextInt(Congestion.values().length)]);
     }
 
     public Long getDroneId() {
         return droneId;
     }
 
-    public Date getTime() {
+    public long getTime() {
         return time;
     }
 
+    public Location getLocation() {
+        return location;
+    }
+
     public Double getSpeed() {
         return speed;
     }
@@ -56,8 +69,9 @@ public class TrafficReport implements Serializable {
         int result = 1;
         result = prime * result + ((congestion == null) ? 0 : congestion.hashCode());
         result = prime * result + ((droneId == null) ? 0 : droneId.hashCode());
+        result = prime * result + ((location == null) ? 0 : location.hashCode());
         result = prime * result + ((speed == null) ? 0 : speed.hashCode());
-        result = prime * result + ((time == null) ? 0 : time.hashCode());
+        result = prime * result + (int) (time ^ (time >>> 32));
         return result;
     }
 
@@ -77,22 +91,25 @@ public class TrafficReport implements Serializable {
                 return false;
         } else if (!droneId.equals(other.droneId))
             return false;
+        if (location == null) {
+            if (other.location != null)
+                return false;
+        } else if (!location.equals(other.location))
+            return false;
         if (speed == null) {
             if (other.speed != null)
                 return false;
         } else if (!speed.equals(other.speed))
             return false;
-        if (time == null) {
-            if (other.time != null)
-                return false;
-        } else if (!time.equals(other.time))
+        if (time != other.time)
             return false;
         return true;
     }
 
     @Override
     public String toString() {
-        return "TrafficReport [droneId=" + droneId + ", time=" + time + ", speed=" + speed + ", congestion=" + congestion + "]";
+        return "TrafficReport [droneId=" + droneId + ", time=" + new Date(time) + ", location=" + location + ", speed=" + speed + ", congestion="
+                + congestion + "]";
     }
 
 }
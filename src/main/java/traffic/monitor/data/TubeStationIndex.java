@@ -0,0 +1,26 @@
+package traffic.monitor.data;
+
+/**
+ * Read only index over the tube station locations, answering the proximity
+ * questions the dispatcher has to solve for every visited waypoint.
+ * Distances are expressed in metres, like {@link Location#distanceTo}.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public interface TubeStationIndex {
+
+    /**
+     * @return true if at least one station is strictly closer than the given
+     *         radius to the location
+     */
+    boolean anyWithin(Location location, double radius);
+
+    /**
+     * @return the station closest to the location, or null if the index is
+     *         empty
+     */
+    Location nearest(Location location);
+
+    int size();
+}
@@ -2,27 +2,31 @@ package traffic.monitor.data;
 
 import java.util.Date;
 
+/**
+ * Location to be visited by a drone. The time is expressed in milliseconds
+ * since the epoch and defines the order in which waypoints are visited.
+ */
 public class WayPoint extends Location implements Comparable<WayPoint> {
 
-    private final Date date;
+    private final long time;
 
-    public WayPoint(Double longitude, Double latitude, Date date) {
+    public WayPoint(Double longitude, Double latitude, long time) {
         super(longitude, latitude);
-        this.date = date;
+        this.time = time;
     }
 
     @Override
     public int compareTo(WayPoint o) {
-        return date.compareTo(o.date);
+        return Long.compare(time, o.time);
     }
 
-    public Date getDate() {
-        return date;
+    public long getTime() {
+        return time;
     }
 
     @Override
     public String toString() {
-        return "WayPoint [longitude=" + getLongitude() + ", latitude=" + getLatitude() + ", date=" + date + "]";
+        return "WayPoint [longitude=" + getLongitude() + ", latitude=" + getLatitude() + ", date=" + new Date(time) + "]";
     }
 
     public Location getLocation() {
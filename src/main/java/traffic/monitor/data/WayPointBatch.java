@@ -0,0 +1,98 @@
+package traffic.monitor.data;
+
+/**
+ * Struct of arrays view over a contiguous, time ordered range of waypoints.
+ * Batches sliced from a {@link ColumnarRoute} share its arrays, so handing a
+ * batch to a drone does not copy or allocate anything per waypoint. The
+ * arrays are never written once a batch has been created; only the cursor of
+ * the batch moves as its waypoints are consumed.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public class WayPointBatch {
+
+    private final double[] latitudes;
+
+    private final double[] longitudes;
+
+    private final long[]   times;
+
+    private final int      to;
+
+    private int            cursor;
+
+    public WayPointBatch(double[] latitudes, double[] longitudes, long[] times, int from, int to) {
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        this.times = times;
+        this.cursor = from;
+        this.to = to;
+    }
+
+    /**
+     * @return the number of waypoints not consumed yet
+     */
+    public int size() {
+        return to - cursor;
+    }
+
+    public boolean isEmpty() {
+        return cursor >= to;
+    }
+
+    /**
+     * Consumes the next waypoint of the batch.
+     * 
+     * @return the waypoint, or null if the batch is empty
+     */
+    public WayPoint poll() {
+        if (isEmpty()) {
+            return null;
+        }
+        WayPoint wayPoint = new WayPoint(latitudes[cursor], longitudes[cursor], times[cursor]);
+        cursor++;
+        return wayPoint;
+    }
+
+    /**
+     * @return the latitude of the waypoint at the given position from the
+     *         cursor
+     */
+    public double getLatitude(int index) {
+        return latitudes[cursor + index];
+    }
+
+    public double getLongitude(int index) {
+        return longitudes[cursor + index];
+    }
+
+    public long getTime(int index) {
+        return times[cursor + index];
+    }
+
+    /**
+     * @return a batch over the same waypoints, with a cursor of its own
+     */
+    public WayPointBatch copy() {
+        return new WayPointBatch(latitudes, longitudes, times, cursor, to);
+    }
+
+    /**
+     * Consumes up to max waypoints of the batch at once.
+     * 
+     * @return a batch with the consumed waypoints, sharing the arrays of this
+     *         one
+     */
+    public WayPointBatch take(int max) {
+        int from = cursor;
+        cursor = Math.min(to, cursor + Math.max(max, 0));
+        return new WayPointBatch(latitudes, longitudes, times, from, cursor);
+    }
+
+    @Override
+    public String toString() {
+        return "WayPointBatch [size=" + size() + "]";
+    }
+
+}
@@ -0,0 +1,101 @@
+package traffic.monitor.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies with buckets growing by powers of two: bucket i
+ * counts the values of i significant bits, from 2^(i-1) to 2^i - 1. Recording
+ * a value takes a couple of atomic increments and no lock, so it can be done
+ * on every message from any thread; percentiles are approximated by the upper
+ * bound of the bucket they fall in, at most twice the actual value.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public class LatencyHistogram {
+
+    private static final int      BUCKETS = 64;
+
+    private final AtomicLongArray buckets;
+
+    private final AtomicLong      count;
+
+    private final AtomicLong      sum;
+
+    private final AtomicLong      max;
+
+    public LatencyHistogram() {
+        buckets = new AtomicLongArray(BUCKETS);
+        count = new AtomicLong();
+        sum = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    /**
+     * Records a latency, negative values being counted as 0.
+     */
+    public void record(long value) {
+        long latency = Math.max(value, 0);
+        buckets.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(latency), BUCKETS - 1));
+        count.incrementAndGet();
+        sum.addAndGet(latency);
+        long currentMax;
+        do {
+            currentMax = max.get();
+        } while (latency > currentMax && !max.compareAndSet(currentMax, latency));
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMean() {
+        long recorded = count.get();
+        return recorded == 0 ? 0 : sum.get() / recorded;
+    }
+
+    /**
+     * @return an upper bound of the given percentile, between 0 and 100, of
+     *         the recorded latencies, 0 if none was recorded
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(i == 0 ? 0 : (1L << i) - 1, getMax());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the count, the mean, the 50th, 90th and 99th percentiles and
+     *         the maximum of the recorded latencies
+     */
+    public Map<String, Long> summary() {
+        Map<String, Long> summary = new LinkedHashMap<>();
+        summary.put("count", getCount());
+        summary.put("mean", getMean());
+        summary.put("p50", getPercentile(50));
+        summary.put("p90", getPercentile(90));
+        summary.put("p99", getPercentile(99));
+        summary.put("max", getMax());
+        return summary;
+    }
+
+}
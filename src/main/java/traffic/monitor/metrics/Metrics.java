@@ -0,0 +1,288 @@
+package traffic.monitor.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import traffic.monitor.communication.Channel;
+import traffic.monitor.communication.Envelope.MessageType;
+
+/**
+ * Runtime metrics of the simulation: messages sent and received per type,
+ * depth of the inboxes, free memory of the drones, latency of the proximity
+ * queries and of the consumption of the waypoint batches, waypoints visited
+ * and report ingest rate. Counters are atomic primitives updated by the agents
+ * as they work; everything else is computed when the metrics are read.
+ * 
+ * The metrics are exposed through JMX as traffic.monitor:type=Metrics, and a
+ * snapshot is logged every dump interval.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public class Metrics implements MetricsMXBean {
+
+    public static final String                 OBJECT_NAME   = "traffic.monitor:type=Metrics";
+
+    private static final Logger                LOG           = Logger.getLogger(Metrics.class);
+
+    private static final MessageType[]         MESSAGE_TYPES = MessageType.values();
+
+    private final long                         dumpIntervalMillis;
+
+    private final int                          maxDroneMemCapacity;
+
+    private final AtomicLongArray              sent;
+
+    private final AtomicLongArray              received;
+
+    private final ConcurrentMap<Long, Integer> droneFreeMemory;
+
+    private final LatencyHistogram             proximityRoundTrip;
+
+    private final LatencyHistogram             batchConsumption;
+
+    private final AtomicLong                   wayPointsVisited;
+
+    private final AtomicLong                   reportsSaved;
+
+    private volatile Channel                   channel;
+
+    private long                               lastSnapshotTime;
+
+    private long                               lastSnapshotReports;
+
+    private ScheduledExecutorService           dumper;
+
+    /**
+     * @param dumpIntervalMillis
+     *            time between two snapshots logged, 0 to log none
+     */
+    public Metrics(long dumpIntervalMillis, int maxDroneMemCapacity) {
+        this.dumpIntervalMillis = dumpIntervalMillis;
+        this.maxDroneMemCapacity = maxDroneMemCapacity;
+        sent = new AtomicLongArray(MESSAGE_TYPES.length);
+        received = new AtomicLongArray(MESSAGE_TYPES.length);
+        droneFreeMemory = new ConcurrentHashMap<>();
+        proximityRoundTrip = new LatencyHistogram();
+        batchConsumption = new LatencyHistogram();
+        wayPointsVisited = new AtomicLong();
+        reportsSaved = new AtomicLong();
+        lastSnapshotTime = System.currentTimeMillis();
+    }
+
+    @PostConstruct
+    private void init() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            // left behind by a previous simulation run in the same JVM
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            throw new RuntimeException("unable to register the metrics MBean", e);
+        }
+        if (dumpIntervalMillis > 0) {
+            dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Metrics Dumper");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            dumper.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    dump();
+                }
+            }, dumpIntervalMillis, dumpIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    private void close() {
+        if (dumper != null) {
+            dumper.shutdown();
+        }
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            LOG.error("unable to unregister the metrics MBean", e);
+        }
+    }
+
+    /**
+     * Sets the channel whose inboxes are measured.
+     */
+    public void watch(Channel channel) {
+        this.channel = channel;
+    }
+
+    public void messageSent(MessageType type) {
+        sent.incrementAndGet(type.ordinal());
+    }
+
+    public void messageReceived(MessageType type) {
+        received.incrementAndGet(type.ordinal());
+    }
+
+    public void droneFreeMemory(Long droneId, int freeMemory) {
+        droneFreeMemory.put(droneId, freeMemory);
+    }
+
+    public void droneInactive(Long droneId) {
+        droneFreeMemory.remove(droneId);
+    }
+
+    public void proximityAnswered(long roundTripNanos) {
+        proximityRoundTrip.record(TimeUnit.NANOSECONDS.toMicros(roundTripNanos));
+    }
+
+    public void batchConsumed(long consumptionMillis) {
+        batchConsumption.record(consumptionMillis);
+    }
+
+    public void wayPointVisited() {
+        wayPointsVisited.incrementAndGet();
+    }
+
+    public void reportSaved() {
+        reportsSaved.incrementAndGet();
+    }
+
+    @Override
+    public Map<String, Long> getSentMessages() {
+        return byType(sent);
+    }
+
+    @Override
+    public Map<String, Long> getReceivedMessages() {
+        return byType(received);
+    }
+
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        Channel watched = channel;
+        if (watched == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, Integer> depths = new TreeMap<>();
+        for (Map.Entry<Long, Integer> depth : watched.queueDepths().entrySet()) {
+            depths.put(String.valueOf(depth.getKey()), depth.getValue());
+        }
+        return depths;
+    }
+
+    @Override
+    public Map<String, Integer> getDroneFreeMemory() {
+        Map<String, Integer> freeMemory = new TreeMap<>();
+        for (Map.Entry<Long, Integer> drone : droneFreeMemory.entrySet()) {
+            freeMemory.put(String.valueOf(drone.getKey()), drone.getValue());
+        }
+        return freeMemory;
+    }
+
+    @Override
+    public Map<String, Long> getProximityRoundTripMicros() {
+        return proximityRoundTrip.summary();
+    }
+
+    @Override
+    public Map<String, Long> getBatchConsumptionMillis() {
+        return batchConsumption.summary();
+    }
+
+    @Override
+    public long getWayPointsVisited() {
+        return wayPointsVisited.get();
+    }
+
+    @Override
+    public long getReportsSaved() {
+        return reportsSaved.get();
+    }
+
+    @Override
+    public synchronized double getReportsPerSecond() {
+        return (reportsSaved.get() - lastSnapshotReports) * 1000.0 / Math.max(System.currentTimeMillis() - lastSnapshotTime, 1);
+    }
+
+    /**
+     * Logs a snapshot of the metrics.
+     */
+    public synchronized void dump() {
+        long reports = reportsSaved.get();
+        double reportsPerSecond = getReportsPerSecond();
+        lastSnapshotTime = System.currentTimeMillis();
+        lastSnapshotReports = reports;
+
+        int queued = 0;
+        Long deepestInbox = null;
+        int deepestDepth = 0;
+        Channel watched = channel;
+        if (watched != null) {
+            for (Map.Entry<Long, Integer> depth : watched.queueDepths().entrySet()) {
+                queued += depth.getValue();
+                if (depth.getValue() > deepestDepth) {
+                    deepestInbox = depth.getKey();
+                    deepestDepth = depth.getValue();
+                }
+            }
+        }
+        int starving = 0;
+        for (Integer freeMemory : droneFreeMemory.values()) {
+            if (freeMemory >= maxDroneMemCapacity) {
+                starving++;
+            }
+        }
+        LOG.info("metrics :: sent " + nonZero(getSentMessages()) + ", received " + nonZero(getReceivedMessages()));
+        LOG.info("metrics :: " + queued + " messages queued, deepest inbox :: " + deepestInbox + " with " + deepestDepth + ", "
+                + droneFreeMemory.size() + " active drones, " + starving + " without waypoints");
+        LOG.info("metrics :: proximity round trip (us) " + getProximityRoundTripMicros() + ", batch consumption (ms) " + getBatchConsumptionMillis());
+        LOG.info("metrics :: " + wayPointsVisited.get() + " waypoints visited, " + reports + " reports saved, " + Math.round(reportsPerSecond)
+                + " reports/s");
+    }
+
+    private static Map<String, Long> byType(AtomicLongArray counters) {
+        Map<String, Long> byType = new LinkedHashMap<>();
+        for (MessageType type : MESSAGE_TYPES) {
+            byType.put(type.name(), counters.get(type.ordinal()));
+        }
+        return byType;
+    }
+
+    private static Map<String, Long> nonZero(Map<String, Long> counters) {
+        Map<String, Long> nonZero = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> counter : counters.entrySet()) {
+            if (counter.getValue() > 0) {
+                nonZero.put(counter.getKey(), counter.getValue());
+            }
+        }
+        return nonZero;
+    }
+
+}
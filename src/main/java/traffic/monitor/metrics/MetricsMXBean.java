@@ -0,0 +1,61 @@
+package traffic.monitor.metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link Metrics}, registered as
+ * traffic.monitor:type=Metrics.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public interface MetricsMXBean {
+
+    /**
+     * @return the number of messages sent, by message type
+     */
+    Map<String, Long> getSentMessages();
+
+    /**
+     * @return the number of messages received, by message type
+     */
+    Map<String, Long> getReceivedMessages();
+
+    /**
+     * @return the number of messages waiting in the inbox of each receiver
+     */
+    Map<String, Integer> getQueueDepths();
+
+    /**
+     * @return the free memory of every active drone, in waypoints, as known
+     *         by its dispatcher
+     */
+    Map<String, Integer> getDroneFreeMemory();
+
+    /**
+     * @return statistics of the time, in microseconds, between a drone
+     *         asking about the tube stations near a batch of waypoints and
+     *         the last answer coming in
+     */
+    Map<String, Long> getProximityRoundTripMicros();
+
+    /**
+     * @return statistics of the time, in simulated milliseconds, between a
+     *         drone receiving a batch of waypoints and leaving for its last
+     *         waypoint
+     */
+    Map<String, Long> getBatchConsumptionMillis();
+
+    /**
+     * @return the number of waypoints the drones left for
+     */
+    long getWayPointsVisited();
+
+    long getReportsSaved();
+
+    /**
+     * @return the number of reports saved per second since the last snapshot
+     *         was logged, or since the start if none was
+     */
+    double getReportsPerSecond();
+}
@@ -0,0 +1,116 @@
+package traffic.monitor.simulation;
+
+import java.util.PriorityQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Discrete event clock: scheduled tasks are kept in a single event queue, and
+ * whenever the simulation runs out of work the time jumps straight to the
+ * earliest pending event. Flights therefore take no wall time at all, and the
+ * simulation runs as fast as the agents can handle their messages.
+ * 
+ * Events due at the same time run in the order they were scheduled.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public class DiscreteEventClock implements SimulationClock {
+
+    private static final Logger LOG = Logger.getLogger(DiscreteEventClock.class);
+
+    private static final class Event implements Comparable<Event> {
+
+        private final long     time;
+
+        private final long     sequence;
+
+        private final Runnable task;
+
+        private Event(long time, long sequence, Runnable task) {
+            this.time = time;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Event o) {
+            if (time != o.time) {
+                return Long.compare(time, o.time);
+            }
+            return Long.compare(sequence, o.sequence);
+        }
+    }
+
+    private final Object               lock;
+
+    private final PriorityQueue<Event> events;
+
+    private volatile long              now;
+
+    private long                       sequence;
+
+    private int                        work;
+
+    public DiscreteEventClock() {
+        lock = new Object();
+        events = new PriorityQueue<>();
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                advance();
+            }
+        });
+        thread.setName("Simulation Clock Thread");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public long now() {
+        return now;
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        synchronized (lock) {
+            events.add(new Event(now + Math.max(delayMillis, 0), sequence++, task));
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void workStarted() {
+        synchronized (lock) {
+            work++;
+        }
+    }
+
+    @Override
+    public void workCompleted() {
+        synchronized (lock) {
+            if (--work == 0) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void advance() {
+        while (true) {
+            Event event;
+            synchronized (lock) {
+                while (work > 0 || events.isEmpty()) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        LOG.info("simulation clock stopped at :: " + now);
+                        return;
+                    }
+                }
+                event = events.poll();
+                now = event.time;
+            }
+            event.task.run();
+        }
+    }
+
+}
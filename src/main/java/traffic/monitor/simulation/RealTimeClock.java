@@ -0,0 +1,54 @@
+package traffic.monitor.simulation;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clock following the wall clock: a flight of n milliseconds takes n
+ * milliseconds.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public class RealTimeClock implements SimulationClock {
+
+    private final ScheduledExecutorService timer;
+
+    private final long                     startNanos;
+
+    public RealTimeClock() {
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable);
+                thread.setName("Simulation Clock Thread");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        startNanos = System.nanoTime();
+    }
+
+    @Override
+    public long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void workStarted() {
+        // the wall clock does not wait for anyone
+    }
+
+    @Override
+    public void workCompleted() {
+        // the wall clock does not wait for anyone
+    }
+
+}
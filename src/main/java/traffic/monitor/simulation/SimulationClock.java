@@ -0,0 +1,32 @@
+package traffic.monitor.simulation;
+
+/**
+ * Source of time for the agents of the simulation and scheduler of their
+ * delayed actions, such as the end of a flight.
+ * 
+ * Clocks that do not follow the wall clock need to know when the simulation
+ * is busy: work started and completed notifications bracket every piece of
+ * work that may schedule new actions (a message waiting to be handled, an
+ * agent step being run).
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public interface SimulationClock {
+
+    /**
+     * @return the current simulation time, in milliseconds
+     */
+    long now();
+
+    /**
+     * Runs the task once the simulation time has advanced by the given delay.
+     * The task must not block.
+     */
+    void schedule(Runnable task, long delayMillis);
+
+    void workStarted();
+
+    void workCompleted();
+
+}
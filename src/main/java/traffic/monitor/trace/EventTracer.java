@@ -0,0 +1,336 @@
+package traffic.monitor.trace;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Records the events of the agents in a binary trace file, at the cost of a
+ * few stores per event: no string is built and no lock is taken. Every thread
+ * writes its events in a ring of fixed size records of its own, from which a
+ * background thread copies them to the file. A thread whose ring is full
+ * drops its events rather than waiting, the number of events dropped being
+ * logged when the tracer is closed.
+ * 
+ * The file starts with a header:
+ * 
+ * <pre>
+ * magic                int, 0x54524345
+ * version              int
+ * start time           long, milliseconds since the epoch
+ * record size          int
+ * event types          int
+ * event names          UTF strings, by ordinal
+ * </pre>
+ * 
+ * followed by the records, in the order they were copied, which is the order
+ * they were recorded for the events of a thread:
+ * 
+ * <pre>
+ * 0  time              long, nanoseconds since the start time
+ * 8  event             int, ordinal
+ * 12 thread            int, index of the thread
+ * 16 agent             long, identifier
+ * 24 a                 long
+ * 32 b                 long
+ * 40 latitude          double, NaN when unused
+ * 48 longitude         double, NaN when unused
+ * 56 value             double, NaN when unused
+ * </pre>
+ * 
+ * The trace is read by the {@link TraceDecoder}. A tracer without a file
+ * records nothing.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public class EventTracer {
+
+    public static final int          MAGIC         = 0x54524345;
+
+    public static final int          VERSION       = 1;
+
+    public static final int          RECORD_SIZE   = 64;
+
+    private static final int         RECORD_SLOTS  = RECORD_SIZE / 8;
+
+    /**
+     * Records copied to the file per write.
+     */
+    private static final int         WRITE_RECORDS = 1024;
+
+    private static final Logger      LOG           = Logger.getLogger(EventTracer.class);
+
+    private final String             file;
+
+    private final boolean            enabled;
+
+    private final int                bufferRecords;
+
+    private final long               drainIntervalNanos;
+
+    private final List<TraceBuffer>  buffers;
+
+    private final ThreadLocal<TraceBuffer> threadBuffer;
+
+    private final AtomicInteger      threads;
+
+    private long                     startNanos;
+
+    private FileChannel              channel;
+
+    private ByteBuffer               writeBuffer;
+
+    private long                     written;
+
+    private Thread                   drainer;
+
+    private volatile boolean         running;
+
+    /**
+     * @param file
+     *            path of the trace file, empty or null to trace nothing
+     * @param bufferRecords
+     *            capacity of the ring of each thread, rounded up to a power
+     *            of two
+     * @param drainIntervalMillis
+     *            time the background thread waits when there is nothing to
+     *            copy
+     */
+    public EventTracer(String file, int bufferRecords, long drainIntervalMillis) {
+        if (bufferRecords < 1) {
+            throw new IllegalArgumentException("trace buffers must hold at least one record, got " + bufferRecords);
+        }
+        this.file = file;
+        this.enabled = file != null && !file.isEmpty();
+        int capacity = 1;
+        while (capacity < bufferRecords) {
+            capacity <<= 1;
+        }
+        this.bufferRecords = capacity;
+        this.drainIntervalNanos = TimeUnit.MILLISECONDS.toNanos(drainIntervalMillis);
+        buffers = new CopyOnWriteArrayList<>();
+        threads = new AtomicInteger();
+        threadBuffer = new ThreadLocal<TraceBuffer>() {
+            @Override
+            protected TraceBuffer initialValue() {
+                TraceBuffer buffer = new TraceBuffer(threads.getAndIncrement(), EventTracer.this.bufferRecords);
+                buffers.add(buffer);
+                LOG.info("thread " + Thread.currentThread().getName() + " traced as :: " + buffer.thread);
+                return buffer;
+            }
+        };
+    }
+
+    @PostConstruct
+    private void open() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            channel.truncate(0);
+            startNanos = System.nanoTime();
+            channel.write(ByteBuffer.wrap(header(System.currentTimeMillis())));
+        } catch (IOException e) {
+            throw new RuntimeException("unable to open the trace file " + file, e);
+        }
+        writeBuffer = ByteBuffer.allocateDirect(WRITE_RECORDS * RECORD_SIZE);
+        running = true;
+        drainer = new Thread(new Runnable() {
+            public void run() {
+                drainContinuously();
+            }
+        }, "Event Tracer");
+        drainer.setDaemon(true);
+        drainer.start();
+        LOG.info("tracing events to " + file);
+    }
+
+    @PreDestroy
+    private void close() {
+        if (!enabled || !running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long dropped = 0;
+        for (TraceBuffer buffer : buffers) {
+            dropped += buffer.dropped;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.error("unable to close the trace file " + file, e);
+        }
+        LOG.info(written + " events traced to " + file + ", " + dropped + " dropped.");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void trace(TraceEvent event, long agentId, long a, long b) {
+        trace(event, agentId, a, b, Double.NaN, Double.NaN, Double.NaN);
+    }
+
+    public void trace(TraceEvent event, long agentId, long a, long b, double latitude, double longitude, double value) {
+        if (!enabled) {
+            return;
+        }
+        threadBuffer.get().put(System.nanoTime() - startNanos, event.ordinal(), agentId, a, b, latitude, longitude, value);
+    }
+
+    private void drainContinuously() {
+        try {
+            while (running) {
+                if (drain() == 0) {
+                    LockSupport.parkNanos(drainIntervalNanos);
+                }
+            }
+            // events recorded up to the close
+            drain();
+        } catch (IOException e) {
+            running = false;
+            LOG.error("unable to write the trace file " + file + ", tracing stopped", e);
+        }
+    }
+
+    /**
+     * Copies the events recorded so far to the file.
+     * 
+     * @return the number of events copied
+     */
+    private int drain() throws IOException {
+        int drained = 0;
+        for (TraceBuffer buffer : buffers) {
+            drained += buffer.drainTo(this);
+        }
+        flush();
+        written += drained;
+        return drained;
+    }
+
+    private void flush() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            channel.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    private static byte[] header(long startMillis) throws IOException {
+        TraceEvent[] events = TraceEvent.values();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeLong(startMillis);
+        header.writeInt(RECORD_SIZE);
+        header.writeInt(events.length);
+        for (TraceEvent event : events) {
+            header.writeUTF(event.name());
+        }
+        header.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Ring of the records of a thread, written by that thread only and read
+     * by the background thread. The position published by the writer covers
+     * the records written before it, the position published by the reader
+     * frees the records read before it.
+     */
+    private static final class TraceBuffer {
+
+        private final int        thread;
+
+        private final long[]     slots;
+
+        private final int        mask;
+
+        private final AtomicLong published;
+
+        private final AtomicLong consumed;
+
+        /**
+         * Position of the next record, owned by the writer.
+         */
+        private long             tail;
+
+        /**
+         * Last position known to be consumed, saves reading the reader
+         * position at every record.
+         */
+        private long             consumedCache;
+
+        private volatile long    dropped;
+
+        TraceBuffer(int thread, int records) {
+            this.thread = thread;
+            slots = new long[records * RECORD_SLOTS];
+            mask = records - 1;
+            published = new AtomicLong();
+            consumed = new AtomicLong();
+        }
+
+        void put(long time, int event, long agentId, long a, long b, double latitude, double longitude, double value) {
+            if (tail - consumedCache > mask) {
+                consumedCache = consumed.get();
+                if (tail - consumedCache > mask) {
+                    // single writer
+                    dropped = dropped + 1;
+                    return;
+                }
+            }
+            int slot = (int) (tail & mask) * RECORD_SLOTS;
+            slots[slot] = time;
+            slots[slot + 1] = ((long) event << 32) | thread;
+            slots[slot + 2] = agentId;
+            slots[slot + 3] = a;
+            slots[slot + 4] = b;
+            slots[slot + 5] = Double.doubleToRawLongBits(latitude);
+            slots[slot + 6] = Double.doubleToRawLongBits(longitude);
+            slots[slot + 7] = Double.doubleToRawLongBits(value);
+            tail++;
+            published.lazySet(tail);
+        }
+
+        int drainTo(EventTracer tracer) throws IOException {
+            long head = consumed.get();
+            long end = published.get();
+            ByteBuffer out = tracer.writeBuffer;
+            for (long position = head; position < end; position++) {
+                if (!out.hasRemaining()) {
+                    tracer.flush();
+                }
+                int slot = (int) (position & mask) * RECORD_SLOTS;
+                for (int i = 0; i < RECORD_SLOTS; i++) {
+                    out.putLong(slots[slot + i]);
+                }
+            }
+            consumed.lazySet(end);
+            return (int) (end - head);
+        }
+    }
+
+}
@@ -0,0 +1,181 @@
+package traffic.monitor.trace;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Prints the events of a trace written by the {@link EventTracer}, one line
+ * per event, in the order they were recorded. The records of every thread are
+ * in order in the file, so they are merged on their time. Events are printed
+ * with their wall clock time, the thread that recorded them and the agent
+ * they are about:
+ * 
+ * <pre>
+ * 22 Mar 2011 08:01:12.345 [t2] DRONE_ARRIVED 5937 - arrived at :: (51.476105, -0.100224)
+ * </pre>
+ * 
+ * Usage: TraceDecoder traceFile [agentId]
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public final class TraceDecoder {
+
+    private static final String TIME_FORMAT = "dd MMM yyyy HH:mm:ss.SSS";
+
+    private final long          startMillis;
+
+    /**
+     * Events of the trace by ordinal, null for those unknown to this version.
+     */
+    private final TraceEvent[]  events;
+
+    private final String[]      eventNames;
+
+    private final ByteBuffer    records;
+
+    private final int           recordSize;
+
+    private TraceDecoder(String file) throws IOException {
+        long headerSize;
+        try (DataInputStream header = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (header.readInt() != EventTracer.MAGIC) {
+                throw new IllegalArgumentException(file + " is not a trace");
+            }
+            int version = header.readInt();
+            if (version != EventTracer.VERSION) {
+                throw new IllegalArgumentException("unsupported version " + version + " of trace " + file);
+            }
+            startMillis = header.readLong();
+            recordSize = header.readInt();
+            eventNames = new String[header.readInt()];
+            events = new TraceEvent[eventNames.length];
+            headerSize = 24;
+            for (int i = 0; i < eventNames.length; i++) {
+                eventNames[i] = header.readUTF();
+                headerSize += 2 + eventNames[i].length();
+                try {
+                    events[i] = TraceEvent.valueOf(eventNames[i]);
+                } catch (IllegalArgumentException e) {
+                    events[i] = null;
+                }
+            }
+        }
+        try (RandomAccessFile trace = new RandomAccessFile(file, "r")) {
+            FileChannel channel = trace.getChannel();
+            long size = channel.size() - headerSize;
+            // a record cut by a crash of the application is left out
+            records = channel.map(MapMode.READ_ONLY, headerSize, size - size % recordSize);
+        }
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: TraceDecoder traceFile [agentId]");
+            System.exit(1);
+        }
+        Long agentId = args.length > 1 ? Long.valueOf(args[1]) : null;
+        new TraceDecoder(args[0]).print(agentId, System.out);
+    }
+
+    /**
+     * Prints the events about the agent, every event if null.
+     */
+    private void print(Long agentId, PrintStream out) {
+        SimpleDateFormat timeFormat = new SimpleDateFormat(TIME_FORMAT);
+        PriorityQueue<ThreadRecords> threads = new PriorityQueue<>(11, new Comparator<ThreadRecords>() {
+            @Override
+            public int compare(ThreadRecords t1, ThreadRecords t2) {
+                return Long.compare(t1.time(), t2.time());
+            }
+        });
+        for (ThreadRecords thread : splitByThread()) {
+            if (thread.hasNext()) {
+                threads.add(thread);
+            }
+        }
+        StringBuilder line = new StringBuilder();
+        while (!threads.isEmpty()) {
+            ThreadRecords thread = threads.poll();
+            int record = thread.next();
+            if (thread.hasNext()) {
+                threads.add(thread);
+            }
+            long agent = records.getLong(record + 16);
+            if (agentId != null && agent != agentId) {
+                continue;
+            }
+            long time = records.getLong(record);
+            int event = records.getInt(record + 8);
+            line.setLength(0);
+            line.append(timeFormat.format(new Date(startMillis + time / 1000000))).append(" [t").append(records.getInt(record + 12)).append("] ")
+                    .append(event < eventNames.length ? eventNames[event] : "EVENT_" + event).append(' ').append(agent).append(" - ");
+            if (event < events.length && events[event] != null) {
+                line.append(events[event].describe(records.getLong(record + 24), records.getLong(record + 32), records.getDouble(record + 40),
+                        records.getDouble(record + 48), records.getDouble(record + 56)));
+            }
+            out.println(line);
+        }
+    }
+
+    /**
+     * @return the positions of the records of every thread
+     */
+    private List<ThreadRecords> splitByThread() {
+        List<ThreadRecords> threads = new ArrayList<>();
+        for (int record = 0; record < records.limit(); record += recordSize) {
+            int thread = records.getInt(record + 12);
+            while (threads.size() <= thread) {
+                threads.add(new ThreadRecords());
+            }
+            threads.get(thread).add(record);
+        }
+        return threads;
+    }
+
+    /**
+     * Positions of the records of a thread, read in order.
+     */
+    private final class ThreadRecords {
+
+        private int[] positions = new int[16];
+
+        private int   size;
+
+        private int   next;
+
+        void add(int position) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size++] = position;
+        }
+
+        boolean hasNext() {
+            return next < size;
+        }
+
+        long time() {
+            return records.getLong(positions[next]);
+        }
+
+        int next() {
+            return positions[next++];
+        }
+    }
+
+}
@@ -0,0 +1,49 @@
+package traffic.monitor.trace;
+
+/**
+ * Events recorded by the {@link EventTracer}. Every event is made of the
+ * identifier of the agent recording it and of the same five fields: two
+ * integers a and b, a latitude, a longitude and a value, each event using
+ * only some of them. The description of an event is a format applied to the
+ * fields, in that order, followed by a, as a boolean, true if not 0.
+ * 
+ * New events are added at the end: traces store the ordinal of the events.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public enum TraceEvent {
+
+    DRONE_WAYPOINTS_RECEIVED("%2$d way points received, %1$d accepted"),
+
+    DRONE_PROXIMITY_REQUESTED("requesting confirmation of nearby tube stations for %2$d way points, request :: %1$d"),
+
+    DRONE_MOVING("moving to :: (%3$.6f, %4$.6f), distance to cover is :: %5$.1f, estimated travel time :: %1$d"),
+
+    DRONE_ARRIVED("arrived at :: (%3$.6f, %4$.6f)"),
+
+    DRONE_PROXIMITY_ASSERTED("assertion of nearby tube station is :: %6$b"),
+
+    DRONE_REPORT_SENT("sending traffic report of %1$tF %1$tT at :: (%3$.6f, %4$.6f)"),
+
+    DISPATCHER_REPORT_RECEIVED("received report of drone :: %1$d, %2$tF %2$tT at :: (%3$.6f, %4$.6f), speed :: %5$.2f"),
+
+    DISPATCHER_CAPACITY("drone :: %1$d can store up to %2$d new way points"),
+
+    DISPATCHER_WAYPOINTS_SENT("sending %2$d new waypoints to drone :: %1$d"),
+
+    DISPATCHER_WAYPOINTS_REJECTED("drone :: %1$d sent back %2$d way points"),
+
+    DISPATCHER_PROXIMITY_ANSWERED("drone :: %1$d requires confirmation of tube station proximity for %2$d locations");
+
+    private final String format;
+
+    private TraceEvent(String format) {
+        this.format = format;
+    }
+
+    public String describe(long a, long b, double latitude, double longitude, double value) {
+        return String.format(format, a, b, latitude, longitude, value, a != 0);
+    }
+
+}
@@ -1,25 +1,122 @@
 package traffic.monitor.util;
 
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-
-import org.apache.log4j.Logger;
+import java.nio.ByteBuffer;
+import java.util.TimeZone;
 
+/**
+ * Thread safe codec for the yyyy-MM-dd HH:mm:ss timestamps used in the route
+ * and configuration files. Timestamps are decoded in place into milliseconds
+ * since the epoch, without allocating intermediate objects.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
 public class DateUtil {
 
-    private static final Logger     LOG            = Logger.getLogger(DateUtil.class);
+    /** Length of the yyyy-MM-dd HH:mm:ss layout. */
+    private static final int        TIMESTAMP_LENGTH  = 19;
+
+    private static final long       MILLIS_PER_SECOND = 1000L;
+
+    private static final long       MILLIS_PER_DAY    = 24 * 60 * 60 * MILLIS_PER_SECOND;
+
+    private static final TimeZone   TIME_ZONE         = TimeZone.getDefault();
+
+    /**
+     * Parses a yyyy-MM-dd HH:mm:ss timestamp expressed in the default time
+     * zone.
+     * 
+     * @return the timestamp as milliseconds since the epoch
+     */
+    public static long parseEpochMillis(CharSequence string) {
+        return parseEpochMillis(string, 0, string.length());
+    }
 
-    private static final DateFormat fileDateFormat = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
+    /**
+     * Parses a yyyy-MM-dd HH:mm:ss timestamp, expressed in the default time
+     * zone, from the characters between from (inclusive) and to (exclusive).
+     * 
+     * @return the timestamp as milliseconds since the epoch
+     */
+    public static long parseEpochMillis(CharSequence chars, int from, int to) {
+        if (to - from != TIMESTAMP_LENGTH || chars.charAt(from + 4) != '-' || chars.charAt(from + 7) != '-' || chars.charAt(from + 10) != ' '
+                || chars.charAt(from + 13) != ':' || chars.charAt(from + 16) != ':') {
+            throw new IllegalArgumentException("Unable to parse timestamp :: " + chars.subSequence(from, to));
+        }
+        int year = digits(chars, from, 4);
+        int month = digits(chars, from + 5, 2);
+        int day = digits(chars, from + 8, 2);
+        int hour = digits(chars, from + 11, 2);
+        int minute = digits(chars, from + 14, 2);
+        int second = digits(chars, from + 17, 2);
+        return toEpochMillis(year, month, day, hour, minute, second);
+    }
 
-    public static Date parseDate(String string) {
-        try {
-            return fileDateFormat.parse(string);
-        } catch (ParseException e) {
-            LOG.error("Unable to parse string :: " + string);
-            throw new RuntimeException(e);
+    /**
+     * Parses a yyyy-MM-dd HH:mm:ss timestamp, expressed in the default time
+     * zone, directly from the bytes of the buffer between from (inclusive) and
+     * to (exclusive).
+     * 
+     * @return the timestamp as milliseconds since the epoch
+     */
+    public static long parseEpochMillis(ByteBuffer buffer, int from, int to) {
+        if (to - from != TIMESTAMP_LENGTH || buffer.get(from + 4) != '-' || buffer.get(from + 7) != '-' || buffer.get(from + 10) != ' '
+                || buffer.get(from + 13) != ':' || buffer.get(from + 16) != ':') {
+            throw new IllegalArgumentException("Unable to parse timestamp at offset " + from);
         }
+        int year = digits(buffer, from, 4);
+        int month = digits(buffer, from + 5, 2);
+        int day = digits(buffer, from + 8, 2);
+        int hour = digits(buffer, from + 11, 2);
+        int minute = digits(buffer, from + 14, 2);
+        int second = digits(buffer, from + 17, 2);
+        return toEpochMillis(year, month, day, hour, minute, second);
+    }
+
+    private static int digits(CharSequence chars, int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            int digit = chars.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("Unable to parse timestamp, invalid digit at offset " + i);
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int digits(ByteBuffer buffer, int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("Unable to parse timestamp, invalid digit at offset " + i);
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static long toEpochMillis(int year, int month, int day, int hour, int minute, int second) {
+        if (month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 59) {
+            throw new IllegalArgumentException("Unable to parse timestamp " + year + "-" + month + "-" + day + " " + hour + ":" + minute + ":"
+                    + second);
+        }
+        long localMillis = daysSinceEpoch(year, month, day) * MILLIS_PER_DAY + ((hour * 60L + minute) * 60L + second) * MILLIS_PER_SECOND;
+        return localMillis - TIME_ZONE.getOffset(localMillis - TIME_ZONE.getRawOffset());
+    }
+
+    /**
+     * Days between 1970-01-01 and the given date of the proleptic Gregorian
+     * calendar.
+     */
+    private static long daysSinceEpoch(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
     }
 
 }
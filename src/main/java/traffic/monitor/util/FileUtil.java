@@ -1,15 +1,34 @@
 package traffic.monitor.util;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.JarURLConnection;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.security.CodeSource;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 
 import org.apache.log4j.Logger;
 
+import traffic.monitor.util.MappedCsvReader.RecordParser;
+
 public class FileUtil {
 
     private static final Logger LOG = Logger.getLogger(FileUtil.class);
@@ -18,19 +37,99 @@ public class FileUtil {
         T deserialize(String[] tokens);
     }
 
+    /**
+     * Lazily deserializes a file, reading a new line only when the next object
+     * is requested. Lines for which the parser returns null are skipped. The
+     * underlying reader is closed once the end of the file is reached.
+     */
+    public static class LineIterator<T> implements Iterator<T>, Closeable {
+
+        private final String         filePath;
+
+        private final String         tokenSeparator;
+
+        private final LineParser<T>  lineParser;
+
+        private final BufferedReader bufferedReader;
+
+        private T                    next;
+
+        private boolean              closed;
+
+        private LineIterator(String filePath, String tokenSeparator, LineParser<T> lineParser, BufferedReader bufferedReader) {
+            this.filePath = filePath;
+            this.tokenSeparator = tokenSeparator;
+            this.lineParser = lineParser;
+            this.bufferedReader = bufferedReader;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                String line;
+                while (next == null && !closed) {
+                    if ((line = bufferedReader.readLine()) == null) {
+                        close();
+                    } else {
+                        next = lineParser.deserialize(line.split(tokenSeparator));
+                    }
+                }
+                return next != null;
+            } catch (IOException e) {
+                LOG.error("Error parsing file " + filePath, e);
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T current = next;
+            next = null;
+            return current;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                bufferedReader.close();
+            }
+        }
+    }
+
     public static <T> List<T> parseFileLineByLine(String filePath, String tokenSeparator, LineParser<T> lineParser) {
+        try (LineIterator<T> lineIterator = iterateFileLineByLine(filePath, tokenSeparator, lineParser)) {
+            List<T> deserializedObjects = new ArrayList<>();
+            while (lineIterator.hasNext()) {
+                deserializedObjects.add(lineIterator.next());
+            }
+            return deserializedObjects;
+        } catch (IOException e) {
+            LOG.error("Error parsing file " + filePath, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static <T> LineIterator<T> iterateFileLineByLine(String filePath, String tokenSeparator, LineParser<T> lineParser) {
         File file = new File(filePath);
         LOG.info("Opening file :: " + file.getAbsolutePath());
         InputStream fileInputStream = FileUtil.class.getClassLoader().getResourceAsStream(filePath);
-        try (BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(fileInputStream))) {
+        return new LineIterator<>(filePath, tokenSeparator, lineParser, new BufferedReader(new InputStreamReader(fileInputStream)));
+    }
+
+    public static <T> List<T> parseMappedFile(String filePath, char tokenSeparator, RecordParser<T> recordParser) {
+        try (MappedCsvReader<T> reader = iterateMappedFile(filePath, tokenSeparator, recordParser)) {
             List<T> deserializedObjects = new ArrayList<>();
-            String line;
-            while ((line = bufferedReader.readLine()) != null) {
-                String[] tokens = line.split(tokenSeparator);
-                T deserializedObject = lineParser.deserialize(tokens);
-                if (deserializedObject != null) {
-                    deserializedObjects.add(deserializedObject);
-                }
+            while (reader.hasNext()) {
+                deserializedObjects.add(reader.next());
             }
             return deserializedObjects;
         } catch (IOException e) {
@@ -38,4 +137,114 @@ public class FileUtil {
             throw new RuntimeException(e);
         }
     }
+
+    public static <T> MappedCsvReader<T> iterateMappedFile(String filePath, char tokenSeparator, RecordParser<T> recordParser) {
+        return new MappedCsvReader<>(filePath, tokenSeparator, recordParser);
+    }
+
+    /**
+     * Lists the files of a directory whose name matches a glob pattern, e.g.
+     * [0-9]*.csv. The directory is looked up on the class path first, then on
+     * the file system; an empty directory stands for the class path root.
+     * Directories inside a jar are listed from its entries.
+     * 
+     * @return the absolute paths of the matching files, or their class path
+     *         resource names when they are inside a jar, sorted by name
+     */
+    public static List<String> listFiles(String directory, String glob) {
+        String resource = directory == null ? "" : directory;
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        URL url = FileUtil.class.getClassLoader().getResource(resource);
+        if (url == null && resource.isEmpty()) {
+            url = applicationJar();
+        }
+        List<String> filePaths;
+        if (url != null && "jar".equals(url.getProtocol())) {
+            filePaths = listJarEntries(url, matcher);
+        } else {
+            filePaths = listDirectory(resolveDirectory(url, resource), matcher);
+        }
+        Collections.sort(filePaths);
+        return filePaths;
+    }
+
+    private static List<String> listDirectory(File root, PathMatcher matcher) {
+        LOG.info("Listing files in :: " + root.getAbsolutePath());
+        List<String> filePaths = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(root.toPath())) {
+            for (Path file : files) {
+                if (Files.isRegularFile(file) && matcher.matches(file.getFileName())) {
+                    filePaths.add(file.toAbsolutePath().toString());
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Error listing directory " + root.getAbsolutePath(), e);
+            throw new RuntimeException(e);
+        }
+        return filePaths;
+    }
+
+    /**
+     * Lists the entries directly under the directory a jar URL points to, by
+     * their resource name so that they are read through the class loader.
+     */
+    private static List<String> listJarEntries(URL url, PathMatcher matcher) {
+        LOG.info("Listing files in :: " + url);
+        List<String> filePaths = new ArrayList<>();
+        try {
+            JarURLConnection connection = (JarURLConnection) url.openConnection();
+            connection.setUseCaches(false);
+            String prefix = connection.getEntryName() == null ? "" : connection.getEntryName();
+            if (!prefix.isEmpty() && !prefix.endsWith("/")) {
+                prefix += "/";
+            }
+            try (JarFile jar = connection.getJarFile()) {
+                Enumeration<JarEntry> entries = jar.entries();
+                while (entries.hasMoreElements()) {
+                    JarEntry entry = entries.nextElement();
+                    String name = entry.getName();
+                    if (!entry.isDirectory() && name.startsWith(prefix) && name.indexOf('/', prefix.length()) < 0
+                            && matcher.matches(FileSystems.getDefault().getPath(name.substring(prefix.length())))) {
+                        filePaths.add(name);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Error listing jar " + url, e);
+            throw new RuntimeException(e);
+        }
+        return filePaths;
+    }
+
+    /**
+     * @return the root of the jar the application is packaged in, null when it
+     *         runs from a directory. Class loaders do not return the root of a
+     *         jar as a resource.
+     */
+    private static URL applicationJar() {
+        CodeSource codeSource = FileUtil.class.getProtectionDomain().getCodeSource();
+        if (codeSource == null || codeSource.getLocation() == null || !codeSource.getLocation().getPath().endsWith(".jar")) {
+            return null;
+        }
+        try {
+            return new URL("jar:" + codeSource.getLocation() + "!/");
+        } catch (MalformedURLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static File resolveDirectory(URL url, String directory) {
+        if (url != null && "file".equals(url.getProtocol())) {
+            try {
+                return new File(url.toURI());
+            } catch (URISyntaxException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        File file = new File(directory);
+        if (!file.isDirectory()) {
+            throw new IllegalArgumentException("Directory not found :: " + directory);
+        }
+        return file;
+    }
 }
@@ -0,0 +1,366 @@
+package traffic.monitor.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reads delimited files straight from a memory mapped buffer. Lines are
+ * scanned byte by byte and only the boundaries of the fields are recorded, in
+ * a single {@link Record} instance reused for every line. Numbers and
+ * timestamps are then decoded from the bytes into primitives, so that no
+ * intermediate String is created unless explicitly requested.
+ * 
+ * Files are mapped in windows, which keeps files larger than 2GB readable.
+ * Resources that do not live on the file system (e.g. packaged in a jar) are
+ * copied into a heap buffer instead.
+ * 
+ * @author Sorin Petre Nica
+ * 
+ */
+public class MappedCsvReader<T> implements Iterator<T>, Closeable {
+
+    private static final Logger LOG         = Logger.getLogger(MappedCsvReader.class);
+
+    private static final long   WINDOW_SIZE = 64L << 20;
+
+    private static final byte   QUOTE       = '"';
+
+    private static final byte   CR          = '\r';
+
+    private static final byte   LF          = '\n';
+
+    /**
+     * Callback invoked once per line. The record is only valid for the
+     * duration of the call.
+     */
+    public interface RecordParser<T> {
+        T deserialize(Record record);
+    }
+
+    /**
+     * View over the fields of the line being parsed. Surrounding quotes are
+     * excluded from the field boundaries.
+     */
+    public static final class Record {
+
+        private static final double[] POW10     = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+                                                1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+        /** Largest mantissa that is exactly representable as a double. */
+        private static final long     MAX_EXACT = 1L << 53;
+
+        private ByteBuffer            buffer;
+
+        private int[]                 starts    = new int[8];
+
+        private int[]                 ends      = new int[8];
+
+        private int                   size;
+
+        public int size() {
+            return size;
+        }
+
+        public String getString(int field) {
+            byte[] bytes = new byte[length(field)];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(starts[field] + i);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        public long getLong(int field) {
+            int i = starts[field];
+            int end = ends[field];
+            boolean negative = i < end && buffer.get(i) == '-';
+            if (negative || i < end && buffer.get(i) == '+') {
+                i++;
+            }
+            if (i == end || end - i > 18) {
+                return Long.parseLong(getString(field));
+            }
+            long value = 0;
+            for (; i < end; i++) {
+                int digit = buffer.get(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    return Long.parseLong(getString(field));
+                }
+                value = value * 10 + digit;
+            }
+            return negative ? -value : value;
+        }
+
+        /**
+         * Decodes plain decimal numbers directly. The mantissa and the power
+         * of ten are both exact doubles, so a single division gives the
+         * correctly rounded result. Anything else (exponents, very long
+         * mantissas) is delegated to {@link Double#parseDouble}.
+         */
+        public double getDouble(int field) {
+            int i = starts[field];
+            int end = ends[field];
+            boolean negative = i < end && buffer.get(i) == '-';
+            if (negative || i < end && buffer.get(i) == '+') {
+                i++;
+            }
+            long mantissa = 0;
+            int digits = 0;
+            int fractionDigits = -1;
+            for (; i < end; i++) {
+                byte b = buffer.get(i);
+                if (b == '.' && fractionDigits < 0) {
+                    fractionDigits = 0;
+                } else if (b >= '0' && b <= '9' && mantissa < MAX_EXACT / 10) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    digits++;
+                    if (fractionDigits >= 0) {
+                        fractionDigits++;
+                    }
+                } else {
+                    return Double.parseDouble(getString(field));
+                }
+            }
+            if (digits == 0 || fractionDigits >= POW10.length) {
+                return Double.parseDouble(getString(field));
+            }
+            double value = fractionDigits > 0 ? mantissa / POW10[fractionDigits] : mantissa;
+            return negative ? -value : value;
+        }
+
+        /**
+         * @return the field, laid out as yyyy-MM-dd HH:mm:ss, as milliseconds
+         *         since the epoch
+         */
+        public long getEpochMillis(int field) {
+            return DateUtil.parseEpochMillis(buffer, starts[field], ends[field]);
+        }
+
+        private int length(int field) {
+            return ends[field] - starts[field];
+        }
+
+        private void reset(ByteBuffer buffer) {
+            this.buffer = buffer;
+            size = 0;
+        }
+
+        private void addField(int start, int end) {
+            if (size == starts.length) {
+                int[] newStarts = new int[size * 2];
+                int[] newEnds = new int[size * 2];
+                System.arraycopy(starts, 0, newStarts, 0, size);
+                System.arraycopy(ends, 0, newEnds, 0, size);
+                starts = newStarts;
+                ends = newEnds;
+            }
+            if (end - start >= 2 && buffer.get(start) == QUOTE && buffer.get(end - 1) == QUOTE) {
+                start++;
+                end--;
+            }
+            starts[size] = start;
+            ends[size] = end;
+            size++;
+        }
+    }
+
+    private final String          filePath;
+
+    private final byte            separator;
+
+    private final RecordParser<T> recordParser;
+
+    private final Record          record;
+
+    private final FileChannel     fileChannel;
+
+    private final long            fileSize;
+
+    private ByteBuffer            buffer;
+
+    private long                  bufferOffset;
+
+    private int                   position;
+
+    private T                     next;
+
+    private boolean               closed;
+
+    public MappedCsvReader(String filePath, char separator, RecordParser<T> recordParser) {
+        this.filePath = filePath;
+        this.separator = (byte) separator;
+        this.recordParser = recordParser;
+        this.record = new Record();
+        try {
+            File file = resolve(filePath);
+            LOG.info("Mapping file :: " + (file == null ? filePath : file.getAbsolutePath()));
+            if (file == null) {
+                fileChannel = null;
+                buffer = ByteBuffer.wrap(readResource(filePath));
+                fileSize = buffer.limit();
+            } else {
+                fileChannel = new RandomAccessFile(file, "r").getChannel();
+                fileSize = fileChannel.size();
+                map(0);
+            }
+        } catch (IOException e) {
+            LOG.error("Error mapping file " + filePath, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && !closed) {
+            if (readRecord()) {
+                next = recordParser.deserialize(record);
+            } else {
+                closeQuietly();
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        T current = next;
+        next = null;
+        return current;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            buffer = null;
+            if (fileChannel != null) {
+                fileChannel.close();
+            }
+        }
+    }
+
+    /**
+     * Scans the next non empty line into the record.
+     * 
+     * @return false once the end of the file is reached
+     */
+    private boolean readRecord() {
+        int lineStart = position;
+        int fieldStart = position;
+        record.reset(buffer);
+        for (int i = position;; i++) {
+            if (i == buffer.limit()) {
+                if (bufferOffset + buffer.limit() < fileSize) {
+                    if (lineStart == 0) {
+                        throw new IllegalStateException("Line longer than " + WINDOW_SIZE + " bytes in file " + filePath);
+                    }
+                    // the line continues past the mapped window
+                    map(bufferOffset + lineStart);
+                    i = -1;
+                    lineStart = 0;
+                    fieldStart = 0;
+                    record.reset(buffer);
+                    continue;
+                }
+                position = i;
+                if (i == lineStart) {
+                    return false;
+                }
+                record.addField(fieldStart, i);
+                return true;
+            }
+            byte b = buffer.get(i);
+            if (b == separator) {
+                record.addField(fieldStart, i);
+                fieldStart = i + 1;
+            } else if (b == LF) {
+                int end = i > lineStart && buffer.get(i - 1) == CR ? i - 1 : i;
+                if (end == lineStart) {
+                    // empty line
+                    lineStart = i + 1;
+                    fieldStart = i + 1;
+                    record.reset(buffer);
+                    continue;
+                }
+                record.addField(fieldStart, end);
+                position = i + 1;
+                return true;
+            }
+        }
+    }
+
+    private void map(long offset) {
+        try {
+            buffer = fileChannel.map(MapMode.READ_ONLY, offset, Math.min(WINDOW_SIZE, fileSize - offset));
+            bufferOffset = offset;
+            position = 0;
+        } catch (IOException e) {
+            LOG.error("Error mapping file " + filePath, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {
+            LOG.error("Error closing file " + filePath, e);
+        }
+    }
+
+    /**
+     * @return the file backing the class path resource, or null if the
+     *         resource is not a plain file
+     */
+    private static File resolve(String filePath) throws IOException {
+        URL url = MappedCsvReader.class.getClassLoader().getResource(filePath);
+        if (url == null) {
+            File file = new File(filePath);
+            if (!file.isFile()) {
+                throw new IOException("File not found :: " + filePath);
+            }
+            return file;
+        }
+        if (!"file".equals(url.getProtocol())) {
+            return null;
+        }
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static byte[] readResource(String filePath) throws IOException {
+        try (InputStream inputStream = MappedCsvReader.class.getClassLoader().getResourceAsStream(filePath)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = inputStream.read(chunk)) != -1) {
+                bytes.write(chunk, 0, read);
+            }
+            return bytes.toByteArray();
+        }
+    }
+}